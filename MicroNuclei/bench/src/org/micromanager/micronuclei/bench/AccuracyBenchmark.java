@@ -0,0 +1,118 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei.bench;
+
+import ij.gui.Roi;
+import java.awt.Rectangle;
+import java.util.HashSet;
+import java.util.Set;
+import org.micromanager.micronuclei.analysis.MicroNucleiAnalysisModule;
+import org.micromanager.micronuclei.analysisinterface.AnalysisParameters;
+import org.micromanager.micronuclei.analysisinterface.AnalysisResult;
+import org.micromanager.micronuclei.bench.jmh.BenchmarkImages;
+import org.micromanager.micronuclei.simulation.FieldGenerator;
+import org.micromanager.micronuclei.simulation.SyntheticField;
+import org.micromanager.micronuclei.simulation.SyntheticNucleus;
+
+/**
+ * Runs the analysis on synthetic fields and compares the hits with the 
+ * ground truth of the FieldGenerator.
+ * Run with: make accuracy ACCURACYOPTIONS="nrFields size density seed"
+ * where density is "sparse" or "dense"
+ *
+ * @author nico
+ */
+public class AccuracyBenchmark {
+
+   public static void main(String[] args) throws Exception {
+      int nrFields = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+      int size = args.length > 1 ? Integer.parseInt(args[1]) : 1024;
+      String density = args.length > 2 ? args[2] : "sparse";
+      long seed = args.length > 3 ? Long.parseLong(args[3]) : 
+              BenchmarkImages.SEED;
+
+      MicroNucleiAnalysisModule module = new MicroNucleiAnalysisModule();
+      AnalysisParameters parms = BenchmarkImages.parameters(module, true);
+      FieldGenerator generator = new FieldGenerator(seed, size, size,
+              BenchmarkImages.PIXELSIZE);
+      generator.setDensity(BenchmarkImages.nucleiPerSquareMm(density));
+
+      short[] pixels = new short[size * size];
+      int nrNuclei = 0;
+      int nrTrue = 0;
+      int truePositives = 0;
+      int falsePositives = 0;
+      int falseNegatives = 0;
+      int nrRejected = 0;
+      int rejectionErrors = 0;
+      long generateTime = 0;
+      long analyzeTime = 0;
+      for (int i = 0; i < nrFields; i++) {
+         long start = System.nanoTime();
+         SyntheticField field = generator.generate(i, pixels);
+         long generated = System.nanoTime();
+         AnalysisResult result = module.analyze(field.getImage(), parms);
+         analyzeTime += System.nanoTime() - generated;
+         generateTime += generated - start;
+
+         if (field.isRejected()) {
+            nrRejected++;
+         }
+         if (result.isRejected() != field.isRejected()) {
+            rejectionErrors++;
+            continue;
+         }
+         nrNuclei += field.getNuclei().size();
+         nrTrue += field.getZapList().size();
+         Set<SyntheticNucleus> found = new HashSet<SyntheticNucleus>();
+         for (Roi hit : result.getHits()) {
+            Rectangle r = hit.getBounds();
+            SyntheticNucleus nucleus = field.nucleusAt(r.x + 0.5 * r.width,
+                    r.y + 0.5 * r.height);
+            if (nucleus != null && nucleus.getZap()) {
+               truePositives++;
+               found.add(nucleus);
+            } else {
+               falsePositives++;
+            }
+         }
+         falseNegatives += field.getZapList().size() - found.size();
+      }
+
+      System.out.println("Fields:              " + nrFields + " (" + size + 
+              " x " + size + ", " + density + ")");
+      System.out.println("Rejected:            " + nrRejected + " (" + 
+              rejectionErrors + " wrongly accepted or rejected)");
+      System.out.println("Nuclei:              " + nrNuclei);
+      System.out.println("To be zapped:        " + nrTrue);
+      System.out.println("Hits found:          " + truePositives + 
+              " correct, " + falsePositives + " wrong, " + falseNegatives + 
+              " missed");
+      System.out.println("Precision:           " + String.format("%.3f", 
+              truePositives / (double) Math.max(truePositives + falsePositives, 1)));
+      System.out.println("Recall:              " + String.format("%.3f", 
+              truePositives / (double) Math.max(nrTrue, 1)));
+      System.out.println("Generation:          " + String.format("%.1f", 
+              generateTime / 1000000.0 / nrFields) + " ms per field");
+      System.out.println("Analysis:            " + String.format("%.1f", 
+              analyzeTime / 1000000.0 / nrFields) + " ms per field");
+   }
+
+}
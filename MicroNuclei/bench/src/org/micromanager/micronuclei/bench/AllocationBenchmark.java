@@ -0,0 +1,151 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei.bench;
+
+import ij.ImagePlus;
+import ij.process.FloatProcessor;
+import ij.process.ShortProcessor;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import mmcorej.TaggedImage;
+import org.micromanager.micronuclei.analysis.ImageNormalizer;
+import org.micromanager.micronuclei.analysis.MicroNucleiAnalysisModule;
+import org.micromanager.micronuclei.analysisinterface.AnalysisParameters;
+import org.micromanager.micronuclei.analysisinterface.AnalysisResult;
+import org.micromanager.micronuclei.bench.jmh.BenchmarkImages;
+import org.micromanager.utils.MDUtils;
+
+/**
+ * Measures the memory allocated while a site is corrected and analyzed, 
+ * in all threads, including the threads the analysis is split over.
+ * Once buffers have been sized by the first site, what remains should 
+ * mostly be the results: the measurements of the nuclei and the outlines 
+ * of the hits.  Hits are checked again in a subregion.
+ * Run with: make allocation ALLOCATIONOPTIONS="--dir screenDir" for a 
+ * saved screen, or ALLOCATIONOPTIONS="nrFields size density" for 
+ * synthetic fields
+ *
+ * @author nico
+ */
+public class AllocationBenchmark {
+   private static final MicroNucleiAnalysisModule module_ = 
+           new MicroNucleiAnalysisModule();
+   private static final com.sun.management.ThreadMXBean threads_ = 
+           (com.sun.management.ThreadMXBean) 
+           ManagementFactory.getThreadMXBean();
+   private static AnalysisParameters parms_;
+   private static ImageNormalizer normalizer_ = null;
+   private static long firstNormalize_ = 0;
+   private static long firstAnalyze_ = 0;
+   private static long normalize_ = 0;
+   private static long analyze_ = 0;
+   private static int nrNuclei_ = 0;
+   private static int nrHits_ = 0;
+   private static int nrFields_ = 0;
+
+   public static void main(String[] args) throws Exception {
+      if (!threads_.isThreadAllocatedMemorySupported()) {
+         System.out.println("This JVM can not measure allocations per thread");
+         return;
+      }
+      threads_.setThreadAllocatedMemoryEnabled(true);
+      parms_ = BenchmarkImages.parameters(module_, true);
+      String source = BenchmarkImages.forEachField(args, 
+              new BenchmarkImages.FieldCallback() {
+         @Override
+         public void field(TaggedImage image) throws Exception {
+            measure(image);
+         }
+      });
+      int nrMeasured = Math.max(1, nrFields_ - 1);
+      System.out.println("Fields:              " + source);
+      System.out.println("First field:         " + kb(firstNormalize_) + 
+              " normalize, " + kb(firstAnalyze_) + " analyze");
+      System.out.println("Per following field: " + 
+              kb(normalize_ / nrMeasured) + " normalize, " + 
+              kb(analyze_ / nrMeasured) + " analyze");
+      System.out.println("                     " + String.format("%.1f", 
+              (double) nrNuclei_ / nrFields_) + " nuclei, " + 
+              String.format("%.1f", (double) nrHits_ / nrFields_) + 
+              " hits per field");
+   }
+
+   private static void measure(TaggedImage image) throws Exception {
+      if (normalizer_ == null) {
+         normalizer_ = normalizer(MDUtils.getWidth(image.tags), 
+                 MDUtils.getHeight(image.tags));
+      }
+      long start = allocated();
+      TaggedImage normalized = normalizer_.normalize(image);
+      long normalize = allocated() - start;
+      start = allocated();
+      AnalysisResult result = module_.analyze(normalized, parms_);
+      long analyze = allocated() - start;
+      if (nrFields_ == 0) {
+         firstNormalize_ = normalize;
+         firstAnalyze_ = analyze;
+      } else {
+         normalize_ += normalize;
+         analyze_ += analyze;
+      }
+      nrFields_++;
+      if (!result.isRejected()) {
+         nrNuclei_ += result.getNucleusCount();
+         nrHits_ += result.getHits().length;
+      }
+   }
+
+   /**
+    * Background and flatfield correction with noise, as in 
+    * NormalizeBenchmark
+    */
+   private static ImageNormalizer normalizer(int width, int height) {
+      Random random = new Random(BenchmarkImages.SEED);
+      ShortProcessor background = new ShortProcessor(width, height);
+      FloatProcessor flatField = new FloatProcessor(width, height);
+      for (int i = 0; i < width * height; i++) {
+         background.set(i, random.nextInt(10));
+         flatField.setf(i, 0.9f + 0.2f * random.nextFloat());
+      }
+      return new ImageNormalizer(new ImagePlus("background", background), 
+              new ImagePlus("flatfield", flatField));
+   }
+
+   /**
+    * @return bytes allocated so far by all live threads
+    */
+   private static long allocated() {
+      long[] ids = threads_.getAllThreadIds();
+      long total = 0;
+      for (long bytes : threads_.getThreadAllocatedBytes(ids)) {
+         if (bytes > 0) {
+            total += bytes;
+         }
+      }
+      return total;
+   }
+
+   private static String kb(long bytes) {
+      return String.format("%.1f kB", bytes / 1024.0);
+   }
+
+}
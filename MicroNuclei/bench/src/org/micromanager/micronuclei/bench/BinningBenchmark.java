@@ -0,0 +1,147 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei.bench;
+
+import ij.gui.Roi;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+import mmcorej.TaggedImage;
+import org.micromanager.micronuclei.analysis.MicroNucleiAnalysisModule;
+import org.micromanager.micronuclei.analysisinterface.AnalysisParameters;
+import org.micromanager.micronuclei.analysisinterface.AnalysisProperty;
+import org.micromanager.micronuclei.analysisinterface.AnalysisResult;
+import org.micromanager.micronuclei.bench.jmh.BenchmarkImages;
+import org.micromanager.micronuclei.metrics.Histogram;
+import org.micromanager.micronuclei.metrics.Metrics;
+import org.micromanager.micronuclei.metrics.MetricsRegistry;
+
+/**
+ * Analyzes fields with nuclei segmented at full resolution and in 2x2 and
+ * 4x4 binned images, and compares the hits and the time taken.  A hit 
+ * agrees when a hit at full resolution has its center within 
+ * MAXOFFSET pixels.  Hits are checked again in a subregion, and the time
+ * of finding nuclei includes these checks.
+ * Run with: make binning BINNINGOPTIONS="--dir screenDir" for a saved 
+ * screen, or BINNINGOPTIONS="nrFields size density" for synthetic fields
+ *
+ * @author nico
+ */
+public class BinningBenchmark {
+   private static final String BINNING = 
+           "Bin nuclei image 1, 2 or 4x (native segmentation)";
+   private static final int[] BINNINGS = {1, 2, 4};
+   private static final double MAXOFFSET = 10.0;
+
+   private static final MicroNucleiAnalysisModule module_ = 
+           new MicroNucleiAnalysisModule();
+   private static final AnalysisParameters[] parms_ = 
+           new AnalysisParameters[BINNINGS.length];
+   private static final MetricsRegistry[] registries_ = 
+           new MetricsRegistry[BINNINGS.length];
+   private static final long[] time_ = new long[BINNINGS.length];
+   private static final int[] nrNuclei_ = new int[BINNINGS.length];
+   private static final int[] nrHits_ = new int[BINNINGS.length];
+   private static final int[] nrAgreeing_ = new int[BINNINGS.length];
+   private static int nrFields_ = 0;
+
+   public static void main(String[] args) throws Exception {
+      AnalysisParameters parms = BenchmarkImages.parameters(module_, true);
+      AnalysisProperty binning = null;
+      for (AnalysisProperty ap : module_.getAnalysisProperties()) {
+         if (ap.getDescription().equals(BINNING)) {
+            binning = ap;
+         }
+      }
+      for (int i = 0; i < BINNINGS.length; i++) {
+         parms_[i] = parms.with(binning, BINNINGS[i]);
+         registries_[i] = new MetricsRegistry();
+      }
+      String source = BenchmarkImages.forEachField(args, 
+              new BenchmarkImages.FieldCallback() {
+         @Override
+         public void field(TaggedImage image) throws Exception {
+            compare(image);
+         }
+      });
+      Metrics.disable();
+
+      System.out.println("Fields:              " + source);
+      for (int i = 0; i < BINNINGS.length; i++) {
+         Histogram nuclei = registries_[i].getHistogram(Metrics.FINDNUCLEI);
+         System.out.println("Binning " + BINNINGS[i] + ":           " + 
+                 nrNuclei_[i] + " nuclei, " + nrHits_[i] + " hits, " + 
+                 nrAgreeing_[i] + " agree with binning 1");
+         System.out.println("                     " + String.format("%.1f", 
+                 time_[i] / 1000000.0 / nrFields_) + " ms per field, " + 
+                 "finding nuclei " + String.format("%.1f", nuclei == null ? 
+                 0.0 : nuclei.getTotal() / 1000000.0 / nrFields_) + 
+                 " ms per field");
+      }
+   }
+
+   private static void compare(TaggedImage image) throws Exception {
+      if (nrFields_ == 0) {
+         // warm up, so that the first binning is not measured while the
+         // code is still being compiled
+         Metrics.disable();
+         for (int i = 0; i < BINNINGS.length; i++) {
+            module_.analyze(image, parms_[i]);
+         }
+      }
+      nrFields_++;
+      List<double[]> reference = null;
+      for (int i = 0; i < BINNINGS.length; i++) {
+         Metrics.enable(registries_[i]);
+         long start = System.nanoTime();
+         AnalysisResult result = module_.analyze(image, parms_[i]);
+         time_[i] += System.nanoTime() - start;
+         if (result.isRejected()) {
+            continue;
+         }
+         nrNuclei_[i] += result.getNucleusCount();
+         List<double[]> hits = centers(result.getHits());
+         nrHits_[i] += hits.size();
+         if (reference == null) {
+            reference = hits;
+         }
+         for (double[] hit : hits) {
+            for (double[] ref : reference) {
+               double dx = hit[0] - ref[0];
+               double dy = hit[1] - ref[1];
+               if (dx * dx + dy * dy <= MAXOFFSET * MAXOFFSET) {
+                  nrAgreeing_[i]++;
+                  break;
+               }
+            }
+         }
+      }
+   }
+
+   private static List<double[]> centers(Roi[] hits) {
+      List<double[]> centers = new ArrayList<double[]>();
+      for (Roi hit : hits) {
+         Rectangle r = hit.getBounds();
+         centers.add(new double[] {r.x + 0.5 * r.width, r.y + 0.5 * r.height});
+      }
+      return centers;
+   }
+
+}
@@ -0,0 +1,187 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei.bench;
+
+import ij.plugin.filter.GaussianBlur;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import mmcorej.TaggedImage;
+import org.micromanager.micronuclei.analysis.ImageFilters;
+import org.micromanager.micronuclei.analysis.PixelStatistics;
+import org.micromanager.micronuclei.bench.jmh.BenchmarkImages;
+import org.micromanager.utils.ImageUtils;
+
+/**
+ * Compares ImageFilters with ImageJ's "Smooth" followed by "Gaussian 
+ * Blur..." (sigma 5, as used for nuclei) and with ImageJ's "Sharpen", on 
+ * synthetic or recorded fields, and measures the time they take.  For the
+ * blur, the exact and the fast (box filter) mode are compared, by the 
+ * difference in grey values, in the Otsu threshold, and in the pixels of
+ * the resulting mask.
+ * Run with: make blur BLUROPTIONS="nrFields size density"
+ * or BLUROPTIONS="--dir screenDir" for a saved screen
+ *
+ * @author nico
+ */
+public class BlurBenchmark {
+   private static final double NUCLEISIGMA = 5.0;
+
+   private static int nrFields_ = 0;
+   private static long pixels_ = 0;
+   private static long timeImageJ_ = 0;
+   private static long timeSharpenImageJ_ = 0;
+   private static long timeSharpen_ = 0;
+   private static long sharpenDifferent_ = 0;
+   private static final Mode exact_ = new Mode("Exact");
+   private static final Mode fast_ = new Mode("Fast");
+   private static final Mode banded_ = new Mode("Exact, bands");
+
+   private static final PixelStatistics statistics_ = new PixelStatistics();
+   private static ExecutorService executor_;
+   private static int nrThreads_;
+
+   public static void main(String[] args) throws Exception {
+      nrThreads_ = Runtime.getRuntime().availableProcessors();
+      executor_ = Executors.newFixedThreadPool(nrThreads_);
+      exact_.filters_.setBands(1, null);
+      fast_.filters_.setFast(true);
+      // at least two bands, so that band edges are always exercised
+      banded_.filters_.setBands(Math.max(2, nrThreads_), executor_);
+      String source = BenchmarkImages.forEachField(args, 
+              new BenchmarkImages.FieldCallback() {
+         @Override
+         public void field(TaggedImage image) throws Exception {
+            ImageProcessor ip = ImageUtils.makeProcessor(image);
+            compare(ip.convertToShortProcessor(false));
+         }
+      });
+      executor_.shutdown();
+
+      System.out.println("Fields:              " + source);
+      System.out.println("Smooth + Gaussian blur, sigma " + NUCLEISIGMA + ":");
+      System.out.println("   ImageJ:           " + String.format("%.1f", 
+              timeImageJ_ / 1000000.0 / nrFields_) + " ms per field");
+      exact_.report();
+      banded_.report();
+      fast_.report();
+      System.out.println("Sharpen:");
+      System.out.println("   Pixels different: " + sharpenDifferent_ + 
+              " of " + pixels_);
+      System.out.println("   ImageJ:           " + String.format("%.1f", 
+              timeSharpenImageJ_ / 1000000.0 / nrFields_) + " ms per field");
+      System.out.println("   ImageFilters:     " + String.format("%.1f", 
+              timeSharpen_ / 1000000.0 / nrFields_) + " ms per field (" + 
+              nrThreads_ + " threads)");
+   }
+
+   private static void compare(ShortProcessor field) {
+      nrFields_++;
+      int width = field.getWidth();
+      int height = field.getHeight();
+      short[] pixels = (short[]) field.getPixels();
+      pixels_ += pixels.length;
+
+      ImageProcessor imageJ = field.duplicate();
+      long start = System.nanoTime();
+      imageJ.smooth();
+      new GaussianBlur().blurGaussian(imageJ, NUCLEISIGMA, NUCLEISIGMA, 
+              ImageFilters.GAUSSIAN_ACCURACY);
+      timeImageJ_ += System.nanoTime() - start;
+      short[] reference = (short[]) imageJ.getPixels();
+      statistics_.compute(reference);
+      int threshold = statistics_.getOtsuThreshold();
+      exact_.compare(pixels, reference, threshold, width, height);
+      banded_.compare(pixels, reference, threshold, width, height);
+      fast_.compare(pixels, reference, threshold, width, height);
+
+      ImageProcessor sharpened = field.duplicate();
+      start = System.nanoTime();
+      sharpened.sharpen();
+      timeSharpenImageJ_ += System.nanoTime() - start;
+      short[] own = new short[pixels.length];
+      start = System.nanoTime();
+      banded_.filters_.sharpen(pixels, own, width, height);
+      timeSharpen_ += System.nanoTime() - start;
+      short[] sharpenedPixels = (short[]) sharpened.getPixels();
+      for (int i = 0; i < own.length; i++) {
+         if (own[i] != sharpenedPixels[i]) {
+            sharpenDifferent_++;
+         }
+      }
+   }
+
+   /**
+    * Differences with ImageJ and time of one way of filtering
+    */
+   private static class Mode {
+      private final String name_;
+      private final ImageFilters filters_ = new ImageFilters();
+      private long time_ = 0;
+      private int maxDifference_ = 0;
+      private double sumDifference_ = 0.0;
+      private long pixels_ = 0;
+      private long maskDifferent_ = 0;
+      private int maxThresholdDifference_ = 0;
+      private int nrFields_ = 0;
+
+      Mode(String name) {
+         name_ = name;
+      }
+
+      void compare(short[] pixels, short[] reference, int threshold, 
+              int width, int height) {
+         short[] own = new short[pixels.length];
+         long start = System.nanoTime();
+         filters_.smoothAndBlur(pixels, own, width, height, NUCLEISIGMA);
+         time_ += System.nanoTime() - start;
+         nrFields_++;
+         statistics_.compute(own);
+         int ownThreshold = statistics_.getOtsuThreshold();
+         maxThresholdDifference_ = Math.max(maxThresholdDifference_, 
+                 Math.abs(ownThreshold - threshold));
+         for (int i = 0; i < own.length; i++) {
+            int a = own[i] & 0xffff;
+            int b = reference[i] & 0xffff;
+            int difference = Math.abs(a - b);
+            maxDifference_ = Math.max(maxDifference_, difference);
+            sumDifference_ += difference;
+            if ((a >= ownThreshold) != (b >= threshold)) {
+               maskDifferent_++;
+            }
+         }
+         pixels_ += own.length;
+      }
+
+      void report() {
+         System.out.println("   " + String.format("%-16s", name_ + ":") + 
+                 "  " + String.format("%.1f", time_ / 1000000.0 / nrFields_) +
+                 " ms per field, grey values differ by " + 
+                 String.format("%.3f", sumDifference_ / pixels_) + 
+                 " on average, " + maxDifference_ + " at most");
+         System.out.println("                     Otsu threshold differs by " + 
+                 maxThresholdDifference_ + " at most, mask pixels " + 
+                 "different: " + maskDifferent_ + String.format(" (%.4f%%)", 
+                 100.0 * maskDifferent_ / pixels_));
+      }
+   }
+
+}
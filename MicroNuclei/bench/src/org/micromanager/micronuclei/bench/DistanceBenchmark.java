@@ -0,0 +1,207 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei.bench;
+
+import java.awt.geom.Point2D;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import org.micromanager.micronuclei.analysis.Distance;
+import org.micromanager.micronuclei.analysis.PointIndex;
+
+/**
+ * Compares the assignment of micronuclei to nuclei by brute force search
+ * (as done originally, with a copy of the key set per query, and without
+ * the copy) with the grid based PointIndex.
+ * Run with: make bench
+ *
+ * @author nico
+ */
+public class DistanceBenchmark {
+   // size of a 2048 x 2048 field with 0.65 micron pixels
+   private static final double FIELDSIZE = 1331.0;
+   private static final double MAXDISTANCE = 25.0;
+   private static final int MNPERNUCLEUS = 10;
+   private static final int[] NRNUCLEI = {50, 200, 1000, 5000};
+
+   public static void main(String[] args) {
+      Random random = new Random(42);
+      System.out.println("nuclei\tmicronuclei\tcopy (ms)\tbrute force (ms)\t" +
+              "index (ms)\tspeedup");
+      for (int nrNuclei : NRNUCLEI) {
+         int nrMN = nrNuclei * MNPERNUCLEUS;
+         Map<Point2D.Double, ArrayList<Point2D.Double>> nuclei =
+                 new HashMap<Point2D.Double, ArrayList<Point2D.Double>>();
+         Point2D.Double[] centers = new Point2D.Double[nrNuclei];
+         double[] x = new double[nrNuclei];
+         double[] y = new double[nrNuclei];
+         for (int i = 0; i < nrNuclei; i++) {
+            centers[i] = new Point2D.Double(random.nextDouble() * FIELDSIZE,
+                    random.nextDouble() * FIELDSIZE);
+            x[i] = centers[i].x;
+            y[i] = centers[i].y;
+            nuclei.put(centers[i], new ArrayList<Point2D.Double>());
+         }
+         Point2D.Double[] mns = new Point2D.Double[nrMN];
+         for (int i = 0; i < nrMN; i++) {
+            mns[i] = new Point2D.Double(random.nextDouble() * FIELDSIZE,
+                    random.nextDouble() * FIELDSIZE);
+         }
+
+         // make sure all methods agree before timing them
+         PointIndex index = new PointIndex();
+         index.build(x, y, nrNuclei, MAXDISTANCE);
+         for (Point2D.Double mn : mns) {
+            Point2D.Double bf = Distance.closest(mn, nuclei);
+            if (MAXDISTANCE <= Distance.distance(mn, bf)) {
+               bf = null;
+            }
+            int i = index.nearest(mn.x, mn.y, MAXDISTANCE);
+            Point2D.Double ix = i >= 0 ? centers[i] : null;
+            if (bf != ix && (bf == null || ix == null ||
+                    Distance.distance(mn, bf) != Distance.distance(mn, ix))) {
+               throw new IllegalStateException("Index and brute force differ at " + mn);
+            }
+         }
+
+         int repeats = Math.max(1, 2000000 / (nrNuclei * nrMN));
+         long copyTime = time(new CopyingSearch(nuclei, mns), repeats);
+         long bruteTime = time(new BruteForceSearch(nuclei, mns), repeats);
+         long indexTime = time(new IndexSearch(index, x, y, mns), repeats);
+         System.out.println(nrNuclei + "\t" + nrMN + "\t" +
+                 copyTime / 1000000.0 + "\t" + bruteTime / 1000000.0 + "\t" +
+                 indexTime / 1000000.0 + "\t" +
+                 String.format("%.1f", (double) copyTime / indexTime));
+      }
+   }
+
+   /**
+    * @return median time in nanoseconds of a single run
+    */
+   private static long time(Runnable r, int repeats) {
+      // warm up
+      for (int i = 0; i < 3 * repeats; i++) {
+         r.run();
+      }
+      long[] times = new long[9];
+      for (int t = 0; t < times.length; t++) {
+         long start = System.nanoTime();
+         for (int i = 0; i < repeats; i++) {
+            r.run();
+         }
+         times[t] = (System.nanoTime() - start) / repeats;
+      }
+      java.util.Arrays.sort(times);
+      return times[times.length / 2];
+   }
+
+   // keeps the JIT from throwing away the searches
+   static int sink_;
+
+   /**
+    * The search as it was done originally: copy the keys, then loop
+    */
+   private static class CopyingSearch implements Runnable {
+      private final Map<Point2D.Double, ArrayList<Point2D.Double>> nuclei_;
+      private final Point2D.Double[] mns_;
+
+      CopyingSearch(Map<Point2D.Double, ArrayList<Point2D.Double>> nuclei,
+              Point2D.Double[] mns) {
+         nuclei_ = nuclei;
+         mns_ = mns;
+      }
+
+      @Override
+      public void run() {
+         int count = 0;
+         for (Point2D.Double mn : mns_) {
+            Point2D.Double[] pointList = nuclei_.keySet().toArray(
+                    new Point2D.Double[nuclei_.size()]);
+            Point2D.Double closestPoint = pointList[0];
+            double d = Distance.distance(mn, closestPoint);
+            for (Point2D.Double p2 : pointList) {
+               double dNew = Distance.distance(mn, p2);
+               if (dNew < d) {
+                  d = dNew;
+                  closestPoint = p2;
+               }
+            }
+            if (MAXDISTANCE > Distance.distance(mn, closestPoint)) {
+               count++;
+            }
+         }
+         sink_ += count;
+      }
+   }
+
+   private static class BruteForceSearch implements Runnable {
+      private final Map<Point2D.Double, ArrayList<Point2D.Double>> nuclei_;
+      private final Point2D.Double[] mns_;
+
+      BruteForceSearch(Map<Point2D.Double, ArrayList<Point2D.Double>> nuclei,
+              Point2D.Double[] mns) {
+         nuclei_ = nuclei;
+         mns_ = mns;
+      }
+
+      @Override
+      public void run() {
+         int count = 0;
+         for (Point2D.Double mn : mns_) {
+            Point2D.Double cn = Distance.closest(mn, nuclei_);
+            if (cn != null && MAXDISTANCE > Distance.distance(mn, cn)) {
+               count++;
+            }
+         }
+         sink_ += count;
+      }
+   }
+
+   /**
+    * Includes building the index, since that is done for every image
+    */
+   private static class IndexSearch implements Runnable {
+      private final PointIndex index_;
+      private final double[] x_;
+      private final double[] y_;
+      private final Point2D.Double[] mns_;
+
+      IndexSearch(PointIndex index, double[] x, double[] y, Point2D.Double[] mns) {
+         index_ = index;
+         x_ = x;
+         y_ = y;
+         mns_ = mns;
+      }
+
+      @Override
+      public void run() {
+         index_.build(x_, y_, x_.length, MAXDISTANCE);
+         int count = 0;
+         for (Point2D.Double mn : mns_) {
+            if (index_.nearest(mn.x, mn.y, MAXDISTANCE) >= 0) {
+               count++;
+            }
+         }
+         sink_ += count;
+      }
+   }
+
+}
@@ -0,0 +1,169 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei.bench;
+
+import ij.plugin.filter.EDM;
+import ij.plugin.filter.GaussianBlur;
+import ij.process.AutoThresholder;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import mmcorej.TaggedImage;
+import org.micromanager.micronuclei.analysis.ParticleLabeler;
+import org.micromanager.micronuclei.analysis.Watershed;
+import org.micromanager.micronuclei.bench.jmh.BenchmarkImages;
+import org.micromanager.utils.ImageUtils;
+
+/**
+ * Compares Watershed with ImageJ's "Watershed" (EDM.toWatershed) on the 
+ * nucleus and micronucleus masks of synthetic or recorded fields, and
+ * measures the time both take.  The masks are made with the ImageJ 
+ * equivalents of the steps of the analysis (smooth and Gaussian blur for 
+ * nuclei, sharpen for micronuclei, Otsu threshold).  Particles are 
+ * compared by their bounding boxes.
+ * Run with: make watershed WATERSHEDOPTIONS="nrFields size density"
+ * or WATERSHEDOPTIONS="--dir screenDir" for a saved screen
+ *
+ * @author nico
+ */
+public class WatershedBenchmark {
+   private static final double NUCLEISIGMA = 5.0;
+
+   private static int nrFields_ = 0;
+   private static int nrParticlesImageJ_ = 0;
+   private static int nrParticles_ = 0;
+   private static int nrIdentical_ = 0;
+   private static long pixelsDifferent_ = 0;
+   private static long pixels_ = 0;
+   private static int tilesDifferent_ = 0;
+   private static long timeImageJ_ = 0;
+   private static long time_ = 0;
+   private static long timeTiled_ = 0;
+
+   private static final Watershed watershed_ = new Watershed();
+   private static Watershed[] workers_;
+   private static ExecutorService executor_;
+   private static final ParticleLabeler labeler_ = new ParticleLabeler();
+
+   public static void main(String[] args) throws Exception {
+      int nrThreads = Runtime.getRuntime().availableProcessors();
+      executor_ = Executors.newFixedThreadPool(nrThreads);
+      // at least two bands, so that the halo is always exercised
+      workers_ = new Watershed[Math.max(2, nrThreads)];
+      for (int i = 0; i < workers_.length; i++) {
+         workers_[i] = new Watershed();
+      }
+      String source = BenchmarkImages.forEachField(args, 
+              new BenchmarkImages.FieldCallback() {
+         @Override
+         public void field(TaggedImage image) throws Exception {
+            compare(ImageUtils.makeProcessor(image));
+         }
+      });
+      executor_.shutdown();
+
+      int nrMasks = 2 * nrFields_;
+      System.out.println("Fields:              " + source);
+      System.out.println("Particles:           " + nrParticlesImageJ_ + 
+              " ImageJ, " + nrParticles_ + " Watershed, " + nrIdentical_ + 
+              " identical");
+      System.out.println("Pixels different:    " + pixelsDifferent_ + " of " +
+              pixels_ + String.format(" (%.4f%%)", 
+              100.0 * pixelsDifferent_ / Math.max(pixels_, 1)));
+      System.out.println("Tiled different:     " + tilesDifferent_ + " of " + 
+              nrMasks + " masks (" + workers_.length + " bands)");
+      System.out.println("ImageJ:              " + String.format("%.1f", 
+              timeImageJ_ / 1000000.0 / nrMasks) + " ms per mask");
+      System.out.println("Watershed:           " + String.format("%.1f", 
+              time_ / 1000000.0 / nrMasks) + " ms per mask");
+      System.out.println("Watershed, tiled:    " + String.format("%.1f", 
+              timeTiled_ / 1000000.0 / nrMasks) + " ms per mask (" + 
+              nrThreads + " threads)");
+   }
+
+   private static void compare(ImageProcessor field) throws Exception {
+      nrFields_++;
+      ImageProcessor nuclei = field.duplicate();
+      nuclei.smooth();
+      new GaussianBlur().blurGaussian(nuclei, NUCLEISIGMA, NUCLEISIGMA, 
+              0.0002);
+      compareMasks(mask(nuclei), field.getWidth(), field.getHeight());
+      ImageProcessor microNuclei = field.duplicate();
+      microNuclei.sharpen();
+      compareMasks(mask(microNuclei), field.getWidth(), field.getHeight());
+   }
+
+   private static byte[] mask(ImageProcessor ip) {
+      ip.setAutoThreshold(AutoThresholder.Method.Otsu, true, 
+              ImageProcessor.NO_LUT_UPDATE);
+      return (byte[]) ip.createMask().getPixels();
+   }
+
+   private static void compareMasks(byte[] mask, int width, int height) 
+           throws Exception {
+      byte[] imageJ = mask.clone();
+      long start = System.nanoTime();
+      new EDM().toWatershed(new ByteProcessor(width, height, imageJ));
+      timeImageJ_ += System.nanoTime() - start;
+
+      byte[] own = mask.clone();
+      start = System.nanoTime();
+      watershed_.segment(own, width, height);
+      time_ += System.nanoTime() - start;
+
+      byte[] tiled = mask.clone();
+      start = System.nanoTime();
+      Watershed.segment(tiled, width, height, workers_, 100, executor_);
+      timeTiled_ += System.nanoTime() - start;
+
+      for (int i = 0; i < mask.length; i++) {
+         if (imageJ[i] != own[i]) {
+            pixelsDifferent_++;
+         }
+      }
+      pixels_ += mask.length;
+      if (!Arrays.equals(tiled, own)) {
+         tilesDifferent_++;
+      }
+
+      Set<String> imageJParticles = particles(imageJ, width, height);
+      Set<String> ownParticles = particles(own, width, height);
+      nrParticlesImageJ_ += imageJParticles.size();
+      nrParticles_ += ownParticles.size();
+      imageJParticles.retainAll(ownParticles);
+      nrIdentical_ += imageJParticles.size();
+   }
+
+   private static Set<String> particles(byte[] mask, int width, int height) {
+      Set<String> result = new HashSet<String>();
+      int count = labeler_.label(mask, width, height, 0, Double.MAX_VALUE);
+      for (int i = 0; i < count; i++) {
+         result.add(labeler_.getX(i) + "," + labeler_.getY(i) + "," + 
+                 labeler_.getWidth(i) + "," + labeler_.getHeight(i) + "," +
+                 labeler_.getPixelCount(i));
+      }
+      return result;
+   }
+
+}
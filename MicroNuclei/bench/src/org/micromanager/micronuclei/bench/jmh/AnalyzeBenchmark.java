@@ -0,0 +1,79 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei.bench.jmh;
+
+import java.util.concurrent.TimeUnit;
+import mmcorej.TaggedImage;
+import org.micromanager.micronuclei.analysis.MicroNucleiAnalysisModule;
+import org.micromanager.micronuclei.analysisinterface.AnalysisParameters;
+import org.micromanager.micronuclei.analysisinterface.AnalysisResult;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Complete analysis of a single field with the native segmentation, with 
+ * and without checking the hits again in a subregion (checkInSmallerImage).
+ * The ImageJ segmentation can not be benchmarked, since it needs ImageJ's 
+ * menus.
+ *
+ * @author nico
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AnalyzeBenchmark {
+   @Param({"512", "1024", "2048"})
+   public int size;
+
+   @Param({"sparse", "dense"})
+   public String density;
+
+   @Param({"false", "true"})
+   public boolean checkInSmallerImage;
+
+   private MicroNucleiAnalysisModule module_;
+   private AnalysisParameters parms_;
+   private TaggedImage image_;
+
+   @Setup
+   public void setup() throws Exception {
+      module_ = new MicroNucleiAnalysisModule();
+      parms_ = BenchmarkImages.parameters(module_, checkInSmallerImage);
+      image_ = BenchmarkImages.field(size, density);
+   }
+
+   @Benchmark
+   public AnalysisResult analyze() throws Exception {
+      return module_.analyze(image_, parms_);
+   }
+
+}
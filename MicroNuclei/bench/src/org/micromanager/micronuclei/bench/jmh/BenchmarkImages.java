@@ -0,0 +1,144 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei.bench.jmh;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import mmcorej.TaggedImage;
+import org.json.JSONException;
+import org.micromanager.micronuclei.analysis.MicroNucleiAnalysisModule;
+import org.micromanager.micronuclei.analysisinterface.AnalysisModule;
+import org.micromanager.micronuclei.analysisinterface.AnalysisParameters;
+import org.micromanager.micronuclei.analysisinterface.AnalysisProperty;
+import org.micromanager.micronuclei.screen.SavedScreen;
+import org.micromanager.micronuclei.simulation.FieldGenerator;
+
+/**
+ * Test images and settings shared by the benchmarks
+ *
+ * @author nico
+ */
+public class BenchmarkImages {
+   public static final double PIXELSIZE = 0.65;
+   public static final int SEED = 42;
+
+   /**
+    * Receives the fields of a benchmark, one by one
+    */
+   public interface FieldCallback {
+      void field(TaggedImage image) throws Exception;
+   }
+
+   /**
+    * Nuclei per mm^2 for the given density
+    * @param density "sparse" or "dense"
+    * @return number of nuclei per mm^2
+    */
+   public static double nucleiPerSquareMm(String density) {
+      if (density.equals("dense")) {
+         return 450.0;
+      }
+      return 120.0;
+   }
+
+   /**
+    * Renders a synthetic field with the default settings of the analysis,
+    * without well edges, so that every field gets analyzed
+    * @param size width and height in pixels
+    * @param density "sparse" or "dense"
+    * @return tagged image, including pixel size
+    * @throws JSONException
+    */
+   public static TaggedImage field(int size, String density)
+           throws JSONException {
+      FieldGenerator generator = new FieldGenerator(SEED, size, size, PIXELSIZE);
+      generator.setDensity(nucleiPerSquareMm(density));
+      generator.setWellEdges(0.0, 0);
+      return generator.generate(0).getImage();
+   }
+
+   /**
+    * Hands the fields given on the command line of a benchmark to the 
+    * callback: "--dir screenDir" for the sites of a saved screen, or 
+    * "nrFields size density" (default 20 2048 dense) for synthetic fields 
+    * without well edges.  Synthetic fields share one pixel buffer, so an 
+    * image is only valid until the callback returns
+    * @param args command line arguments of the benchmark
+    * @param callback receives each field
+    * @return description of the fields, for the report
+    * @throws Exception when a field can not be read, or the callback fails
+    */
+   public static String forEachField(String[] args, FieldCallback callback)
+           throws Exception {
+      if (args.length > 1 && args[0].equals("--dir")) {
+         SavedScreen screen = new SavedScreen(new File(args[1]), 0);
+         for (SavedScreen.SiteImage site : screen.getSites()) {
+            callback.field(site.read(PIXELSIZE));
+         }
+         return args[1];
+      }
+      int nrFields = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+      int size = args.length > 1 ? Integer.parseInt(args[1]) : 2048;
+      String density = args.length > 2 ? args[2] : "dense";
+      FieldGenerator generator = new FieldGenerator(SEED, size, size, 
+              PIXELSIZE);
+      generator.setDensity(nucleiPerSquareMm(density));
+      generator.setWellEdges(0.0, 0);
+      short[] pixels = new short[size * size];
+      for (int i = 0; i < nrFields; i++) {
+         callback.field(generator.generate(i, pixels).getImage());
+      }
+      return nrFields + " synthetic fields (" + size + " x " + size + ", " + 
+              density + ")";
+   }
+
+   /**
+    * Analysis parameters for benchmarking: the default settings, native 
+    * segmentation, and no limits on the number of nuclei or hits, so that 
+    * all hits are checked in the sub-analysis.  Settings that are not shown
+    * in the UI are taken from the preferences
+    * @param module analysis module
+    * @param checkInSmallerImage whether hits are checked again in a subregion
+    * @return parameters
+    */
+   public static AnalysisParameters parameters(AnalysisModule module,
+           boolean checkInSmallerImage) {
+      Map<String, Object> settings = new HashMap<String, Object>();
+      settings.put("<html>Minimum micronuclear size (&micro;m<sup>2</sup>)</html>", 20.0);
+      settings.put("Maximum micronuclear size", 800.0);
+      settings.put("<html>Maximum distance (&micro;m)</html>", 25.0);
+      settings.put("Minimum number of micronuclei", 3);
+      settings.put("Minimum distance from the edge", 10.0);
+      settings.put("Maximum number of nuclei per image", Integer.MAX_VALUE);
+      settings.put("Skip image if more than this number should be zapped",
+              Integer.MAX_VALUE);
+      settings.put("Check again in subregion", checkInSmallerImage);
+      settings.put(MicroNucleiAnalysisModule.NATIVESEGMENTATION, true);
+      AnalysisParameters parms = module.getParameters(false);
+      for (AnalysisProperty ap : module.getAnalysisProperties()) {
+         if (settings.containsKey(ap.getDescription())) {
+            parms = parms.with(ap, settings.get(ap.getDescription()));
+         }
+      }
+      return parms;
+   }
+
+}
@@ -0,0 +1,113 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei.bench.jmh;
+
+import java.awt.geom.Point2D;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.micromanager.micronuclei.analysis.Distance;
+import org.micromanager.micronuclei.analysis.PointIndex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Assignment of all micronuclei in a 2048 x 2048 field to the closest 
+ * nucleus: Distance.closest for every micronucleus versus building and 
+ * querying a PointIndex
+ *
+ * @author nico
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClosestBenchmark {
+   private static final double FIELDSIZE = 2048 * BenchmarkImages.PIXELSIZE;
+   private static final double MAXDISTANCE = 25.0;
+   private static final int MNPERNUCLEUS = 10;
+
+   @Param({"50", "200", "1000"})
+   public int nrNuclei;
+
+   private Map<Point2D.Double, ArrayList<Point2D.Double>> nuclei_;
+   private double[] x_;
+   private double[] y_;
+   private Point2D.Double[] microNuclei_;
+   private PointIndex index_;
+
+   @Setup
+   public void setup() {
+      Random random = new Random(BenchmarkImages.SEED);
+      nuclei_ = new HashMap<Point2D.Double, ArrayList<Point2D.Double>>();
+      x_ = new double[nrNuclei];
+      y_ = new double[nrNuclei];
+      for (int i = 0; i < nrNuclei; i++) {
+         x_[i] = random.nextDouble() * FIELDSIZE;
+         y_[i] = random.nextDouble() * FIELDSIZE;
+         nuclei_.put(new Point2D.Double(x_[i], y_[i]),
+                 new ArrayList<Point2D.Double>());
+      }
+      microNuclei_ = new Point2D.Double[nrNuclei * MNPERNUCLEUS];
+      for (int i = 0; i < microNuclei_.length; i++) {
+         microNuclei_[i] = new Point2D.Double(random.nextDouble() * FIELDSIZE,
+                 random.nextDouble() * FIELDSIZE);
+      }
+      index_ = new PointIndex();
+   }
+
+   @Benchmark
+   public int bruteForce() {
+      int assigned = 0;
+      for (Point2D.Double mn : microNuclei_) {
+         Point2D.Double cn = Distance.closest(mn, nuclei_);
+         if (cn != null && MAXDISTANCE > Distance.distance(mn, cn)) {
+            assigned++;
+         }
+      }
+      return assigned;
+   }
+
+   @Benchmark
+   public int pointIndex() {
+      index_.build(x_, y_, x_.length, MAXDISTANCE);
+      int assigned = 0;
+      for (Point2D.Double mn : microNuclei_) {
+         if (index_.nearest(mn.x, mn.y, MAXDISTANCE) >= 0) {
+            assigned++;
+         }
+      }
+      return assigned;
+   }
+
+}
@@ -0,0 +1,115 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei.bench.jmh;
+
+import ij.process.ByteProcessor;
+import java.util.concurrent.TimeUnit;
+import org.micromanager.micronuclei.analysis.BinaryMask;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Thresholding and binary closing (dilate followed by erode) of the nuclei
+ * in a synthetic field: ByteProcessor with a byte per pixel versus 
+ * BinaryMask with a bit per pixel.  The masks are restored before each
+ * closing, the copy is included in the time
+ *
+ * @author nico
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MorphologyBenchmark {
+   @Param({"1024", "2048"})
+   public int size;
+
+   @Param({"sparse", "dense"})
+   public String density;
+
+   private short[] pixels_;
+   private int threshold_;
+   private byte[] mask_;
+   private ByteProcessor byteMask_;
+   private BinaryMask bits_;
+   private BinaryMask bitsTmp_;
+   private long[] bitsCopy_;
+
+   @Setup
+   public void setup() throws Exception {
+      pixels_ = (short[]) BenchmarkImages.field(size, density).pix;
+      long sum = 0;
+      for (short s : pixels_) {
+         sum += s & 0xffff;
+      }
+      threshold_ = (int) (sum / pixels_.length);
+      mask_ = new byte[size * size];
+      for (int i = 0; i < mask_.length; i++) {
+         mask_[i] = (pixels_[i] & 0xffff) >= threshold_ ? (byte) 255 : 0;
+      }
+      byteMask_ = new ByteProcessor(size, size, new byte[size * size]);
+      bits_ = new BinaryMask(size, size);
+      bitsTmp_ = new BinaryMask(size, size);
+      bits_.fromMask(mask_);
+      bitsCopy_ = bits_.getBits().clone();
+   }
+
+   @Benchmark
+   public byte[] thresholdBytes() {
+      byte[] out = (byte[]) byteMask_.getPixels();
+      for (int i = 0; i < out.length; i++) {
+         out[i] = (pixels_[i] & 0xffff) >= threshold_ ? (byte) 255 : 0;
+      }
+      return out;
+   }
+
+   @Benchmark
+   public BinaryMask thresholdBits() {
+      bits_.threshold(pixels_, threshold_);
+      return bits_;
+   }
+
+   @Benchmark
+   public ByteProcessor closeBytes() {
+      System.arraycopy(mask_, 0, byteMask_.getPixels(), 0, mask_.length);
+      byteMask_.dilate(1, 0);
+      byteMask_.erode(1, 0);
+      return byteMask_;
+   }
+
+   @Benchmark
+   public BinaryMask closeBits() {
+      System.arraycopy(bitsCopy_, 0, bits_.getBits(), 0, bitsCopy_.length);
+      bits_.close(bitsTmp_);
+      return bits_;
+   }
+
+}
@@ -0,0 +1,94 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei.bench.jmh;
+
+import ij.ImagePlus;
+import ij.plugin.ImageCalculator;
+import ij.process.FloatProcessor;
+import ij.process.ShortProcessor;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import mmcorej.TaggedImage;
+import org.micromanager.micronuclei.analysis.ImageNormalizer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Background and flatfield correction: ImageNormalizer versus the 
+ * ImageCalculator based code it replaced (Subtract, Divide to float, 
+ * convert back to 16-bit)
+ *
+ * @author nico
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NormalizeBenchmark {
+   @Param({"512", "1024", "2048"})
+   public int size;
+
+   private TaggedImage image_;
+   private ImagePlus background_;
+   private ImagePlus flatField_;
+   private ImageNormalizer normalizer_;
+
+   @Setup
+   public void setup() throws Exception {
+      image_ = BenchmarkImages.field(size, "dense");
+      Random random = new Random(BenchmarkImages.SEED);
+      ShortProcessor background = new ShortProcessor(size, size);
+      FloatProcessor flatField = new FloatProcessor(size, size);
+      for (int i = 0; i < size * size; i++) {
+         background.set(i, 90 + random.nextInt(30));
+         flatField.setf(i, 0.7f + 0.6f * random.nextFloat());
+      }
+      background_ = new ImagePlus("background", background);
+      flatField_ = new ImagePlus("flatfield", flatField);
+      normalizer_ = new ImageNormalizer(background_, flatField_);
+   }
+
+   @Benchmark
+   public TaggedImage imageNormalizer() throws Exception {
+      return normalizer_.normalize(image_);
+   }
+
+   @Benchmark
+   public Object imageCalculator() {
+      ImageCalculator ic = new ImageCalculator();
+      ImagePlus imp = new ImagePlus("tmp", new ShortProcessor(size, size,
+              ((short[]) image_.pix).clone(), null));
+      ic.run("Subtract", imp, background_);
+      imp = ic.run("Divide, float, 32", imp, flatField_);
+      return imp.getProcessor().convertToShort(false).getPixels();
+   }
+
+}
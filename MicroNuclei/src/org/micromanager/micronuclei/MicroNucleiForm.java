@@ -25,26 +25,21 @@ import org.micromanager.micronuclei.analysisinterface.AnalysisModule;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.WindowManager;
-import ij.gui.PolygonRoi;
 import ij.gui.Roi;
 import ij.io.Opener;
 import ij.measure.ResultsTable;
-import ij.plugin.ImageCalculator;
 import ij.text.TextPanel;
 import ij.text.TextWindow;
 import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Font;
 import java.awt.Insets;
-import java.awt.Polygon;
 import java.awt.Rectangle;
 import java.awt.Window;
 import java.awt.dnd.DropTarget;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.prefs.Preferences;
@@ -55,21 +50,30 @@ import javax.swing.JComboBox;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
 import javax.swing.JTextField;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 import javax.swing.border.TitledBorder;
 import mmcorej.TaggedImage;
 import net.miginfocom.swing.MigLayout;
 import org.json.JSONException;
-import org.json.JSONObject;
 import org.micromanager.acquisition.MMAcquisition;
 import org.micromanager.api.MMWindow;
 import org.micromanager.api.MultiStagePosition;
 import org.micromanager.api.PositionList;
 import org.micromanager.api.ScriptInterface;
+import org.micromanager.micronuclei.analysis.ImageNormalizer;
 import org.micromanager.micronuclei.analysis.MicroNucleiAnalysisModule;
+import org.micromanager.micronuclei.analysisinterface.AnalysisParameters;
 import org.micromanager.micronuclei.analysisinterface.AnalysisProperty;
-import org.micromanager.micronuclei.analysisinterface.PropertyException;
+import org.micromanager.micronuclei.analysisinterface.AnalysisResult;
+import org.micromanager.micronuclei.analysisinterface.ObjectMeasurement;
 import org.micromanager.micronuclei.gui.PropertyGUI;
-import org.micromanager.projector.ProjectorControlForm;
+import org.micromanager.micronuclei.hardware.MMMicroscope;
+import org.micromanager.micronuclei.metrics.Metrics;
+import org.micromanager.micronuclei.metrics.MetricsRegistry;
+import org.micromanager.micronuclei.screen.ResultSink;
+import org.micromanager.micronuclei.screen.ScreenListener;
+import org.micromanager.micronuclei.screen.ScreenRunner;
 import org.micromanager.utils.FileDialogs;
 import org.micromanager.utils.ImageUtils;
 import org.micromanager.utils.MMFrame;
@@ -97,12 +101,18 @@ public class MicroNucleiForm extends MMFrame {
    private final JComboBox AfterZapChannelComboBox_;
    private final JCheckBox doZap_;
    private final JCheckBox showMasks_;
+   private final JCheckBox acquireFirst_;
+   private final JCheckBox batchZap_;
+   private final JCheckBox speculativeMoves_;
+   private final JCheckBox recordTimings_;
+   private final JTextField autofocusTextField_;
    private final JTextField backgroundTextField_;
    private final JTextField flatfieldTextField_;
    private final Preferences prefs_;
    
    private ImagePlus background_;
    private ImagePlus flatfield_;
+   private ImageNormalizer normalizer_;
    
    private final String SAVELOCATION = "SaveLocation";
    private final String IMAGINGCHANNEL = "ImagingChannel";
@@ -111,9 +121,19 @@ public class MicroNucleiForm extends MMFrame {
    private final String AFTERZAPCHANNEL = "AfterZapChannel";
    private final String DOZAP = "DoZap";
    private final String SHOWMASKS = "ShowMasks";
+   private final String ACQUIREFIRST = "AcquireFirst";
+   private final String BATCHZAP = "BatchZap";
+   private final String SPECULATIVEMOVES = "SpeculativeMoves";
+   private final String RECORDTIMINGS = "RecordTimings";
+   private final String AUTOFOCUSINTERVAL = "AutofocusInterval";
    private final String BACKGROUNDLOCATION = "BackgroundLocation";
    private final String FLATFIELDLOCATION = "FlatfieldLocation";
    
+   // images that can wait to be saved before the screen waits for the 
+   // disk, and ms between updates of the list of hits during a screen
+   private final int WRITEQUEUESIZE = 8;
+   private final int RESULTSREFRESHMS = 1000;
+   
    private final AtomicBoolean stop_ = new AtomicBoolean(false);
    
    private final AnalysisModule analysisModule_;
@@ -295,7 +315,73 @@ public class MicroNucleiForm extends MMFrame {
               prefs_.putBoolean(SHOWMASKS, showMasks_.isSelected());
          }
       });
-      add (showMasks_, "wrap");
+      add (showMasks_);
+      
+      acquireFirst_ = new JCheckBox("Acquire all first");
+      acquireFirst_.setSelected(prefs_.getBoolean(ACQUIREFIRST, false));
+      acquireFirst_.setFont(arialSmallFont_);
+      acquireFirst_.setToolTipText("<html>Image and analyze all sites first, " +
+              "then revisit and zap<br>only the sites with hits</html>");
+      acquireFirst_.addActionListener(new ActionListener() {
+         @Override
+         public void actionPerformed(ActionEvent ae) {
+              prefs_.putBoolean(ACQUIREFIRST, acquireFirst_.isSelected());
+         }
+      });
+      add (acquireFirst_, "wrap");
+      
+      batchZap_ = new JCheckBox("Batch zapping");
+      batchZap_.setSelected(prefs_.getBoolean(BATCHZAP, false));
+      batchZap_.setFont(arialSmallFont_);
+      batchZap_.setToolTipText("<html>Send all hits of a site to the galvo " +
+              "at once, in an order<br>that keeps the distance between " + 
+              "them short</html>");
+      batchZap_.addActionListener(new ActionListener() {
+         @Override
+         public void actionPerformed(ActionEvent ae) {
+              prefs_.putBoolean(BATCHZAP, batchZap_.isSelected());
+         }
+      });
+      add (batchZap_);
+      
+      speculativeMoves_ = new JCheckBox("Move ahead");
+      speculativeMoves_.setSelected(prefs_.getBoolean(SPECULATIVEMOVES, false));
+      speculativeMoves_.setFont(arialSmallFont_);
+      speculativeMoves_.setToolTipText("<html>Move the stage to the next site " +
+              "while a site is analyzed,<br>and return to the site when it " + 
+              "has hits</html>");
+      speculativeMoves_.addActionListener(new ActionListener() {
+         @Override
+         public void actionPerformed(ActionEvent ae) {
+              prefs_.putBoolean(SPECULATIVEMOVES, 
+                      speculativeMoves_.isSelected());
+         }
+      });
+      add (speculativeMoves_);
+      
+      recordTimings_ = new JCheckBox("Record timings");
+      recordTimings_.setSelected(prefs_.getBoolean(RECORDTIMINGS, false));
+      recordTimings_.setFont(arialSmallFont_);
+      recordTimings_.setToolTipText("<html>Measure how long each step takes, " +
+              "and write the<br>statistics to " + ScreenRunner.METRICSFILE + 
+              " in the save location</html>");
+      recordTimings_.addActionListener(new ActionListener() {
+         @Override
+         public void actionPerformed(ActionEvent ae) {
+              prefs_.putBoolean(RECORDTIMINGS, recordTimings_.isSelected());
+         }
+      });
+      add (recordTimings_, "wrap");
+      
+      add(myLabel(arialSmallFont_, "Autofocus every"), "span 3, split 3");
+      autofocusTextField_ = new JTextField(
+              prefs_.get(AUTOFOCUSINTERVAL, "0"), 3);
+      autofocusTextField_.setFont(arialSmallFont_);
+      autofocusTextField_.setToolTipText("<html>Run the autofocus at every " +
+              "n-th site only, and move to the focus<br>predicted from " + 
+              "these at the other sites.  0 leaves the focus alone</html>");
+      add(autofocusTextField_);
+      add(myLabel(arialSmallFont_, "sites"), "wrap");
       
             
       final JButton runButton = myButton(buttonSize_, arialSmallFont_, "Run");
@@ -439,6 +525,12 @@ public class MicroNucleiForm extends MMFrame {
                background_ = opener.openImage(backgroundTextField_.getText());
             if (!flatfieldTextField_.getText().equals(""))
                flatfield_ = opener.openImage(flatfieldTextField_.getText());            
+            try {
+               normalizer_ = new ImageNormalizer(background_, flatfield_);
+            } catch (IllegalArgumentException iae) {
+               ReportingUtils.showError(iae, "Can not use background and flatfield images");
+               return;
+            }
             if (!testing_) {
                warnAboutMissingCorrections(background_, flatfield_);
                runAnalysisAndZapping(saveTextField_.getText());
@@ -477,9 +569,8 @@ public class MicroNucleiForm extends MMFrame {
     * 
     * @throws MMScriptException
     * @throws JSONException 
-    * @throws org.micromanager.micronuclei.analysisinterface.PropertyException 
     */
-   public void runTest() throws MMScriptException, JSONException, PropertyException {
+   public void runTest() throws MMScriptException, JSONException {
       ImagePlus ip;
       try {
          ip = IJ.getImage();
@@ -495,15 +586,21 @@ public class MicroNucleiForm extends MMFrame {
          oldOutTable.dispose();
       }
       
-      JSONObject parms = analysisSettings(showMasks_.isSelected());
+      AnalysisParameters parms = analysisModule_.getParameters(
+              showMasks_.isSelected());
+      int nucleusCount = 0;
+      int hitCount = 0;
 
       MMWindow mw = new MMWindow(ip);
       if (!mw.isMMWindow()) {
          TaggedImage tImg = ImageUtils.makeTaggedImage(ip.getProcessor());
          tImg.tags.put("PixelSizeUm", ip.getCalibration().pixelWidth);
-         normalize(tImg, background_, flatfield_);
-         Roi[] zapRois = analysisModule_.analyze(tImg, parms);
-         for (Roi roi : zapRois) {
+         AnalysisResult result = analysisModule_.analyze(
+                 normalizer_.normalize(tImg), parms);
+         nucleusCount += result.getNucleusCount();
+         hitCount += result.getHitCount();
+         showObjects(result);
+         for (Roi roi : result.getHits()) {
             outTable.incrementCounter();
             Rectangle bounds = roi.getBounds();
             int x = bounds.x + (int) (0.5 * bounds.width);
@@ -526,9 +623,11 @@ public class MicroNucleiForm extends MMFrame {
                if (nrPositions == 1 || mw.getImageMetadata(0, 0, 0, p) != null) {
                   TaggedImage tImg = ImageUtils.makeTaggedImage(ip.getProcessor());
                   tImg.tags.put("PixelSizeUm", ip.getCalibration().pixelWidth);
-                  normalize(tImg, background_, flatfield_);
-                  Roi[] zapRois = analysisModule_.analyze(tImg, parms);
-                  for (Roi roi : zapRois) {
+                  AnalysisResult result = analysisModule_.analyze(
+                          normalizer_.normalize(tImg), parms);
+                  nucleusCount += result.getNucleusCount();
+                  hitCount += result.getHitCount();
+                  for (Roi roi : result.getHits()) {
                      outTable.incrementCounter();
                      Rectangle bounds = roi.getBounds();
                      int x = bounds.x + (int) (0.5 * bounds.width);
@@ -565,9 +664,8 @@ public class MicroNucleiForm extends MMFrame {
          frame.setVisible(true);
       }
       
-      ij.IJ.log("Analyzed " + parms.getString(AnalysisModule.CELLCOUNT) + 
-              " nuclei, found " + parms.getString(AnalysisModule.OBJECTCOUNT) +
-                      " nuclei with micronuclei" );
+      ij.IJ.log("Analyzed " + nucleusCount + 
+              " nuclei, found " + hitCount + " nuclei with micronuclei" );
       
       
    }
@@ -577,22 +675,10 @@ public class MicroNucleiForm extends MMFrame {
       
       // Analysis class, in the future we could have a choice of these
       
-      String channelGroup = gui_.getMMCore().getChannelGroup();
-      
-      //TODO: error checking for file IO!
       gui_.closeAllAcquisitions();
-      new File(saveLocation).mkdirs();
-      File resultsFile = new File(saveLocation + File.separator + "results.txt");
-      resultsFile.createNewFile();
-      BufferedWriter resultsWriter = new BufferedWriter(new FileWriter(resultsFile));
 
       PositionList posList = gui_.getPositionList();
       MultiStagePosition[] positions = posList.getPositions();
-      String currentWell = "";
-      int nrChannels = 1;
-      if (secondImagingChannel_ != null && secondImagingChannel_.length() > 1) {
-         nrChannels = 2;
-      }
       
       ResultsTable outTable = new ResultsTable();
       String outTableName = Terms.RESULTTABLENAME;
@@ -602,114 +688,59 @@ public class MicroNucleiForm extends MMFrame {
          oldOutTable.dispose();
       }
       
-      int nrImagesPerWell = 0;
       int wellCount = 0;
-      
-      // figure out how many sites per there are, we actually get that number 
-      // from the last well
+      String currentWell = "";
       for (MultiStagePosition msp : positions) {
-         String label = msp.getLabel();
-         String well = label.split("-")[0];
+         String well = msp.getLabel().split("-")[0];
          if (!currentWell.equals(well)) {
             currentWell = well;
             wellCount++;
-            nrImagesPerWell = 1;
-         } else
-            nrImagesPerWell++;
+         }
       }
-      gui_.message("Images per well: " + nrImagesPerWell);
       
-      // start cycling through the sites and group everything by well
-      int count = 0;
-      int siteCount = 0;
-      JSONObject parms = analysisSettings(showMasks_.isSelected());
-      currentWell = "";
-      for (MultiStagePosition msp : positions) {
-         if (stop_.get()) {
-            resultsWriter.close();
-            return;
-         }
-         String label = msp.getLabel();
-         String well = label.split("-")[0];
-         if (!currentWell.equals(well)) {
-            // new well
-            gui_.message("Starting well: " + well);
-            if (!currentWell.equals("")) {
-               recordResults(resultsWriter, currentWell, parms);
-            }
-            currentWell = well;
-            siteCount = 0;
-            gui_.openAcquisition(well, saveLocation, 1, nrChannels + 1, 1, nrImagesPerWell, true, true);
-            analysisModule_.reset();
-            // reset cell and object counters
-            parms.put(AnalysisModule.CELLCOUNT, 0);
-            parms.put(AnalysisModule.OBJECTCOUNT, 0);
-         }
-         MultiStagePosition.goToPosition(msp, gui_.getMMCore());
-         gui_.getMMCore().waitForSystem();
-         gui_.message("Site: " + msp.getLabel() + ", x: " + msp.get(0).x + ", y: " + msp.get(0).y) ;
-         gui_.getMMCore().setConfig(channelGroup, imagingChannel_);
-         gui_.getMMCore().snapImage();
-         TaggedImage tImg = gui_.getMMCore().getTaggedImage();
-         gui_.addImageToAcquisition(well, 0, 0, 0, siteCount, tImg);
-         try {
-            MMAcquisition acqObject = gui_.getAcquisition(well);
-            acqObject.setChannelName(0, imagingChannel_);
-         } catch (MMScriptException ex) {
-            // ignore since we do not want to crash our acquisition  
-         }
-         if (nrChannels == 2) {
-            gui_.getMMCore().setConfig(channelGroup, secondImagingChannel_);
-            gui_.getMMCore().snapImage();
-            TaggedImage t2Img = gui_.getMMCore().getTaggedImage();
-            gui_.addImageToAcquisition(well, 0, 1, 0, siteCount, t2Img);
-            MMAcquisition acqObject = gui_.getAcquisition(well);
-            try {
-               acqObject.setChannelColor(1, new Color(0, 0, 255).getRGB());
-               acqObject.setChannelName(1, secondImagingChannel_);
-            } catch (MMScriptException ex) {
-               // ignore since we do not want to crash our acquisition  
-            }
-         }
-         gui_.getMMCore().setConfig(channelGroup, zapChannel_);
-         
-         // analyze the second channel if that is the one we took
-         
-         // Analyze and zap
-         normalize(tImg, background_, flatfield_);
-         Roi[] zapRois = analysisModule_.analyze(tImg, parms);
-         if (zapRois != null) {
-            zap(zapRois);
-            for (Roi roi : zapRois) {
-               outTable.incrementCounter();
-               Rectangle bounds = roi.getBounds();
-               int x = bounds.x + (int) (0.5 * bounds.width);
-               int y = bounds.y + (int) (0.5 * bounds.height);
-               outTable.addValue(Terms.X, x);
-               outTable.addValue(Terms.Y, y);
-               outTable.addValue(Terms.POSITION, siteCount);
-            }
-            outTable.show(outTableName);
-
-            if (zapRois.length > 0) {
-               String acq2 = msp.getLabel();
-               gui_.message("Imaging zapped cells at site: " + acq2);
-               // take the red image and save it
-               gui_.getMMCore().setConfig(channelGroup, afterZapChannel_);
-               gui_.getMMCore().snapImage();
-               TaggedImage tImg2 = gui_.getMMCore().getTaggedImage();
-               gui_.addImageToAcquisition(well, 0, nrChannels, 0, siteCount, tImg2);
-               MMAcquisition acqObject = gui_.getAcquisition(well);
-               try {
-                  acqObject.setChannelColor(nrChannels, new Color(255, 0, 0).getRGB());
-                  acqObject.setChannelName(nrChannels, "zapped");
-               } catch (Exception ex) {
-                  // ignore since we do not want to crash our acquisition  
-               }
+      MMMicroscope microscope = new MMMicroscope(gui_);
+      microscope.setBatchZap(batchZap_.isSelected());
+      ScreenRunner runner = new ScreenRunner(microscope, 
+              analysisModule_, normalizer_, 
+              new AcquisitionListener(saveLocation), stop_);
+      runner.setChannels(imagingChannel_, secondImagingChannel_, zapChannel_, 
+              afterZapChannel_);
+      runner.setSpeculativeMoves(speculativeMoves_.isSelected());
+      runner.setWriteQueueSize(WRITEQUEUESIZE);
+      int autofocusInterval;
+      try {
+         autofocusInterval = Integer.parseInt(
+                 autofocusTextField_.getText().trim());
+      } catch (NumberFormatException nfe) {
+         ReportingUtils.showError("Autofocus interval should be a number");
+         return;
+      }
+      prefs_.put(AUTOFOCUSINTERVAL, Integer.toString(autofocusInterval));
+      runner.setAutofocusInterval(autofocusInterval);
+      AnalysisParameters parms = analysisModule_.getParameters(
+              showMasks_.isSelected());
+      if (recordTimings_.isSelected()) {
+         Metrics.enable(new MetricsRegistry());
+      }
+      final HitsTableUpdater updater = new HitsTableUpdater(runner, outTable);
+      Timer refreshTimer = new Timer(RESULTSREFRESHMS, updater);
+      refreshTimer.start();
+      int count;
+      try {
+         count = runner.run(positions, parms, acquireFirst_.isSelected(), 
+                 saveLocation);
+      } finally {
+         Metrics.disable();
+         refreshTimer.stop();
+         SwingUtilities.invokeAndWait(new Runnable() {
+            @Override
+            public void run() {
+               updater.update(true);
             }
-         }
-         siteCount++;
-         count++;
+         });
+      }
+      if (count < 0) {
+         return;
       }
 
       // add listeners to our ResultsTable that let user click on row and go 
@@ -727,71 +758,118 @@ public class MicroNucleiForm extends MMFrame {
          frame.toFront();
          frame.setVisible(true);
       }
-      
-      
-      // record the results from the last well:
-      recordResults(resultsWriter, currentWell, parms);
 
-      resultsWriter.close();
       String msg = "Analyzed " + count + " images, in " + wellCount + " wells.";
       gui_.message(msg);
       ReportingUtils.showMessage(msg);
    }
    
-   private void recordResults(BufferedWriter resultsWriter, String currentWell,
-           final JSONObject parms) throws IOException, MMScriptException {
-      resultsWriter.write(currentWell + "\t" + 
-              parms.optInt(AnalysisModule.CELLCOUNT) + "\t" +
-              parms.optInt(AnalysisModule.OBJECTCOUNT) );
-      resultsWriter.newLine();
-      resultsWriter.flush();
-      gui_.message(currentWell + " " + parms.optInt(AnalysisModule.CELLCOUNT) + 
-              "    " + parms.optInt(AnalysisModule.OBJECTCOUNT) );
-   }
-   
    /**
-    * Generates an initialized JSONObject to be used to communicate analysis settings
-    * @param showMask - whether or not to show the masks during analysis
-    * @return initialized JSONObject with default analysis settings
-    * @throws JSONException 
+    * Stores the images of a screen in Micro-Manager acquisitions (one per 
+    * well).  Hits are listed by the HitsTableUpdater
     */
-   private JSONObject analysisSettings(boolean showMask) throws JSONException {
-      JSONObject parms = new JSONObject();
-      parms.put(AnalysisModule.SHOWMASKS, showMask);
-      parms.put(AnalysisModule.CELLCOUNT, 0);
-      parms.put(AnalysisModule.OBJECTCOUNT, 0);
-      return parms;
-   }
+   private class AcquisitionListener implements ScreenListener {
+      private final String saveLocation_;
+      
+      public AcquisitionListener(String saveLocation) {
+         saveLocation_ = saveLocation;
+      }
+
+      @Override
+      public void message(String msg) {
+         gui_.message(msg);
+      }
+
+      @Override
+      public void wellStarted(String well, int nrSites, int nrChannels) 
+              throws MMScriptException {
+         gui_.openAcquisition(well, saveLocation_, 1, nrChannels, 1, nrSites, 
+                 true, true);
+      }
+
+      @Override
+      public void imageAcquired(String well, int channel, String channelName,
+              int site, TaggedImage image) throws MMScriptException {
+         gui_.addImageToAcquisition(well, 0, channel, 0, site, image);
+         try {
+            MMAcquisition acqObject = gui_.getAcquisition(well);
+            if (channelName.equals(ScreenRunner.ZAPPEDCHANNEL)) {
+               acqObject.setChannelColor(channel, new Color(255, 0, 0).getRGB());
+            } else if (channel == 1) {
+               acqObject.setChannelColor(channel, new Color(0, 0, 255).getRGB());
+            }
+            acqObject.setChannelName(channel, channelName);
+         } catch (Exception ex) {
+            // ignore since we do not want to crash our acquisition  
+         }
+      }
 
+      @Override
+      public void hitsFound(String well, int site, Roi[] hits) {
+      }
+
+      @Override
+      public void wellFinished(String well, int nucleusCount, int hitCount) {
+         gui_.message(well + " " + nucleusCount + "    " + hitCount);
+      }
+   }
+   
    /**
-    * Photoconverts the provided ROIs
-    * @param rois
-    * @throws MMScriptException 
+    * Adds the hits found since the last update to the ImageJ ResultsTable.
+    * Showing the table redraws all of it, so it is done at a fixed rate
+    * rather than for every site.  Runs on the EDT, driven by a Timer
     */
-   private void zap(Roi[] rois) throws MMScriptException {
-      if (rois == null)
-         return;
-      ProjectorControlForm pcf
-              = ProjectorControlForm.showSingleton(gui_.getMMCore(), gui_);
-      int i;
-      // convert zapRois in a Roi[] of Polygon Rois
-      for (i = 0; i < rois.length; i++) {
-         Polygon poly = rois[i].getConvexHull();
-         rois[i] = new PolygonRoi(poly, Roi.POLYGON);
+   private static class HitsTableUpdater implements ActionListener {
+      private final ScreenRunner runner_;
+      private final ResultsTable outTable_;
+      private int nrShown_ = 0;
+      
+      public HitsTableUpdater(ScreenRunner runner, ResultsTable outTable) {
+         runner_ = runner;
+         outTable_ = outTable;
       }
 
-      // send to the galvo device and zap them for real
-      pcf.setNrRepetitions(5);
-      for (i = 0; i < rois.length; i++) {
-         gui_.message("Zapping " + (i + 1) + " of " + rois.length);
-         Roi[] theRois = {rois[i]};
-         pcf.setROIs(theRois);
-         pcf.updateROISettings();
-         pcf.getDevice().waitForDevice();
-         pcf.runRois();
-         pcf.getDevice().waitForDevice();
+      @Override
+      public void actionPerformed(ActionEvent ae) {
+         update(false);
+      }
+      
+      /**
+       * @param show when true the table is shown, also when there are no 
+       *             new hits
+       */
+      public void update(boolean show) {
+         ResultSink results = runner_.getResults();
+         int nrHits = results == null ? 0 : results.getNrHits();
+         for (int i = nrShown_; i < nrHits; i++) {
+            outTable_.incrementCounter();
+            outTable_.addValue(Terms.X, results.getHitX(i));
+            outTable_.addValue(Terms.Y, results.getHitY(i));
+            outTable_.addValue(Terms.POSITION, results.getHitSite(i));
+         }
+         if (show || nrHits > nrShown_) {
+            outTable_.show(Terms.RESULTTABLENAME);
+         }
+         nrShown_ = nrHits;
       }
-
+   }
+   
+   /**
+    * Shows the measurements of all objects found in an image in the 
+    * ImageJ Results table
+    * @param result outcome of the analysis of a single image
+    */
+   private void showObjects(AnalysisResult result) {
+      ResultsTable res = ResultsTable.getResultsTable();
+      res.reset();
+      for (ObjectMeasurement om : result.getObjects()) {
+         res.incrementCounter();
+         res.addValue(Terms.X, om.getX());
+         res.addValue(Terms.Y, om.getY());
+         res.addValue("# mN", om.getNrMicroNuclei());
+         res.addValue("Zap", om.getZap() ? 1 : 0);
+      }
+      res.show("Results");
    }
    
    /**
@@ -806,34 +884,6 @@ public class MicroNucleiForm extends MMFrame {
       return myBorder;
    }
   
-   /**
-    * Normalize input image as follows:  (image - background) / flatfield
-    * Flatfield image should have been background subtracted and normalized 
-    * at 1.0 for the average pixels values to stay the same
-    * @param input Image to be normalized
-    * @param background image
-    * @param flatField image with average value of 1.0 representing flatness of field
-    * @return normalized image
-    */
-   public static TaggedImage normalize(TaggedImage input, ImagePlus background,
-           ImagePlus flatField) {
-      ImageCalculator ic = new ImageCalculator();
-      // TODO: deal with image of incompatible size and/or type
-      if (flatField != null) {
-         ImagePlus imp = new ImagePlus("tmp", ImageUtils.makeProcessor(input));
-         if (background != null) {
-            ic.run("Subtract", imp, background);
-         }
-         imp = ic.run("Divide, float, 32", imp, flatField);
-         IJ.run(imp, "16-bit", "");
-         TaggedImage tImg = new TaggedImage(imp.getProcessor().getPixels(), 
-                 input.tags);
-         return tImg;
-      }
-      
-      return input;
-   }
-   
    private static void warnAboutMissingCorrections(ImagePlus background, 
            ImagePlus flatfield) {
       if (background == null) {
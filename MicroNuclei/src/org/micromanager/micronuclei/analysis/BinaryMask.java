@@ -0,0 +1,295 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei.analysis;
+
+import ij.process.ByteProcessor;
+import java.util.Arrays;
+
+/**
+ * Binary image with one bit per pixel, for fast morphology.
+ * 
+ * Every row starts at a new long, pixel x of a row is bit x % 64 of word 
+ * x / 64, and the bits beyond the width of the image are always 0.  Dilate 
+ * and erode use the 3x3 neighborhood, with pixels outside the image 
+ * counting as background, as the binary commands of ImageJ do with
+ * black background.  They work on 64 pixels at a time: the neighbors to the
+ * left and right are found by shifting each word by one bit and moving in
+ * the bit of the neighboring word, and rows are then combined with those
+ * above and below.
+ * 
+ * Instances are not thread safe.
+ *
+ * @author nico
+ */
+public class BinaryMask {
+   private static final byte FOREGROUND = (byte) 255;
+
+   private final int width_;
+   private final int height_;
+   private final int wordsPerRow_;
+   private final long[] bits_;
+   // bits of the last word of a row that are inside the image
+   private final long lastWordMask_;
+   // rows used while combining rows in place
+   private final long[] above_;
+   private final long[] current_;
+
+   /**
+    * Creates an empty mask
+    * @param width width in pixels
+    * @param height height in pixels
+    */
+   public BinaryMask(int width, int height) {
+      width_ = width;
+      height_ = height;
+      wordsPerRow_ = (width + 63) >>> 6;
+      bits_ = new long[wordsPerRow_ * height];
+      lastWordMask_ = (width & 63) == 0 ? -1L : (1L << (width & 63)) - 1;
+      above_ = new long[wordsPerRow_];
+      current_ = new long[wordsPerRow_];
+   }
+
+   public int getWidth() {
+      return width_;
+   }
+
+   public int getHeight() {
+      return height_;
+   }
+
+   public int getWordsPerRow() {
+      return wordsPerRow_;
+   }
+
+   /**
+    * @return the bits of the mask, row after row, not a copy
+    */
+   public long[] getBits() {
+      return bits_;
+   }
+
+   public boolean get(int x, int y) {
+      return (bits_[y * wordsPerRow_ + (x >>> 6)] & (1L << x)) != 0;
+   }
+
+   public void set(int x, int y, boolean foreground) {
+      int index = y * wordsPerRow_ + (x >>> 6);
+      if (foreground) {
+         bits_[index] |= 1L << x;
+      } else {
+         bits_[index] &= ~(1L << x);
+      }
+   }
+
+   /**
+    * @return number of foreground pixels
+    */
+   public int count() {
+      int count = 0;
+      for (long word : bits_) {
+         count += Long.bitCount(word);
+      }
+      return count;
+   }
+
+   /**
+    * Sets the pixels at or above the threshold to foreground, and all 
+    * others to background
+    * @param pixels 16-bit image of the same size as the mask
+    * @param lower lowest pixel value (unsigned) that is foreground
+    */
+   public void threshold(short[] pixels, int lower) {
+      final int last = lower - 1;
+      for (int y = 0; y < height_; y++) {
+         int offset = y * width_;
+         int index = y * wordsPerRow_;
+         for (int x0 = 0; x0 < width_; x0 += 64) {
+            int start = offset + x0;
+            long word = 0L;
+            // shift in from the left, so that the first pixel ends up in bit 0
+            for (int i = start + Math.min(64, width_ - x0) - 1; i >= start; i--) {
+               // 1 when the pixel is at or above the threshold
+               word = (word << 1) | ((last - (pixels[i] & 0xffff)) >>> 31);
+            }
+            bits_[index++] = word;
+         }
+      }
+   }
+
+   /**
+    * Reads a mask with one byte per pixel
+    * @param mask mask of the same size, any value other than 0 is foreground
+    */
+   public void fromMask(byte[] mask) {
+      for (int y = 0; y < height_; y++) {
+         int offset = y * width_;
+         int index = y * wordsPerRow_;
+         for (int x0 = 0; x0 < width_; x0 += 64) {
+            int n = Math.min(64, width_ - x0);
+            long word = 0L;
+            for (int b = 0; b < n; b++) {
+               if (mask[offset + x0 + b] != 0) {
+                  word |= 1L << b;
+               }
+            }
+            bits_[index++] = word;
+         }
+      }
+   }
+
+   /**
+    * Writes the mask with one byte per pixel
+    * @param mask array of the same size, receives 255 for foreground and 0 
+    *             for background
+    */
+   public void toMask(byte[] mask) {
+      for (int y = 0; y < height_; y++) {
+         int offset = y * width_;
+         int index = y * wordsPerRow_;
+         for (int x0 = 0; x0 < width_; x0 += 64) {
+            int n = Math.min(64, width_ - x0);
+            long word = bits_[index++];
+            for (int b = 0; b < n; b++) {
+               mask[offset + x0 + b] = (byte) -((int) (word >>> b) & 1);
+            }
+         }
+      }
+   }
+
+   /**
+    * @return new ByteProcessor with the foreground in white on a black 
+    *         background
+    */
+   public ByteProcessor toByteProcessor() {
+      byte[] mask = new byte[width_ * height_];
+      toMask(mask);
+      return new ByteProcessor(width_, height_, mask);
+   }
+
+   /**
+    * Binary dilation: pixels with at least one foreground pixel in their 
+    * 3x3 neighborhood become foreground
+    * @param out mask of the same size receiving the result, not this one
+    */
+   public void dilate(BinaryMask out) {
+      checkSize(out);
+      final int n = wordsPerRow_;
+      final long[] in = bits_;
+      final long[] result = out.bits_;
+      for (int y = 0; y < height_; y++) {
+         int row = y * n;
+         long previous = 0L;
+         long word = in[row];
+         for (int k = 0; k < n; k++) {
+            long next = k + 1 < n ? in[row + k + 1] : 0L;
+            result[row + k] = word | (word << 1) | (previous >>> 63)
+                    | (word >>> 1) | (next << 63);
+            previous = word;
+            word = next;
+         }
+         result[row + n - 1] &= lastWordMask_;
+      }
+      combineRows(result, false);
+   }
+
+   /**
+    * Binary erosion: pixels with at least one background pixel in their
+    * 3x3 neighborhood become background.  Since pixels outside the image 
+    * are background, the edge of the image becomes background
+    * @param out mask of the same size receiving the result, not this one
+    */
+   public void erode(BinaryMask out) {
+      checkSize(out);
+      final int n = wordsPerRow_;
+      final long[] in = bits_;
+      final long[] result = out.bits_;
+      for (int y = 0; y < height_; y++) {
+         int row = y * n;
+         long previous = 0L;
+         long word = in[row];
+         for (int k = 0; k < n; k++) {
+            long next = k + 1 < n ? in[row + k + 1] : 0L;
+            result[row + k] = word & ((word << 1) | (previous >>> 63))
+                    & ((word >>> 1) | (next << 63));
+            previous = word;
+            word = next;
+         }
+      }
+      combineRows(result, true);
+   }
+
+   /**
+    * Dilation followed by erosion, like ImageJ's "Close-" with 
+    * iterations and count set to 1
+    * @param tmp mask of the same size used for the intermediate result
+    */
+   public void close(BinaryMask tmp) {
+      dilate(tmp);
+      tmp.erode(this);
+   }
+
+   /**
+    * Erosion followed by dilation, like ImageJ's "Open" with iterations 
+    * and count set to 1
+    * @param tmp mask of the same size used for the intermediate result
+    */
+   public void open(BinaryMask tmp) {
+      erode(tmp);
+      tmp.dilate(this);
+   }
+
+   /**
+    * Replaces every row of bits by the OR (dilation) or AND (erosion) of 
+    * itself and the rows above and below, with the rows outside the image 
+    * being background
+    */
+   private void combineRows(long[] bits, boolean and) {
+      final int n = wordsPerRow_;
+      final long[] above = above_;
+      final long[] current = current_;
+      Arrays.fill(above, 0L);
+      for (int y = 0; y < height_; y++) {
+         int row = y * n;
+         int below = row + n;
+         boolean last = y == height_ - 1;
+         System.arraycopy(bits, row, current, 0, n);
+         if (and) {
+            for (int k = 0; k < n; k++) {
+               bits[row + k] = above[k] & current[k] 
+                       & (last ? 0L : bits[below + k]);
+            }
+         } else {
+            for (int k = 0; k < n; k++) {
+               bits[row + k] = above[k] | current[k] 
+                       | (last ? 0L : bits[below + k]);
+            }
+         }
+         System.arraycopy(current, 0, above, 0, n);
+      }
+   }
+
+   private void checkSize(BinaryMask out) {
+      if (out == this || out.width_ != width_ || out.height_ != height_) {
+         throw new IllegalArgumentException(
+                 "Expected a different mask of the same size");
+      }
+   }
+
+}
@@ -22,7 +22,6 @@ package org.micromanager.micronuclei.analysis;
 import java.awt.geom.Point2D;
 import java.util.ArrayList;
 import java.util.Map;
-import java.util.Set;
 
 /**
  * Utility function used for distance measurements
@@ -45,28 +44,19 @@ public class Distance {
    }
    
    /**
-    * Find the closest point in the HashMap for now, uses brute force search
+    * Find the closest point in the HashMap using brute force search.
+    * Use PointIndex when many points need to be looked up in the same map
     * @param p Search point, i.e. we are looking for the point closes to this one
     * @param l Map with points in which we are looking for the closest one
     * @return Point that is closest by
     */
    public static Point2D.Double closest(Point2D.Double p, 
            Map<Point2D.Double, ArrayList<Point2D.Double> > l) {
-      if (l.isEmpty()) {
-         return null;
-      }
-      Set<Point2D.Double> keySet =  l.keySet();
-      Point2D.Double[] pointList = new Point2D.Double[l.size()];
-      int counter = 0;
-      for (Object key : keySet) {
-         pointList[counter] = (Point2D.Double) key;
-         counter++;
-      }
-      Point2D.Double closestPoint = pointList[0];
-      double d = distance(p, closestPoint);
-      for (Point2D.Double p2   : pointList) {
+      Point2D.Double closestPoint = null;
+      double d = Double.POSITIVE_INFINITY;
+      for (Point2D.Double p2 : l.keySet()) {
          double dNew = distance(p, p2);
-         if (dNew < d) {
+         if (dNew < d || closestPoint == null) {
             d = dNew;
             closestPoint = p2;
          }
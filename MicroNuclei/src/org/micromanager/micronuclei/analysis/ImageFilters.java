@@ -0,0 +1,464 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei.analysis;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Filters of 16-bit images used by the segmentation: "Sharpen", and 
+ * "Smooth" followed by "Gaussian Blur..." done as a single filter.
+ * 
+ * The 3x3 mean of "Smooth" and the Gaussian are both separable, so their
+ * combination is one horizontal and one vertical pass with the Gaussian 
+ * kernel convolved with [1 1 1] / 3.  Both passes work row by row: the
+ * vertical pass adds whole rows multiplied by the kernel, so that memory is
+ * read sequentially.  As in ImageJ, pixels outside the image have the 
+ * value of the nearest edge pixel, and the kernel extends until it drops
+ * below 0.0002 of its maximum, the accuracy ImageJ uses for 16-bit images.
+ * Unlike ImageJ, the image is not rounded between smoothing and blurring,
+ * and large sigmas are not blurred at a reduced scale, so results differ
+ * by a few grey values at most.
+ * 
+ * In fast mode, the Gaussian is approximated by three box filters whose 
+ * widths are chosen to give the same variance, followed by the 3x3 box of 
+ * "Smooth".  Box filters take the same time for any sigma, but differ
+ * more from the Gaussian.  BlurBenchmark reports the differences of both 
+ * modes with ImageJ.
+ * 
+ * Rows can be divided in bands that are filtered at the same time.
+ * Buffers are re-used, instances are not thread safe.
+ *
+ * @author nico
+ */
+public class ImageFilters {
+   // accuracy used by ImageJ's "Gaussian Blur..." for 16-bit images
+   public static final double GAUSSIAN_ACCURACY = 0.0002;
+   private static final int NRBOXES = 3;
+
+   private ExecutorService executor_ = null;
+   private int nrBands_ = 1;
+   private boolean fast_ = false;
+
+   private double kernelSigma_ = -1.0;
+   private float[] kernel_;
+   private int[] boxes_;
+   private float[] buffer_ = new float[0];
+   private float[] buffer2_ = new float[0];
+   // one line for each band
+   private float[][] lines_ = new float[1][0];
+   private float[][] lines2_ = new float[1][0];
+
+   /**
+    * Splits the rows over several threads
+    * @param nrBands number of bands, 1 or less to filter in the calling 
+    *                thread
+    * @param executor runs the bands
+    */
+   public void setBands(int nrBands, ExecutorService executor) {
+      if (nrBands > 1 && executor != null) {
+         nrBands_ = nrBands;
+         executor_ = executor;
+      } else {
+         nrBands_ = 1;
+         executor_ = null;
+      }
+      lines_ = new float[nrBands_][0];
+      lines2_ = new float[nrBands_][0];
+   }
+
+   /**
+    * @param fast when true, the Gaussian is approximated with box filters
+    */
+   public void setFast(boolean fast) {
+      fast_ = fast;
+   }
+
+   public boolean isFast() {
+      return fast_;
+   }
+
+   /**
+    * 3x3 sharpening kernel (-1 everywhere, 12 in the center) with edge 
+    * pixels repeated, identical to ImageJ's "Sharpen"
+    * @param in 16-bit image
+    * @param out destination, not the input
+    * @param width width of the image
+    * @param height height of the image
+    */
+   public void sharpen(final short[] in, final short[] out, final int width, 
+           final int height) {
+      runInBands(height, new Band() {
+         @Override
+         public void run(int band, int from, int to) {
+            for (int y = from; y < to; y++) {
+               sharpenRow(in, out, width, height, y);
+            }
+         }
+      });
+   }
+
+   private static void sharpenRow(short[] in, short[] out, int w, int h, 
+           int y) {
+      int up = (y > 0 ? y - 1 : y) * w;
+      int row = y * w;
+      int down = (y < h - 1 ? y + 1 : y) * w;
+      // the edges, with the pixels outside the image repeated
+      sharpenPixel(in, out, up, row, down, 0, 0, Math.min(1, w - 1));
+      if (w > 1) {
+         sharpenPixel(in, out, up, row, down, w - 1, w - 2, w - 1);
+      }
+      for (int x = 1; x < w - 1; x++) {
+         int sum = 12 * (in[row + x] & 0xffff)
+                 - (in[up + x - 1] & 0xffff) - (in[up + x] & 0xffff)
+                 - (in[up + x + 1] & 0xffff)
+                 - (in[row + x - 1] & 0xffff) - (in[row + x + 1] & 0xffff)
+                 - (in[down + x - 1] & 0xffff) - (in[down + x] & 0xffff)
+                 - (in[down + x + 1] & 0xffff);
+         out[row + x] = clamp((sum + 2) / 4);
+      }
+   }
+
+   private static void sharpenPixel(short[] in, short[] out, int up, int row,
+           int down, int x, int left, int right) {
+      int sum = 12 * (in[row + x] & 0xffff)
+              - (in[up + left] & 0xffff) - (in[up + x] & 0xffff)
+              - (in[up + right] & 0xffff)
+              - (in[row + left] & 0xffff) - (in[row + right] & 0xffff)
+              - (in[down + left] & 0xffff) - (in[down + x] & 0xffff)
+              - (in[down + right] & 0xffff);
+      out[row + x] = clamp((sum + 2) / 4);
+   }
+
+   /**
+    * "Smooth" followed by "Gaussian Blur..." in a single filter
+    * @param in 16-bit image
+    * @param out destination, can be the input
+    * @param width width of the image
+    * @param height height of the image
+    * @param sigma sigma of the Gaussian in pixels
+    */
+   public void smoothAndBlur(final short[] in, final short[] out, 
+           final int width, final int height, double sigma) {
+      makeKernels(sigma);
+      int size = width * height;
+      if (buffer_.length < size) {
+         buffer_ = new float[size];
+      }
+      if (fast_ && buffer2_.length < size) {
+         buffer2_ = new float[size];
+      }
+      if (fast_) {
+         boxBlur(in, out, width, height);
+      } else {
+         gaussianBlur(in, out, width, height);
+      }
+   }
+
+   private void gaussianBlur(final short[] in, final short[] out, 
+           final int width, final int height) {
+      final float[] kernel = kernel_;
+      final int radius = kernel.length - 1;
+      final float[] buffer = buffer_;
+      runInBands(height, new Band() {
+         @Override
+         public void run(int band, int from, int to) {
+            float[] line = line(lines_, band, width + 2 * radius);
+            float[] sum = line(lines2_, band, width);
+            for (int y = from; y < to; y++) {
+               int row = y * width;
+               readLine(in, row, width, line, radius);
+               // kernel position in the outer loop, so that the inner
+               // loop runs over consecutive pixels
+               float k0 = kernel[0];
+               for (int x = 0; x < width; x++) {
+                  sum[x] = k0 * line[radius + x];
+               }
+               for (int k = 1; k <= radius; k++) {
+                  float kk = kernel[k];
+                  int left = radius - k;
+                  int right = radius + k;
+                  for (int x = 0; x < width; x++) {
+                     sum[x] += kk * (line[left + x] + line[right + x]);
+                  }
+               }
+               System.arraycopy(sum, 0, buffer, row, width);
+            }
+         }
+      });
+      runInBands(height, new Band() {
+         @Override
+         public void run(int band, int from, int to) {
+            float[] sum = line(lines_, band, width);
+            for (int y = from; y < to; y++) {
+               int row = y * width;
+               float k0 = kernel[0];
+               for (int x = 0; x < width; x++) {
+                  sum[x] = k0 * buffer[row + x];
+               }
+               for (int k = 1; k <= radius; k++) {
+                  float kk = kernel[k];
+                  int up = Math.max(y - k, 0) * width;
+                  int down = Math.min(y + k, height - 1) * width;
+                  for (int x = 0; x < width; x++) {
+                     sum[x] += kk * (buffer[up + x] + buffer[down + x]);
+                  }
+               }
+               for (int x = 0; x < width; x++) {
+                  out[row + x] = clamp((int) (sum[x] + 0.5f));
+               }
+            }
+         }
+      });
+   }
+
+   /**
+    * Box filters along the rows, followed by box filters along the columns
+    */
+   private void boxBlur(final short[] in, final short[] out, final int width, 
+           final int height) {
+      final int[] boxes = boxes_;
+      int maxRadius = 0;
+      for (int box : boxes) {
+         maxRadius = Math.max(maxRadius, box / 2);
+      }
+      final int padding = maxRadius + 1;
+      runInBands(height, new Band() {
+         @Override
+         public void run(int band, int from, int to) {
+            float[] line = line(lines_, band, width + 2 * padding);
+            float[] line2 = line(lines2_, band, width + 2 * padding);
+            for (int y = from; y < to; y++) {
+               int row = y * width;
+               readLine(in, row, width, line, padding);
+               float[] src = line;
+               float[] dst = line2;
+               for (int box : boxes) {
+                  boxLine(src, dst, width, padding, box / 2);
+                  float[] swap = src;
+                  src = dst;
+                  dst = swap;
+               }
+               System.arraycopy(src, padding, buffer_, row, width);
+            }
+         }
+      });
+      float[] src = buffer_;
+      float[] dst = buffer2_;
+      for (final int box : boxes) {
+         final float[] s = src;
+         final float[] d = dst;
+         runInBands(height, new Band() {
+            @Override
+            public void run(int band, int from, int to) {
+               boxColumns(s, d, width, height, box / 2, from, to,
+                       line(lines_, band, width));
+            }
+         });
+         src = d;
+         dst = s;
+      }
+      final float[] result = src;
+      runInBands(height, new Band() {
+         @Override
+         public void run(int band, int from, int to) {
+            for (int i = from * width; i < to * width; i++) {
+               out[i] = clamp((int) (result[i] + 0.5f));
+            }
+         }
+      });
+   }
+
+   /**
+    * Mean of 2 * radius + 1 values along a padded line.  The padding of 
+    * the destination is filled with the edge values
+    */
+   private static void boxLine(float[] src, float[] dst, int width, 
+           int padding, int radius) {
+      float scale = 1.0f / (2 * radius + 1);
+      float sum = 0.0f;
+      for (int i = padding - radius - 1; i < padding + radius; i++) {
+         sum += src[i];
+      }
+      for (int x = padding; x < padding + width; x++) {
+         sum += src[x + radius] - src[x - radius - 1];
+         dst[x] = sum * scale;
+      }
+      pad(dst, width, padding);
+   }
+
+   /**
+    * Mean of 2 * radius + 1 rows, for the rows from ... to, with rows 
+    * outside the image having the value of the nearest edge row
+    */
+   private static void boxColumns(float[] src, float[] dst, int width, 
+           int height, int radius, int from, int to, float[] sum) {
+      float scale = 1.0f / (2 * radius + 1);
+      for (int x = 0; x < width; x++) {
+         sum[x] = 0.0f;
+      }
+      for (int y = from - radius - 1; y < from + radius; y++) {
+         int row = Math.min(Math.max(y, 0), height - 1) * width;
+         for (int x = 0; x < width; x++) {
+            sum[x] += src[row + x];
+         }
+      }
+      for (int y = from; y < to; y++) {
+         int add = Math.min(y + radius, height - 1) * width;
+         int remove = Math.max(y - radius - 1, 0) * width;
+         int row = y * width;
+         for (int x = 0; x < width; x++) {
+            sum[x] += src[add + x] - src[remove + x];
+            dst[row + x] = sum[x] * scale;
+         }
+      }
+   }
+
+   /**
+    * Copies a row into the middle of the line, and repeats the edge pixels 
+    * in the padding
+    */
+   private static void readLine(short[] in, int row, int width, float[] line,
+           int padding) {
+      for (int x = 0; x < width; x++) {
+         line[padding + x] = in[row + x] & 0xffff;
+      }
+      pad(line, width, padding);
+   }
+
+   private static void pad(float[] line, int width, int padding) {
+      float first = line[padding];
+      float last = line[padding + width - 1];
+      for (int i = 0; i < padding; i++) {
+         line[i] = first;
+         line[padding + width + i] = last;
+      }
+   }
+
+   private static float[] line(float[][] lines, int band, int length) {
+      if (lines[band].length < length) {
+         lines[band] = new float[length];
+      }
+      return lines[band];
+   }
+
+   /**
+    * Makes the kernel of Smooth and Gaussian combined (center first), and 
+    * the widths of the boxes for fast mode
+    */
+   private void makeKernels(double sigma) {
+      if (sigma == kernelSigma_) {
+         return;
+      }
+      kernelSigma_ = sigma;
+      int radius = sigma > 0.0 ? (int) Math.ceil(sigma * 
+              Math.sqrt(-2.0 * Math.log(GAUSSIAN_ACCURACY))) : 0;
+      // zeros beyond the radius
+      double[] gaussian = new double[radius + 3];
+      double total = 0.0;
+      for (int i = 0; i <= radius; i++) {
+         gaussian[i] = sigma > 0.0 ? Math.exp(-0.5 * i * i / sigma / sigma) 
+                 : 1.0;
+         total += i == 0 ? gaussian[i] : 2.0 * gaussian[i];
+      }
+      kernel_ = new float[radius + 2];
+      for (int i = 0; i <= radius + 1; i++) {
+         double previous = i == 0 ? gaussian[1] : gaussian[i - 1];
+         kernel_[i] = (float) ((previous + gaussian[i] + gaussian[i + 1]) 
+                 / 3.0 / total);
+      }
+      // Box widths w_l and w_l + 2 whose variances add up to sigma^2
+      // (Kovesi, "Fast almost-Gaussian filtering")
+      double ideal = Math.sqrt(12.0 * sigma * sigma / NRBOXES + 1.0);
+      int lower = (int) Math.floor(ideal);
+      if (lower % 2 == 0) {
+         lower--;
+      }
+      int nrLower = (int) Math.round((12.0 * sigma * sigma 
+              - NRBOXES * lower * lower - 4.0 * NRBOXES * lower - 3.0 * NRBOXES)
+              / (-4.0 * lower - 4.0));
+      boxes_ = new int[NRBOXES + 1];
+      for (int i = 0; i < NRBOXES; i++) {
+         boxes_[i] = i < nrLower ? lower : lower + 2;
+      }
+      // the 3x3 mean of "Smooth"
+      boxes_[NRBOXES] = 3;
+   }
+
+   private static short clamp(int value) {
+      if (value > 65535) {
+         return (short) 65535;
+      } else if (value < 0) {
+         return 0;
+      }
+      return (short) value;
+   }
+
+   /**
+    * Runs the rows of the image in bands, in parallel when there is an
+    * executor, and returns when all are done
+    */
+   private void runInBands(int height, final Band task) {
+      int nrBands = Math.min(nrBands_, height);
+      if (executor_ == null || nrBands < 2) {
+         task.run(0, 0, height);
+         return;
+      }
+      List<Future<Object>> futures = new ArrayList<Future<Object>>();
+      for (int i = 0; i < nrBands; i++) {
+         final int band = i;
+         final int from = i * height / nrBands;
+         final int to = (i + 1) * height / nrBands;
+         futures.add(executor_.submit(new Callable<Object>() {
+            @Override
+            public Object call() {
+               task.run(band, from, to);
+               return null;
+            }
+         }));
+      }
+      try {
+         for (Future<Object> future : futures) {
+            future.get();
+         }
+      } catch (InterruptedException ie) {
+         Thread.currentThread().interrupt();
+         throw new RuntimeException("Interrupted while filtering", ie);
+      } catch (ExecutionException ee) {
+         throw new RuntimeException(ee.getCause());
+      } finally {
+         for (Future<Object> future : futures) {
+            future.cancel(true);
+         }
+      }
+   }
+
+   /**
+    * Work on a range of rows
+    */
+   private static abstract class Band {
+      public abstract void run(int band, int from, int to);
+   }
+
+}
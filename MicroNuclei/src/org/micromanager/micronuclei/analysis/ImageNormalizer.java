@@ -0,0 +1,212 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei.analysis;
+
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+import java.util.Arrays;
+import mmcorej.TaggedImage;
+import org.json.JSONException;
+import org.micromanager.utils.MDUtils;
+
+/**
+ * Background and flatfield correction: (image - background) / flatfield
+ * The flatfield image should have been background subtracted and normalized
+ * at 1.0 for the average pixel values to stay the same.
+ *
+ * The correction images are read once, and stored as a per-pixel offset and
+ * reciprocal gain, so that each image is corrected in a single pass without
+ * creating intermediate images.  The result is identical (within rounding)
+ * to ImageJ's "Subtract", followed by "Divide, float, 32" and an unscaled
+ * conversion to 16-bit.
+ *
+ * Corrected images are written in a buffer that is owned by the calling
+ * thread, and that is overwritten by the next call from the same thread.
+ * Instances can be shared between threads.
+ *
+ * @author nico
+ */
+public class ImageNormalizer {
+   private final int width_;
+   private final int height_;
+   private final float[] offset_;
+   private final float[] gain_;
+
+   private final ThreadLocal<short[]> shortBuffer_ = new ThreadLocal<short[]>();
+   private final ThreadLocal<byte[]> byteBuffer_ = new ThreadLocal<byte[]>();
+
+   /**
+    * @param background background image, or null when no background should be
+    *                   subtracted
+    * @param flatField image with average value of 1.0 representing flatness
+    *                   of field, or null when no flatfield correction is needed
+    * @throws IllegalArgumentException when the correction images are color
+    *          images or differ in size
+    */
+   public ImageNormalizer(ImagePlus background, ImagePlus flatField) {
+      if (background == null && flatField == null) {
+         width_ = height_ = 0;
+         offset_ = gain_ = null;
+         return;
+      }
+      ImagePlus first = background != null ? background : flatField;
+      width_ = first.getWidth();
+      height_ = first.getHeight();
+      int size = width_ * height_;
+      offset_ = new float[size];
+      gain_ = new float[size];
+      Arrays.fill(gain_, 1.0f);
+      if (background != null) {
+         ImageProcessor ip = correctionProcessor(background, "Background");
+         for (int i = 0; i < size; i++) {
+            offset_[i] = ip.getf(i);
+         }
+      }
+      if (flatField != null) {
+         ImageProcessor ip = correctionProcessor(flatField, "Flatfield");
+         for (int i = 0; i < size; i++) {
+            float f = ip.getf(i);
+            // leave pixels without a sensible flatfield value uncorrected
+            if (f > 0.0f && !Float.isInfinite(f)) {
+               gain_[i] = 1.0f / f;
+            }
+         }
+      }
+   }
+
+   private ImageProcessor correctionProcessor(ImagePlus imp, String name) {
+      if (imp.getBitDepth() == 24) {
+         throw new IllegalArgumentException(name + " image should be a grayscale image");
+      }
+      if (imp.getWidth() != width_ || imp.getHeight() != height_) {
+         throw new IllegalArgumentException(name + " image (" + imp.getWidth() +
+                 "x" + imp.getHeight() + ") differs in size from the other " +
+                 "correction image (" + width_ + "x" + height_ + ")");
+      }
+      return imp.getProcessor();
+   }
+
+   /**
+    * @return true when there are no correction images and images are
+    * returned unchanged
+    */
+   public boolean isIdentity() {
+      return offset_ == null;
+   }
+
+   /**
+    * Checks that an image can be corrected by this normalizer
+    * @param width width of the image in pixels
+    * @param height height of the image in pixels
+    * @param pixels pixel array of the image
+    * @throws IllegalArgumentException when size or type do not match
+    */
+   public void checkImage(int width, int height, Object pixels) {
+      if (isIdentity()) {
+         return;
+      }
+      if (!(pixels instanceof short[]) && !(pixels instanceof byte[])) {
+         throw new IllegalArgumentException(
+                 "Only 8 and 16-bit images can be normalized");
+      }
+      if (width != width_ || height != height_) {
+         throw new IllegalArgumentException("Image (" + width + "x" + height +
+                 ") differs in size from the correction images (" + width_ +
+                 "x" + height_ + ")");
+      }
+      int length = pixels instanceof short[] ? ((short[]) pixels).length :
+              ((byte[]) pixels).length;
+      if (length != width * height) {
+         throw new IllegalArgumentException("Image has " + length +
+                 " pixels, expected " + width * height);
+      }
+   }
+
+   /**
+    * Corrects the image.  The input image is not changed.
+    * @param input 8 or 16-bit image
+    * @return corrected image, with the same tags as the input.  Its pixels are
+    *          only valid until the next call to normalize from the same thread.
+    *          When there are no correction images, the input is returned
+    * @throws JSONException when the image tags lack width or height
+    * @throws IllegalArgumentException when the image does not match the
+    *          correction images
+    */
+   public TaggedImage normalize(TaggedImage input) throws JSONException {
+      if (isIdentity()) {
+         return input;
+      }
+      checkImage(MDUtils.getWidth(input.tags), MDUtils.getHeight(input.tags),
+              input.pix);
+      if (input.pix instanceof short[]) {
+         short[] out = shortBuffer_.get();
+         if (out == null || out.length != gain_.length) {
+            out = new short[gain_.length];
+            shortBuffer_.set(out);
+         }
+         normalize((short[]) input.pix, out);
+         return new TaggedImage(out, input.tags);
+      }
+      byte[] out = byteBuffer_.get();
+      if (out == null || out.length != gain_.length) {
+         out = new byte[gain_.length];
+         byteBuffer_.set(out);
+      }
+      normalize((byte[]) input.pix, out);
+      return new TaggedImage(out, input.tags);
+   }
+
+   /**
+    * Corrects 16-bit pixels.  Input and output can be the same array
+    * @param in pixels of an image with the size of the correction images
+    * @param out destination, same size as the input
+    */
+   public void normalize(short[] in, short[] out) {
+      final float[] offset = offset_;
+      final float[] gain = gain_;
+      for (int i = 0; i < gain.length; i++) {
+         float v = (in[i] & 0xffff) - offset[i];
+         if (v < 0.0f) {
+            v = 0.0f;
+         }
+         int r = (int) (v * gain[i] + 0.5f);
+         out[i] = (short) (r > 65535 ? 65535 : r);
+      }
+   }
+
+   /**
+    * Corrects 8-bit pixels.  Input and output can be the same array
+    * @param in pixels of an image with the size of the correction images
+    * @param out destination, same size as the input
+    */
+   public void normalize(byte[] in, byte[] out) {
+      final float[] offset = offset_;
+      final float[] gain = gain_;
+      for (int i = 0; i < gain.length; i++) {
+         float v = (in[i] & 0xff) - offset[i];
+         if (v < 0.0f) {
+            v = 0.0f;
+         }
+         int r = (int) (v * gain[i] + 0.5f);
+         out[i] = (byte) (r > 255 ? 255 : r);
+      }
+   }
+
+}
@@ -23,23 +23,27 @@ import ij.IJ;
 import ij.ImagePlus;
 import ij.gui.Roi;
 import ij.measure.Calibration;
-import ij.measure.ResultsTable;
 import ij.plugin.Duplicator;
-import ij.plugin.filter.Analyzer;
-import ij.plugin.frame.RoiManager;
+import ij.process.ImageProcessor;
 import java.awt.Point;
 import java.awt.Rectangle;
-import java.awt.geom.Point2D;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import mmcorej.TaggedImage;
 import org.json.JSONException;
-import org.json.JSONObject;
 import org.micromanager.micronuclei.analysisinterface.AnalysisModule;
+import org.micromanager.micronuclei.analysisinterface.AnalysisParameters;
 import org.micromanager.micronuclei.analysisinterface.AnalysisProperty;
+import org.micromanager.micronuclei.analysisinterface.AnalysisResult;
+import org.micromanager.micronuclei.analysisinterface.ObjectMeasurement;
 import org.micromanager.micronuclei.analysisinterface.PropertyException;
+import org.micromanager.micronuclei.metrics.Metrics;
 import org.micromanager.utils.ImageUtils;
 import org.micromanager.utils.MMScriptException;
 
@@ -51,14 +55,105 @@ import org.micromanager.utils.MMScriptException;
 
 
 public class MicroNucleiAnalysisModule extends AnalysisModule {
-   private int nucleiCount_ = 0;
-   private int zappedNucleiCount_ = 0;
+   // description of the property, so that other code can look it up
+   public static final String NATIVESEGMENTATION = "Use native segmentation";
    AnalysisProperty minSizeMN_, maxSizeMN_, minSizeN_, maxSizeN_,
            maxDistance_, minNMNPerNucleus_, maxStdDev_, maxNumberOfNuclei_,
-           maxNumberOfZaps_, checkInSmallerImage_, minEdgeDistance_; 
+           maxNumberOfZaps_, checkInSmallerImage_, minEdgeDistance_,
+           useNativeSegmentation_, fastBlur_, nucleiBinning_, tileSize_; 
    private final String UINAME = "MicroNucleiAnalysis";
+   // sigma (in pixels) of the Gaussian blur used to find nuclei
+   private final double NUCLEISIGMA = 5.0;
+   // size (in pixels) of the square region used to check hits again
+   private final int REGIONSIZE = 200;
+   // The ImageJ commands share global state (Prefs, binary options),
+   // so only one thread at a time can use them
+   private static final Object IMAGEJ_LOCK = new Object();
+   // segmentation engines working on pixel arrays, one set per thread.  
+   // Whole fields and sub-regions have different sizes, so use one for 
+   // each to avoid re-allocating buffers.  The watershed of whole fields
+   // is split over the processors
+   private final ThreadLocal<NativeSegmenter> fieldSegmenter_ = 
+           new ThreadLocal<NativeSegmenter>() {
+      @Override
+      protected NativeSegmenter initialValue() {
+         NativeSegmenter segmenter = new NativeSegmenter();
+         int nrProcessors = Runtime.getRuntime().availableProcessors();
+         if (nrProcessors > 1) {
+            segmenter.setTiles(nrProcessors, getRegionPool());
+         }
+         return segmenter;
+      }
+   };
+   // histogram of whole fields, counted on all processors
+   private final ThreadLocal<PixelStatistics> fieldStatistics_ = 
+           new ThreadLocal<PixelStatistics>() {
+      @Override
+      protected PixelStatistics initialValue() {
+         PixelStatistics statistics = new PixelStatistics();
+         int nrProcessors = Runtime.getRuntime().availableProcessors();
+         if (nrProcessors > 1) {
+            statistics.setBands(nrProcessors, getRegionPool());
+         }
+         return statistics;
+      }
+   };
+   private final ThreadLocal<NativeSegmenter> regionSegmenter_ = 
+           new ThreadLocal<NativeSegmenter>() {
+      @Override
+      protected NativeSegmenter initialValue() {
+         return new NativeSegmenter();
+      }
+   };
+   // segments the tiles of large fields, each tile in a single thread
+   private final ThreadLocal<NativeSegmenter> tileSegmenter_ = 
+           new ThreadLocal<NativeSegmenter>() {
+      @Override
+      protected NativeSegmenter initialValue() {
+         return new NativeSegmenter();
+      }
+   };
+   // particles and assignment of the site being analyzed, one per thread
+   private final ThreadLocal<SiteBuffers> siteBuffers_ = 
+           new ThreadLocal<SiteBuffers>() {
+      @Override
+      protected SiteBuffers initialValue() {
+         return new SiteBuffers();
+      }
+   };
+   // threads checking hits again in sub-regions and segmenting bands of 
+   // fields, shared by all instances, and created when first needed
+   private static ExecutorService regionPool_ = null;
    
    
+   /**
+    * Particles of a site and the assignment of micronuclei to nuclei.
+    * The arrays are grown when a site has more nuclei than any before, 
+    * so that a site can be analyzed without creating objects per particle
+    */
+   private static class SiteBuffers {
+      final List<Particle> microNuclei_ = new ArrayList<Particle>();
+      final List<Particle> nuclei_ = new ArrayList<Particle>();
+      final PointIndex nucleiIndex_ = new PointIndex();
+      double[] nucleiX_ = new double[0];
+      double[] nucleiY_ = new double[0];
+      // number of micronuclei of each nucleus, and the first two of them
+      int[] mnCount_ = new int[0];
+      int[] firstMNs_ = new int[0];
+      boolean[] zap_ = new boolean[0];
+
+      void allocate(int nrNuclei) {
+         if (nucleiX_.length < nrNuclei) {
+            int length = Math.max(nrNuclei, 2 * nucleiX_.length);
+            nucleiX_ = new double[length];
+            nucleiY_ = new double[length];
+            mnCount_ = new int[length];
+            firstMNs_ = new int[2 * length];
+            zap_ = new boolean[length];
+         }
+      }
+   }
+   
    public MicroNucleiAnalysisModule()  {
       try {
          // note: the type of the value when creating the AnalysisProperty determines
@@ -86,6 +181,14 @@ public class MicroNucleiAnalysisModule extends AnalysisModule {
                  "Skip image if more than this number should be zapped", 15);
          checkInSmallerImage_ = new AnalysisProperty(this.getClass(), 
                   "Check again in subregion", true);
+         useNativeSegmentation_ = new AnalysisProperty(this.getClass(),
+                  NATIVESEGMENTATION, false);
+         fastBlur_ = new AnalysisProperty(this.getClass(),
+                  "Fast approximate blur (native segmentation)", false);
+         nucleiBinning_ = new AnalysisProperty(this.getClass(),
+                  "Bin nuclei image 1, 2 or 4x (native segmentation)", 1);
+         tileSize_ = new AnalysisProperty(this.getClass(),
+                  "Tile size, 0 for whole image (native segmentation)", 0);
          List<AnalysisProperty> apl = new ArrayList<AnalysisProperty>();
          apl.add(minSizeMN_);
          apl.add(maxSizeMN_);
@@ -97,34 +200,27 @@ public class MicroNucleiAnalysisModule extends AnalysisModule {
          apl.add(maxNumberOfZaps_);
          apl.add(checkInSmallerImage_);
          apl.add(minEdgeDistance_);
+         apl.add(useNativeSegmentation_);
+         apl.add(fastBlur_);
+         apl.add(nucleiBinning_);
+         apl.add(tileSize_);
          
          setAnalysisProperties(apl);
+         
+         List<AnalysisProperty> hidden = new ArrayList<AnalysisProperty>();
+         hidden.add(minSizeN_);
+         hidden.add(maxSizeN_);
+         hidden.add(maxStdDev_);
+         setHiddenAnalysisProperties(hidden);
       } catch (PropertyException ex) {
          // todo: handle error}
       }
    }
    
-   /**
-    * Simple class just so that we can get information back out of a method
-    */
-   class MutableInt {
-      private int val_;
-      MutableInt(int val) {
-         val_ = val;
-      }
-      void set(int newVal){
-         val_ = newVal;
-      }
-      int get() { return val_; }
-   }
-  
    @Override
-   public Roi[] analyze(TaggedImage tImg, JSONObject parms) throws MMScriptException {
+   public AnalysisResult analyze(TaggedImage tImg, AnalysisParameters parms) 
+           throws MMScriptException {
       
-
-      nucleiCount_ = parms.optInt(CELLCOUNT, 0);
-      zappedNucleiCount_ = parms.optInt(OBJECTCOUNT, 0);
-
       long startTime = System.currentTimeMillis();
       
       ImagePlus imp = new ImagePlus ("tmp", ImageUtils.makeProcessor(tImg));
@@ -136,110 +232,249 @@ public class MicroNucleiAnalysisModule extends AnalysisModule {
          throw new MMScriptException ("Failed to find pixelsize in the metadata");
       }
       // remove images that have the well edge in them
-      double stdDev = imp.getStatistics().stdDev;
+      long start = Metrics.start();
+      PixelStatistics statistics = fieldStatistics_.get();
+      statistics.compute(imp.getProcessor().getPixels());
+      double stdDev = statistics.getStdDev();
+      Metrics.stop(Metrics.STDDEV, start);
       // do not analyze images whose stdev is above this value
       // Use this to remove images showing well edges
-      final double maxStdDev = (Double) maxStdDev_.get();
+      final double maxStdDev = parms.getDouble(maxStdDev_);
       if (stdDev > maxStdDev) {
-         return null;
+         return AnalysisResult.rejected();
       }
       
-      MutableInt nrNuclei = new MutableInt(0);
+      List<ObjectMeasurement> objects = new ArrayList<ObjectMeasurement>();
       
-      Roi[] hits = analyzeImagePlus(imp, cal, parms, nrNuclei);
-      nucleiCount_ += nrNuclei.get();
+      List<Roi> hitList = new ArrayList<Roi>();
+      analyzeImagePlus(imp, null, cal, parms, objects, hitList, 
+              fieldSegmenter_.get());
+      Roi[] hits = hitList.toArray(new Roi[hitList.size()]);
 
       
-      if ( (Boolean) checkInSmallerImage_.get() ) {
-         ArrayList<Roi> cleanedHits = new ArrayList<Roi>();
-         // Check all our hits by taking a subregion of the original image 
-         // and re-running the analysis
+      if (parms.getBoolean(checkInSmallerImage_)) {
+         start = Metrics.start();
+         // Check all our hits by re-running the analysis on a subregion 
+         // of the original image
          ij.IJ.log("Running sub-analysis");
-         for (Roi roi : hits) {
-            ImagePlus region = getRegion (imp, roi, 200);
-            Roi[] newHits = analyzeImagePlus(region, cal, parms, nrNuclei);
-            if (newHits.length > 0)
-               cleanedHits.add(roi);
-         }
-         hits = new Roi[cleanedHits.size()];
-         hits = cleanedHits.toArray(hits);
-      }
-      
-      
-      zappedNucleiCount_ += hits.length;
-      try {
-         parms.put(CELLCOUNT, nucleiCount_);
-         parms.put(OBJECTCOUNT, zappedNucleiCount_);
-      } catch (JSONException ex) {
-         ij.IJ.log("MicroNucleiAnalysis.java: This should never happen!!!");
+         hits = checkInRegions(imp, cal, parms, hits);
+         Metrics.stop(Metrics.RECHECK, start);
       }
       
       
       long endTime = System.currentTimeMillis();
       ij.IJ.log("Analysis took: " + (endTime - startTime) + " millisec");
       
-      return hits;
+      return new AnalysisResult(hits, objects.size(), objects);
    }
    
    
    /**
     * 
     * @param imp
+    * @param region part of the image to be analyzed, null for all of it.
+    *               Positions of the results are relative to the region
     * @param cal
     * @param parms
-    * @param nrNuclei
-    * @return 
+    * @param objects list to which the measurements of all nuclei will be 
+    *                added, or null when they are not needed
+    * @param hits list to which the outlines of the nuclei to be zapped will
+    *             be added, or null when only their number is needed
+    * @param segmenter engine used when native segmentation is selected
+    * @return number of nuclei to be zapped
+    * @throws MMScriptException when interrupted while segmenting in tiles
     */
-   private Roi[] analyzeImagePlus(ImagePlus imp, Calibration cal, JSONObject parms,
-           MutableInt nrNuclei) {
+   private int analyzeImagePlus(ImagePlus imp, Rectangle region, 
+           Calibration cal, AnalysisParameters parms, 
+           List<ObjectMeasurement> objects, List<Roi> hits, 
+           NativeSegmenter segmenter) throws MMScriptException {
       
-      boolean showMasks = false;
-      try {
-         showMasks = parms.getBoolean(AnalysisModule.SHOWMASKS);
-      } catch (JSONException jex) { // do nothing
-      }
+      final boolean showMasks = parms.showMasks();
       
       // microNuclei allowed sizes
-      final double microNucleiMinSize = (Double) minSizeMN_.get();
-      final double microNucleiMaxSize = (Double) maxSizeMN_.get();
+      final double microNucleiMinSize = parms.getDouble(minSizeMN_);
+      final double microNucleiMaxSize = parms.getDouble(maxSizeMN_);
       // nuclei allowed sized
-      final double nucleiMinSize = (Double) minSizeN_.get();
-      final double nucleiMaxSize = (Double) maxSizeN_.get();
+      final double nucleiMinSize = parms.getDouble(minSizeN_);
+      final double nucleiMaxSize = parms.getDouble(maxSizeN_);
       // max distance a micronucleus can be separated from a nucleus
-      final double maxDistance = (Double) maxDistance_.get();
+      final double maxDistance = parms.getDouble(maxDistance_);
       // min distance a micronucleus should be from the edge of the image
-      final double minEdgeDistance = (Double) minEdgeDistance_.get(); // in microns
+      final double minEdgeDistance = parms.getDouble(minEdgeDistance_); // in microns
       // minimum number of "micronuclei" we want per nucleus to score as a hit
-      final int minNumMNperNucleus = (Integer) minNMNPerNucleus_.get();
+      final int minNumMNperNucleus = parms.getInteger(minNMNPerNucleus_);
 
       // if the image has more than this number of nuclei, do not zap
-      final int maxNumberOfNuclei = (Integer) maxNumberOfNuclei_.get();
+      final int maxNumberOfNuclei = parms.getInteger(maxNumberOfNuclei_);
       // if more than this number of nuclei should be zapped, skip zapping altogether
-      final int maxNumberOfZaps = (Integer) maxNumberOfZaps_.get();
+      final int maxNumberOfZaps = parms.getInteger(maxNumberOfZaps_);
 
       double pixelSize; // not sure why, but imp.getCalibration is unreliable
 
       
       // start of the main code
-      List<Point2D.Double> microNuclei = new ArrayList<Point2D.Double>();
-      Map<Point2D.Double, Roi> microNucleiROIs = new HashMap<Point2D.Double, Roi>();
-      Map<Point2D.Double, ArrayList<Point2D.Double> > nuclei = 
-              new HashMap<Point2D.Double, ArrayList<Point2D.Double> >();
-      //nucleiContents = new ArrayList();
-      Map<Point2D.Double, Roi> nucleiRois = new HashMap<Point2D.Double, Roi>();
-      Map<Point2D.Double, Double> nucleiSizes = new HashMap<Point2D.Double, Double>();
-      List<Point2D.Double> zapNuclei = new ArrayList<Point2D.Double>();
-
-      // clean results table	
-      ResultsTable res = ij.measure.ResultsTable.getResultsTable();
-      res.reset();
-
-      int width = imp.getProcessor().getWidth();
-      int height = imp.getProcessor().getHeight();
-      double widthUm = cal.getX(width);
-      double heightUm = cal.getY(height);
       pixelSize = cal.getX(1.0);
 
+      SiteBuffers buffers = siteBuffers_.get();
+      List<Particle> mnParticles = buffers.microNuclei_;
+      List<Particle> nParticles = buffers.nuclei_;
+      mnParticles.clear();
+      nParticles.clear();
+      final boolean useNative = parms.getBoolean(useNativeSegmentation_);
+      final int tileSize = parms.getInteger(tileSize_);
+      if (useNative && region == null && tileSize > 0 && 
+              (imp.getWidth() > tileSize || imp.getHeight() > tileSize)) {
+         long start = Metrics.start();
+         segmentInTiles(imp.getProcessor(), parms, pixelSize, tileSize, 
+                 mnParticles, nParticles);
+         Metrics.stop(Metrics.SEGMENTTILES, start);
+      } else if (useNative) {
+         segmenter.setFastBlur(parms.getBoolean(fastBlur_));
+         segmenter.setNucleiBinning(parms.getInteger(nucleiBinning_));
+         long start = Metrics.start();
+         segmenter.findMicroNuclei(imp.getProcessor(), region, pixelSize, 
+                 microNucleiMinSize, microNucleiMaxSize, mnParticles);
+         Metrics.stop(Metrics.FINDMICRONUCLEI, start);
+         if (showMasks) {
+            new ImagePlus("Micronuclei mask", segmenter.getMask()).show();
+         }
+         // include large nuclei here so that we will assign the corresponding microNuclei 
+         // correctly.  Weed these out later
+         start = Metrics.start();
+         segmenter.findNuclei(imp.getProcessor(), region, pixelSize, 
+                 NUCLEISIGMA, nucleiMinSize, 4 * nucleiMaxSize, nParticles);
+         Metrics.stop(Metrics.FINDNUCLEI, start);
+         if (showMasks) {
+            new ImagePlus("Nuclei mask", segmenter.getMask()).show();
+         }
+      } else {
+         long start = Metrics.start();
+         if (region != null) {
+            imp = crop(imp, region);
+         }
+         synchronized (IMAGEJ_LOCK) {
+            segmentWithImageJ(imp, parms, pixelSize, mnParticles, nParticles);
+         }
+         Metrics.stop(Metrics.SEGMENTIMAGEJ, start);
+      }
+
+      // positions are the centers of the bounding boxes, in microns
+      long assignStart = Metrics.start();
+      final int nrNuclei = nParticles.size();
+      buffers.allocate(nrNuclei);
+      for (int i = 0; i < nrNuclei; i++) {
+         Rectangle rc = nParticles.get(i).getBounds();
+         buffers.nucleiX_[i] = (rc.x + 0.5 * rc.width) * pixelSize;
+         buffers.nucleiY_[i] = (rc.y + 0.5 * rc.height) * pixelSize;
+         buffers.mnCount_[i] = 0;
+      }
+
+      // cycle through the list of micronuclei
+      // assign each to the nearest by nucleus (not more than maxdistance away)
+      // only the first two micronuclei of a nucleus are needed later
+      PointIndex nucleiIndex = buffers.nucleiIndex_;
+      nucleiIndex.build(buffers.nucleiX_, buffers.nucleiY_, nrNuclei, 
+              maxDistance);
+      for (int m = 0; m < mnParticles.size(); m++) {
+         Rectangle rc = mnParticles.get(m).getBounds();
+         int cn = nucleiIndex.nearest((rc.x + 0.5 * rc.width) * pixelSize, 
+                 (rc.y + 0.5 * rc.height) * pixelSize, maxDistance);
+         if (cn >= 0) {
+            if (buffers.mnCount_[cn] < 2) {
+               buffers.firstMNs_[2 * cn + buffers.mnCount_[cn]] = m;
+            }
+            buffers.mnCount_[cn]++;
+         }
+      }
+      Metrics.stop(Metrics.ASSIGN, assignStart);
+
+      // report what we found
+      // this is a bit funky, but seems to work
+      double roiMinSize = pixelSize * pixelSize * nucleiMinSize * 10;
+      int nrZaps = 0;
+      for (int n = 0; n < nrNuclei; n++) {
+         int nrMNs = buffers.mnCount_[n];
+         double nSize = nParticles.get(n).getArea();
+         boolean zapit = false;
+         if (nrMNs >= minNumMNperNucleus) {
+            // make sure that this nucleus is not too large
+            if (nSize < nucleiMaxSize) {
+            // add to our target nuclei, except if these happen to be two nuclei that were 
+               // lying close together. 
+               if (nrMNs == 2) {
+                  Particle r0 = mnParticles.get(buffers.firstMNs_[2 * n]);
+                  Particle r1 = mnParticles.get(buffers.firstMNs_[2 * n + 1]);
+                  if (roiSize(r0.getBounds()) < roiMinSize
+                          || roiSize(r1.getBounds()) < roiMinSize) {
+                     zapit = true;
+                  }
+               } else {
+                  zapit = true;
+               }
+            }
+         }
+         buffers.zap_[n] = zapit;
+         if (zapit) {
+            nrZaps++;
+         }
+         if (objects != null) {
+            Particle nucleus = nParticles.get(n);
+            objects.add(new ObjectMeasurement(buffers.nucleiX_[n], 
+                    buffers.nucleiY_[n], nucleus.getCentroidX() * pixelSize,
+                    nucleus.getCentroidY() * pixelSize, nSize, nrMNs, zapit));
+         }
+      }
+
+      ij.IJ.log("mn: " + mnParticles.size() + ", n: " + nrNuclei + 
+                 ", zap: " + nrZaps);
+      
+      // make sure that we do not zap if there are too many nuclei in the image
+      if (nrNuclei > maxNumberOfNuclei) {
+         nrZaps = 0;
+         ij.IJ.log("Not zapping cells since there are too many nuclei per image");
+         
+      }
+      // make sure that we do not zap if there are too many cells to be zapped
+      if (nrZaps > maxNumberOfZaps) {
+         nrZaps = 0;
+         ij.IJ.log("Not zapping cells since there are too many cells to be zapped");
+      }
+      
+      // get the rois that we want to zap, outlines are only traced for these
+      if (hits != null) {
+         for (int n = 0, z = 0; z < nrZaps; n++) {
+            if (buffers.zap_[n]) {
+               hits.add(nParticles.get(n).getRoi());
+               z++;
+            }
+         }
+      }
+      return nrZaps;
+   }
+
+   /**
+    * Finds micronuclei and nuclei by running ImageJ commands on copies 
+    * of the image
+    * 
+    * Uses global ImageJ state, so should only be called while holding
+    * IMAGEJ_LOCK
+    * 
+    * @param imp image to be analyzed
+    * @param parms analysis parameters
+    * @param pixelSize size of a pixel in microns
+    * @param microNuclei list to which the micronuclei will be added
+    * @param nuclei list to which the nuclei will be added
+    */
+   private void segmentWithImageJ(ImagePlus imp, AnalysisParameters parms,
+           double pixelSize, List<Particle> microNuclei, List<Particle> nuclei) {
+      final boolean showMasks = parms.showMasks();
+      // microNuclei allowed sizes
+      final double microNucleiMinSize = parms.getDouble(minSizeMN_);
+      final double microNucleiMaxSize = parms.getDouble(maxSizeMN_);
+      // nuclei allowed sized
+      final double nucleiMinSize = parms.getDouble(minSizeN_);
+      final double nucleiMaxSize = parms.getDouble(maxSizeN_);
+
       ImagePlus imp2 = (new Duplicator()).run(imp, 1, 1);
 
       // find micronuclei by sharpening, segmentation using Otsu, and Watershed
@@ -251,68 +486,35 @@ public class MicroNucleiAnalysisModule extends AnalysisModule {
       IJ.run(microNucleiImp, "Convert to Mask", "");
       IJ.run(microNucleiImp, "Close-", "");
       IJ.run(microNucleiImp, "Watershed", "");
-      IJ.run("Set Measurements...", "area center decimal=2");
-      IJ.run(microNucleiImp, "Analyze Particles...", "size=" + microNucleiMinSize + "-" + microNucleiMaxSize
-              + "  show clear add");
-
       // Build up a list of potential micronuclei
-      RoiManager rm = RoiManager.getInstance2();
-      if (rm == null) {
-         rm = new RoiManager();
-      }
-      for (Roi roi  : rm.getRoisAsArray()) {
-         // approximate microNuclear positions as the center of the bounding box
-         Rectangle rc = roi.getBounds();
-         double xc = rc.x + 0.5 * rc.width;
-         double yc = rc.y + 0.5 * rc.height;
-         xc *= pixelSize;
-         yc *= pixelSize;
-         Point2D.Double pt = new java.awt.geom.Point2D.Double(xc, yc);
-         microNuclei.add(pt);
-         microNucleiROIs.put(pt, roi);
+      final double pixelArea = pixelSize * pixelSize;
+      ParticleLabeler mnLabeler = new ParticleLabeler();
+      int count = mnLabeler.label((byte[]) microNucleiImp.getProcessor().getPixels(),
+              microNucleiImp.getWidth(), microNucleiImp.getHeight(), 
+              microNucleiMinSize / pixelArea, microNucleiMaxSize / pixelArea);
+      for (int i = 0; i < count; i++) {
+         microNuclei.add(new Particle(mnLabeler, i, pixelArea));
       }
 
       // find nuclei by smoothing and gaussian filtering, 
       // followed by Otsu segmentation and watershed
       ImagePlus nucleiImp = imp2.duplicate();
-      ResultsTable rt = Analyzer.getResultsTable();
       IJ.run(nucleiImp, "Smooth", "");
-      IJ.run(nucleiImp, "Gaussian Blur...", "sigma=5.0");
+      IJ.run(nucleiImp, "Gaussian Blur...", "sigma=" + NUCLEISIGMA);
       IJ.setAutoThreshold(nucleiImp, "Otsu dark");
       ij.Prefs.blackBackground = true;
       IJ.run(nucleiImp, "Convert to Mask", "");
       IJ.run(nucleiImp, "Dilate", "");
       IJ.run(nucleiImp, "Erode", "");
       IJ.run(nucleiImp, "Watershed", "");
-      IJ.run("Set Measurements...", "area center decimal=2");
       // include large nuclei here so that we will assign the corresponding microNuclei 
       // correctly.  Weed these out later
-      rt.reset();
-      IJ.run(nucleiImp, "Analyze Particles...", "size=" + nucleiMinSize + "-" +
-              4 * nucleiMaxSize + "  clear add display");
-      rt.updateResults();
-
-      // get nuclei from RoiManager and add to our list of nuclei:
-      rm = RoiManager.getInstance2();
-      int counter = 0;
-      Roi[] roiManagerRois = rm.getRoisAsArray();
-      if (roiManagerRois.length == rt.getCounter()) {
-         for (Roi roi : roiManagerRois) {
-            // approximate nuclear positions as the center of the bounding box
-            Rectangle rc = roi.getBounds();
-            double xc = rc.x + 0.5 * rc.width;
-            double yc = rc.y + 0.5 * rc.height;
-            xc *= pixelSize;
-            yc *= pixelSize;
-            Point2D.Double pt = new java.awt.geom.Point2D.Double(xc, yc);
-            nucleiRois.put(pt, roi);
-            ArrayList<Point2D.Double> containedMNs = new ArrayList<Point2D.Double>();
-            nuclei.put(pt, containedMNs);
-            nucleiSizes.put(pt, rt.getValue("Area", counter));
-            counter++;
-         }
-      } else {
-         ij.IJ.log("Number of Rois does not equal number of Particels in results table");
+      ParticleLabeler nLabeler = new ParticleLabeler();
+      count = nLabeler.label((byte[]) nucleiImp.getProcessor().getPixels(),
+              nucleiImp.getWidth(), nucleiImp.getHeight(), 
+              nucleiMinSize / pixelArea, 4 * nucleiMaxSize / pixelArea);
+      for (int i = 0; i < count; i++) {
+         nuclei.add(new Particle(nLabeler, i, pixelArea));
       }
 
       // either close or show the nuclear mask as desired
@@ -333,107 +535,309 @@ public class MicroNucleiAnalysisModule extends AnalysisModule {
 
       imp2.changes = false;
       imp2.close();
+   }
 
-      // cycle through the list of micronuclei
-      // assign each to the nearest by nucleus (not more than maxdistance away)
-      for (Point2D.Double mn  : microNuclei) {
-         Point2D.Double cn = Distance.closest(mn, nuclei);
-         if (cn != null && maxDistance > Distance.distance(mn, cn)) {
-            nuclei.get(cn).add(mn);
+        
+   /**
+    * Calculate the size of a bounding box
+    */
+   private long roiSize(Rectangle r) {
+      return r.width * r.height;
+   }
+   
+   /**
+    * Returns the center of the given Roi
+    */
+   private Point getCenter(Roi roi)
+   {
+      Point center = new Point();
+      center.x = roi.getBounds().x + (int) (0.5 * roi.getBounds().width);
+      center.y = roi.getBounds().y + (int) (0.5 * roi.getBounds().height);
+      return center;
+   }
+   
+   /**
+    * Re-runs the analysis on a region around each hit, and keeps the hits 
+    * for which the analysis of the region finds hits as well.
+    * With native segmentation, the regions are analyzed in parallel, 
+    * directly on the pixels of the image.  The ImageJ segmentation uses 
+    * global state, so its regions are analyzed one by one.
+    * 
+    * @param imp complete image, will not be modified
+    * @param cal
+    * @param parms
+    * @param hits hits found in the complete image
+    * @return hits confirmed in their region, in the original order
+    * @throws MMScriptException when interrupted
+    */
+   private Roi[] checkInRegions(final ImagePlus imp, final Calibration cal,
+           final AnalysisParameters parms, Roi[] hits) 
+           throws MMScriptException {
+      final boolean[] confirmed = new boolean[hits.length];
+      if (!parms.getBoolean(useNativeSegmentation_) || hits.length < 2) {
+         for (int i = 0; i < hits.length; i++) {
+            confirmed[i] = checkInRegion(imp, cal, parms, hits[i]);
          }
-      }
-
-      // report what we found
-      res.reset();
-
-      // this is a bit funky, but seems to work
-      double roiMinSize = pixelSize * pixelSize * nucleiMinSize * 10;
-      for (Point2D.Double p  : nuclei.keySet()) {
-         res.incrementCounter();
-         res.addValue("X", p.x);
-         res.addValue("Y", p.y);
-         ArrayList<Point2D.Double> mnList = nuclei.get(p);
-         res.addValue("# mN", mnList.size());
-         int zapit = 0;
-         if (nuclei.get(p).size() >= minNumMNperNucleus) {
-            double nSize = nucleiSizes.get(p);
-            // make sure that this nucleus is not too large
-            if (nSize < nucleiMaxSize) {
-            // add to our target nuclei, except if these happen to be two nuclei that were 
-               // lying close together. 
-               if (mnList.size() == 2) {
-                  Roi r0 = microNucleiROIs.get(mnList.get(0));
-                  Roi r1 = microNucleiROIs.get(mnList.get(1));
-                  if ((r0 != null && roiSize(r0) < roiMinSize)
-                          || (r1 != null && roiSize(r1) < roiMinSize)) {
-                     zapNuclei.add(p);
-                     zapit = 1;
-                  }
-               } else {
-                  zapNuclei.add(p);
-                  zapit = 1;
+      } else {
+         final String well = Metrics.getWell();
+         List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+         for (final Roi roi : hits) {
+            futures.add(getRegionPool().submit(new Callable<Boolean>() {
+               @Override
+               public Boolean call() throws MMScriptException {
+                  Metrics.setWell(well);
+                  return checkInRegion(imp, cal, parms, roi);
                }
+            }));
+         }
+         try {
+            for (int i = 0; i < hits.length; i++) {
+               confirmed[i] = futures.get(i).get();
+            }
+         } catch (InterruptedException ie) {
+            for (Future<Boolean> future : futures) {
+               future.cancel(true);
+            }
+            Thread.currentThread().interrupt();
+            throw new MMScriptException("Interrupted while checking hits");
+         } catch (ExecutionException ee) {
+            if (ee.getCause() instanceof RuntimeException) {
+               throw (RuntimeException) ee.getCause();
             }
+            if (ee.getCause() instanceof MMScriptException) {
+               throw (MMScriptException) ee.getCause();
+            }
+            throw new MMScriptException(ee.getCause());
          }
-         res.addValue("Zap", zapit);
       }
-
-      res.show("Results");
-     
-
-      // get a list with rois that we want to zap
-      ArrayList<Roi> zapRois = new ArrayList<Roi>();
-      for (Point2D.Double p  : zapNuclei) {
-         Roi roi = nucleiRois.get(p);
-         zapRois.add(roi);
+      ArrayList<Roi> cleanedHits = new ArrayList<Roi>();
+      for (int i = 0; i < hits.length; i++) {
+         if (confirmed[i]) {
+            cleanedHits.add(hits[i]);
+         }
       }
+      return cleanedHits.toArray(new Roi[cleanedHits.size()]);
+   }
 
-      ij.IJ.log("mn: " + microNuclei.size() + ", n: " + nuclei.size() + 
-                 ", zap: " + zapRois.size());
+   private boolean checkInRegion(ImagePlus imp, Calibration cal,
+           AnalysisParameters parms, Roi roi) throws MMScriptException {
+      return analyzeImagePlus(imp, getRegion(imp, roi, REGIONSIZE), cal, 
+              parms, null, null, regionSegmenter_.get()) > 0;
+   }
+
+   /**
+    * Segments a large image as overlapping tiles, all at the same time, so 
+    * that memory use is bounded by the tile size and the number of 
+    * processors rather than by the image size.
+    * 
+    * Each tile is extended by a halo wide enough for the filters and for 
+    * the largest particle kept.  A first pass filters all tiles and adds 
+    * up the histograms of their cores, so that the second pass can 
+    * segment each tile with the Otsu threshold of the whole image.  A 
+    * particle belongs to the tile whose core contains the center of its 
+    * bounding box, so particles crossing a seam are found once, whole.
+    * The particles are moved to the coordinates of the image, so that 
+    * micronuclei are assigned to nuclei as if the image was not tiled.
+    * 
+    * @param ip image to be analyzed
+    * @param parms analysis parameters
+    * @param pixelSize size of a pixel in microns
+    * @param tileSize width and height of the tiles without halo, in pixels
+    * @param mnParticles list to which the micronuclei will be added
+    * @param nParticles list to which the nuclei will be added
+    * @throws MMScriptException when interrupted
+    */
+   private void segmentInTiles(final ImageProcessor ip, 
+           final AnalysisParameters parms, final double pixelSize, 
+           int tileSize, List<Particle> mnParticles, 
+           List<Particle> nParticles) throws MMScriptException {
+      final double mnMinSize = parms.getDouble(minSizeMN_);
+      final double mnMaxSize = parms.getDouble(maxSizeMN_);
+      final double nMinSize = parms.getDouble(minSizeN_);
+      // as in analyzeImagePlus, large nuclei are weeded out later
+      final double nMaxSize = 4 * parms.getDouble(maxSizeN_);
+      final boolean fastBlur = parms.getBoolean(fastBlur_);
+      final int binning = Math.max(1, parms.getInteger(nucleiBinning_));
+      // tiles and halo are multiples of the binning, so that binned tiles
+      // line up with the binned image
+      tileSize = (tileSize + binning - 1) / binning * binning;
+      double maxPixels = Math.max(mnMaxSize, nMaxSize) / 
+              (pixelSize * pixelSize);
+      int halo = (int) Math.ceil(NUCLEISIGMA * 
+              Math.sqrt(-2.0 * Math.log(ImageFilters.GAUSSIAN_ACCURACY))) + 2 
+              + (int) Math.ceil(2.0 * Math.sqrt(maxPixels / Math.PI)) + 1;
+      halo = (halo + binning - 1) / binning * binning;
       
-      // make sure that we do not zap if there are too many nuclei in the image
-      if (nuclei.size() > maxNumberOfNuclei) {
-         zapRois.clear();
-         ij.IJ.log("Not zapping cells since there are too many nuclei per image");
-         
-      }
-      // make sure that we do not zap if there are too many cells to be zapped
-      if (zapRois.size() > maxNumberOfZaps) {
-         zapRois.clear();
-         ij.IJ.log("Not zapping cells since there are too many cells to be zapped");
+      final int width = ip.getWidth();
+      final int height = ip.getHeight();
+      final List<Rectangle> cores = new ArrayList<Rectangle>();
+      final List<Rectangle> tiles = new ArrayList<Rectangle>();
+      for (int y = 0; y < height; y += tileSize) {
+         for (int x = 0; x < width; x += tileSize) {
+            Rectangle core = new Rectangle(x, y, Math.min(tileSize, width - x),
+                    Math.min(tileSize, height - y));
+            Rectangle tile = new Rectangle(core.x - halo, core.y - halo, 
+                    core.width + 2 * halo, core.height + 2 * halo).
+                    intersection(new Rectangle(0, 0, width, height));
+            cores.add(core);
+            tiles.add(tile);
+         }
       }
       
-      nrNuclei.set(nuclei.size());
+      // first pass: the histograms of the filtered images
+      final PixelStatistics mnStatistics = new PixelStatistics();
+      final PixelStatistics nStatistics = new PixelStatistics();
+      final String well = Metrics.getWell();
+      List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+      for (int i = 0; i < tiles.size(); i++) {
+         final Rectangle tile = tiles.get(i);
+         final Rectangle area = new Rectangle(cores.get(i));
+         area.translate(-tile.x, -tile.y);
+         tasks.add(new Callable<Object>() {
+            @Override
+            public Object call() {
+               Metrics.setWell(well);
+               NativeSegmenter segmenter = tileSegmenter_.get();
+               segmenter.setFastBlur(fastBlur);
+               segmenter.setNucleiBinning(binning);
+               PixelStatistics statistics = 
+                       segmenter.countMicroNuclei(ip, tile, area);
+               synchronized (mnStatistics) {
+                  mnStatistics.add(statistics);
+               }
+               statistics = segmenter.countNuclei(ip, tile, area, 
+                       NUCLEISIGMA);
+               synchronized (nStatistics) {
+                  nStatistics.add(statistics);
+               }
+               return null;
+            }
+         });
+      }
+      runInRegionPool(tasks);
       
-      return zapRois.toArray(new Roi[zapRois.size()]);
+      // second pass: segment with the thresholds of the whole image, and 
+      // keep the particles centered in the core
+      final int mnThreshold = mnStatistics.getOtsuThreshold();
+      final int nThreshold = nStatistics.getOtsuThreshold();
+      List<List<Particle>> tileMNs = new ArrayList<List<Particle>>();
+      List<List<Particle>> tileNs = new ArrayList<List<Particle>>();
+      tasks.clear();
+      for (int i = 0; i < tiles.size(); i++) {
+         final Rectangle tile = tiles.get(i);
+         final Rectangle core = cores.get(i);
+         final List<Particle> mns = new ArrayList<Particle>();
+         final List<Particle> ns = new ArrayList<Particle>();
+         tileMNs.add(mns);
+         tileNs.add(ns);
+         tasks.add(new Callable<Object>() {
+            @Override
+            public Object call() {
+               Metrics.setWell(well);
+               NativeSegmenter segmenter = tileSegmenter_.get();
+               segmenter.setFastBlur(fastBlur);
+               segmenter.setNucleiBinning(binning);
+               List<Particle> found = new ArrayList<Particle>();
+               segmenter.findMicroNuclei(ip, tile, pixelSize, mnMinSize, 
+                       mnMaxSize, mnThreshold, found);
+               keepInCore(found, tile, core, false, mns);
+               found.clear();
+               segmenter.findNuclei(ip, tile, pixelSize, NUCLEISIGMA, 
+                       nMinSize, nMaxSize, nThreshold, found);
+               keepInCore(found, tile, core, true, ns);
+               return null;
+            }
+         });
+      }
+      runInRegionPool(tasks);
+      // in tile order, so that results do not depend on timing
+      for (int i = 0; i < tiles.size(); i++) {
+         mnParticles.addAll(tileMNs.get(i));
+         nParticles.addAll(tileNs.get(i));
+      }
    }
 
-        
    /**
-    * Calculate the size of an ImageJ ROI
+    * Adds the particles whose bounding box is centered in the core of the 
+    * tile to the result, moved to the coordinates of the whole image.
+    * Outlines are traced before the segmenter moves on to the next image
+    * @param found particles found in the tile
+    * @param tile tile including its halo
+    * @param core part of the tile this tile is responsible for
+    * @param outlines whether outlines of the particles should be kept
+    * @param result list the particles in the core will be added to
     */
-   private long roiSize(Roi r) {
-      return r.getBounds().width * r.getBounds().height;
+   private static void keepInCore(List<Particle> found, Rectangle tile, 
+           Rectangle core, boolean outlines, List<Particle> result) {
+      for (Particle particle : found) {
+         Rectangle bounds = particle.getBounds();
+         // twice the center, to stay in integers
+         int x2 = 2 * (tile.x + bounds.x) + bounds.width;
+         int y2 = 2 * (tile.y + bounds.y) + bounds.height;
+         if (x2 >= 2 * core.x && x2 < 2 * (core.x + core.width) && 
+                 y2 >= 2 * core.y && y2 < 2 * (core.y + core.height)) {
+            result.add(particle.translate(tile.x, tile.y, outlines));
+         }
+      }
    }
-   
+
    /**
-    * Returns the center of the given Roi
+    * Runs the tasks in the region pool and waits until all are done
+    * @throws MMScriptException when interrupted, the interrupt flag is then 
+    *          set again
     */
-   private Point getCenter(Roi roi)
-   {
-      Point center = new Point();
-      center.x = roi.getBounds().x + (int) (0.5 * roi.getBounds().width);
-      center.y = roi.getBounds().y + (int) (0.5 * roi.getBounds().height);
-      return center;
+   private static void runInRegionPool(List<Callable<Object>> tasks) 
+           throws MMScriptException {
+      List<Future<Object>> futures = new ArrayList<Future<Object>>();
+      try {
+         for (Callable<Object> task : tasks) {
+            futures.add(getRegionPool().submit(task));
+         }
+         for (Future<Object> future : futures) {
+            future.get();
+         }
+      } catch (InterruptedException ie) {
+         Thread.currentThread().interrupt();
+         throw new MMScriptException("Interrupted while segmenting tiles");
+      } catch (ExecutionException ee) {
+         if (ee.getCause() instanceof RuntimeException) {
+            throw (RuntimeException) ee.getCause();
+         }
+         throw new RuntimeException(ee.getCause());
+      } finally {
+         for (Future<Object> future : futures) {
+            future.cancel(true);
+         }
+      }
    }
-   
+
+   private static synchronized ExecutorService getRegionPool() {
+      if (regionPool_ == null) {
+         regionPool_ = Executors.newFixedThreadPool(
+                 Runtime.getRuntime().availableProcessors(), 
+                 new ThreadFactory() {
+            private int count_ = 0;
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+               Thread thread = new Thread(r, "MicroNuclei worker " + 
+                       (++count_));
+               thread.setDaemon(true);
+               return thread;
+            }
+         });
+      }
+      return regionPool_;
+   }
+
    /**
-    * Returns an ImagePlus of the region around the Roi
+    * Returns the square region around the Roi, moved inside the image when
+    * it would extend beyond its edges
     * @param imp
     * @param roi
-    * @return 
+    * @param size width and height of the region
+    * @return region in pixel coordinates
     */
-   private ImagePlus getRegion (ImagePlus imp, Roi roi, int size) 
+   private Rectangle getRegion (ImagePlus imp, Roi roi, int size) 
    {
       int halfsize = (int) (0.5 * size);
       Point center = getCenter(roi);
@@ -448,15 +852,26 @@ public class MicroNucleiAnalysisModule extends AnalysisModule {
       if (y+ size > imp.getHeight())
          y = imp.getHeight() - size;
       
-      imp.setRoi(x, y, size, size);
-      
-      return imp.duplicate();
+      // as ImageJ does, clip to the image when it is smaller than the region
+      return new Rectangle(x, y, size, size).intersection(
+              new Rectangle(0, 0, imp.getWidth(), imp.getHeight()));
    }
 
-   @Override
-   public void reset() {
-      nucleiCount_ = 0;
-      zappedNucleiCount_ = 0; 
+   /**
+    * Copies a region of the image, without setting a Roi on the image
+    */
+   private ImagePlus crop(ImagePlus imp, Rectangle region) {
+      ImageProcessor ip = imp.getProcessor().createProcessor(region.width, 
+              region.height);
+      ImageProcessor source = imp.getProcessor();
+      for (int y = 0; y < region.height; y++) {
+         for (int x = 0; x < region.width; x++) {
+            ip.set(x, y, source.get(region.x + x, region.y + y));
+         }
+      }
+      ImagePlus cropped = new ImagePlus(imp.getTitle(), ip);
+      cropped.setCalibration(imp.getCalibration());
+      return cropped;
    }
 
    @Override
@@ -0,0 +1,545 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei.analysis;
+
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import org.micromanager.micronuclei.metrics.Metrics;
+
+/**
+ * Segmentation engine that works directly on the pixel arrays instead of
+ * running ImageJ commands on ImagePlus copies.
+ *
+ * Every step reproduces the ImageJ command used in the macro path
+ * ("Sharpen", "Smooth", "Otsu dark" auto threshold, "Convert to Mask" with
+ * black background, binary "Dilate", "Erode", "Close-" with default
+ * options, and "Analyze Particles..." with 8-connected particles).
+ * "Smooth" and "Gaussian Blur..." are done as one filter by ImageFilters, 
+ * and the watershed by Watershed.  Both are very close to, but not always
+ * the same as ImageJ.  The work on an image can be split over several 
+ * threads with setTiles.
+ * Large images can also be segmented as overlapping tiles, each by its own 
+ * engine: the pixels of all tiles are counted first (countMicroNuclei, 
+ * countNuclei), and the threshold of the whole image is then passed to 
+ * findMicroNuclei and findNuclei for each tile.
+ * The threshold, dilation and erosion work on a BinaryMask, one bit per
+ * pixel, which is unpacked to a byte per pixel for the watershed.
+ *
+ * Buffers are allocated for a given image size and re-used as long as
+ * images of that size are analyzed.  Particle objects are re-used as 
+ * well: those added to the result list by findMicroNuclei remain valid 
+ * until the next call to findMicroNuclei, and likewise for findNuclei.
+ * Instances are not thread safe.
+ * A region of a larger image can be segmented without copying it first;
+ * the image itself is only read, so several engines can segment regions
+ * of the same image at the same time.
+ *
+ * @author nico
+ */
+public class NativeSegmenter {
+
+   private int width_ = 0;
+   private int height_ = 0;
+   private short[] source_;
+   private short[] work_;
+   private byte[] mask_;
+   private BinaryMask bits_;
+   private BinaryMask bitsTmp_;
+   private final PixelStatistics statistics_ = new PixelStatistics();
+   private final ImageFilters filters_ = new ImageFilters();
+   private final ParticleLabeler labeler_ = new ParticleLabeler();
+   private final Watershed watershed_ = new Watershed();
+   // particles handed out by the last findMicroNuclei and findNuclei
+   private final List<Particle> microNuclei_ = new ArrayList<Particle>();
+   private final List<Particle> nuclei_ = new ArrayList<Particle>();
+   private int[] binSums_ = new int[0];
+   private Watershed[] tiles_ = null;
+   private ExecutorService executor_ = null;
+   // nuclei are segmented in an image binned by this factor
+   private int nucleiBinning_ = 1;
+   // segments the binned image, created when first needed
+   private NativeSegmenter binned_ = null;
+
+   /**
+    * Splits the filters, histograms and watershed of each image over 
+    * several threads
+    * @param nrTiles number of horizontal bands, 1 or less to work on the 
+    *                whole image in the calling thread
+    * @param executor runs the bands
+    */
+   public void setTiles(int nrTiles, ExecutorService executor) {
+      if (nrTiles > 1 && executor != null) {
+         tiles_ = new Watershed[nrTiles];
+         for (int i = 0; i < nrTiles; i++) {
+            tiles_[i] = new Watershed();
+         }
+         executor_ = executor;
+      } else {
+         tiles_ = null;
+         executor_ = null;
+      }
+      statistics_.setBands(nrTiles, executor);
+      filters_.setBands(nrTiles, executor);
+      if (binned_ != null) {
+         binned_.setTiles(nrTiles, executor);
+      }
+   }
+
+   /**
+    * @param fast when true, the Gaussian blur of nuclei is approximated 
+    *             with box filters, see ImageFilters
+    */
+   public void setFastBlur(boolean fast) {
+      filters_.setFast(fast);
+      if (binned_ != null) {
+         binned_.setFastBlur(fast);
+      }
+   }
+
+   /**
+    * Nuclei are large and blurred before segmentation, so they can be 
+    * found in a binned image, which is much faster.  Their mask is 
+    * enlarged to the full resolution again before the particles are 
+    * measured, so results are in full resolution pixels, but outlines 
+    * follow the binned pixels.  Micronuclei are always segmented at full 
+    * resolution.
+    * @param binning 1 for full resolution, 2 or 4 to bin the image 2x2 or 
+    *                4x4 before segmenting the nuclei
+    */
+   public void setNucleiBinning(int binning) {
+      nucleiBinning_ = Math.max(1, binning);
+   }
+
+   /**
+    * Finds micronuclei by sharpening, Otsu segmentation, closing,
+    * and watershed
+    *
+    * @param ip 8 or 16-bit image
+    * @param pixelSize size of a pixel in microns
+    * @param minSize minimum size of a micronucleus in micron^2
+    * @param maxSize maximum size of a micronucleus in micron^2
+    * @param result List to which the micronuclei found will be added
+    */
+   public void findMicroNuclei(ImageProcessor ip, double pixelSize,
+           double minSize, double maxSize, List<Particle> result) {
+      findMicroNuclei(ip, null, pixelSize, minSize, maxSize, -1, result);
+   }
+
+   /**
+    * Finds micronuclei in a region of the image.  Bounds of the particles
+    * found are relative to the region
+    *
+    * @param ip 8 or 16-bit image
+    * @param region part of the image to be analyzed, null for all of it
+    * @param pixelSize size of a pixel in microns
+    * @param minSize minimum size of a micronucleus in micron^2
+    * @param maxSize maximum size of a micronucleus in micron^2
+    * @param result List to which the micronuclei found will be added
+    */
+   public void findMicroNuclei(ImageProcessor ip, Rectangle region,
+           double pixelSize, double minSize, double maxSize,
+           List<Particle> result) {
+      findMicroNuclei(ip, region, pixelSize, minSize, maxSize, -1, result);
+   }
+
+   /**
+    * Finds micronuclei in a region of the image, using the given threshold
+    * instead of the Otsu threshold of the region itself
+    *
+    * @param ip 8 or 16-bit image
+    * @param region part of the image to be analyzed, null for all of it
+    * @param pixelSize size of a pixel in microns
+    * @param minSize minimum size of a micronucleus in micron^2
+    * @param maxSize maximum size of a micronucleus in micron^2
+    * @param threshold sharpened pixels at or above this value are 
+    *                  foreground, -1 for the Otsu threshold of the region
+    * @param result List to which the micronuclei found will be added
+    */
+   public void findMicroNuclei(ImageProcessor ip, Rectangle region,
+           double pixelSize, double minSize, double maxSize, int threshold,
+           List<Particle> result) {
+      long start = Metrics.start();
+      load(ip, region);
+      start = lap(Metrics.LOAD, start);
+      filters_.sharpen(source_, work_, width_, height_);
+      start = lap(Metrics.SHARPEN, start);
+      convertToMask(work_, bits_, threshold);
+      start = lap(Metrics.THRESHOLD, start);
+      bits_.close(bitsTmp_);
+      bits_.toMask(mask_);
+      start = lap(Metrics.DILATEERODE, start);
+      watershed(mask_, maxSize / (pixelSize * pixelSize));
+      start = lap(Metrics.WATERSHED, start);
+      analyzeParticles(mask_, pixelSize, minSize, maxSize, microNuclei_, 
+              result);
+      lap(Metrics.PARTICLES, start);
+   }
+
+   /**
+    * Finds nuclei by smoothing and gaussian filtering, followed by
+    * Otsu segmentation, dilation, erosion, and watershed
+    *
+    * @param ip 8 or 16-bit image
+    * @param pixelSize size of a pixel in microns
+    * @param sigma sigma of the Gaussian blur in pixels
+    * @param minSize minimum size of a nucleus in micron^2
+    * @param maxSize maximum size of a nucleus in micron^2
+    * @param result List to which the nuclei found will be added
+    */
+   public void findNuclei(ImageProcessor ip, double pixelSize, double sigma,
+           double minSize, double maxSize, List<Particle> result) {
+      findNuclei(ip, null, pixelSize, sigma, minSize, maxSize, -1, result);
+   }
+
+   /**
+    * Finds nuclei in a region of the image.  Bounds and outlines of the 
+    * particles found are relative to the region
+    *
+    * @param ip 8 or 16-bit image
+    * @param region part of the image to be analyzed, null for all of it
+    * @param pixelSize size of a pixel in microns
+    * @param sigma sigma of the Gaussian blur in pixels
+    * @param minSize minimum size of a nucleus in micron^2
+    * @param maxSize maximum size of a nucleus in micron^2
+    * @param result List to which the nuclei found will be added
+    */
+   public void findNuclei(ImageProcessor ip, Rectangle region, 
+           double pixelSize, double sigma, double minSize, double maxSize, 
+           List<Particle> result) {
+      findNuclei(ip, region, pixelSize, sigma, minSize, maxSize, -1, result);
+   }
+
+   /**
+    * Finds nuclei in a region of the image, using the given threshold
+    * instead of the Otsu threshold of the region itself
+    *
+    * @param ip 8 or 16-bit image
+    * @param region part of the image to be analyzed, null for all of it
+    * @param pixelSize size of a pixel in microns
+    * @param sigma sigma of the Gaussian blur in pixels
+    * @param minSize minimum size of a nucleus in micron^2
+    * @param maxSize maximum size of a nucleus in micron^2
+    * @param threshold blurred pixels at or above this value are foreground,
+    *                  -1 for the Otsu threshold of the region
+    * @param result List to which the nuclei found will be added
+    */
+   public void findNuclei(ImageProcessor ip, Rectangle region, 
+           double pixelSize, double sigma, double minSize, double maxSize, 
+           int threshold, List<Particle> result) {
+      long start = Metrics.start();
+      load(ip, region);
+      start = lap(Metrics.LOAD, start);
+      double maxPixels = maxSize / (pixelSize * pixelSize);
+      int binning = nucleiBinning_;
+      if (binning > 1) {
+         NativeSegmenter binned = getBinned();
+         binned.bin(source_, width_, height_, binning);
+         start = lap(Metrics.RESAMPLE, start);
+         start = binned.nucleiMask(binnedSigma(sigma, binning), 
+                 maxPixels / (binning * binning), threshold, start);
+         binned.expand(mask_, width_, height_, binning);
+         start = lap(Metrics.RESAMPLE, start);
+      } else {
+         start = nucleiMask(sigma, maxPixels, threshold, start);
+      }
+      analyzeParticles(mask_, pixelSize, minSize, maxSize, nuclei_, result);
+      lap(Metrics.PARTICLES, start);
+   }
+
+   /**
+    * Sharpens a region of the image as findMicroNuclei does, and counts 
+    * the sharpened pixels in part of it.  The statistics of all parts of 
+    * an image added up give the threshold for findMicroNuclei
+    *
+    * @param ip 8 or 16-bit image
+    * @param region part of the image to be sharpened, null for all of it
+    * @param area part of the region to be counted, relative to the region
+    * @return statistics of the area, valid until the next call
+    */
+   public PixelStatistics countMicroNuclei(ImageProcessor ip, 
+           Rectangle region, Rectangle area) {
+      long start = Metrics.start();
+      load(ip, region);
+      start = lap(Metrics.LOAD, start);
+      filters_.sharpen(source_, work_, width_, height_);
+      start = lap(Metrics.SHARPEN, start);
+      statistics_.compute(work_, width_, area);
+      lap(Metrics.THRESHOLD, start);
+      return statistics_;
+   }
+
+   /**
+    * Blurs a region of the image as findNuclei does, and counts the 
+    * blurred pixels in part of it.  The statistics of all parts of an 
+    * image added up give the threshold for findNuclei.  With binning, the 
+    * area should start at a multiple of the binning factor
+    *
+    * @param ip 8 or 16-bit image
+    * @param region part of the image to be blurred, null for all of it
+    * @param area part of the region to be counted, relative to the region
+    * @param sigma sigma of the Gaussian blur in pixels
+    * @return statistics of the area, valid until the next call
+    */
+   public PixelStatistics countNuclei(ImageProcessor ip, Rectangle region,
+           Rectangle area, double sigma) {
+      long start = Metrics.start();
+      load(ip, region);
+      start = lap(Metrics.LOAD, start);
+      int binning = nucleiBinning_;
+      NativeSegmenter segmenter = this;
+      if (binning > 1) {
+         segmenter = getBinned();
+         segmenter.bin(source_, width_, height_, binning);
+         start = lap(Metrics.RESAMPLE, start);
+         sigma = binnedSigma(sigma, binning);
+         int x = area.x / binning;
+         int y = area.y / binning;
+         area = new Rectangle(x, y, 
+                 (area.x + area.width + binning - 1) / binning - x,
+                 (area.y + area.height + binning - 1) / binning - y);
+      }
+      segmenter.filters_.smoothAndBlur(segmenter.source_, segmenter.work_,
+              segmenter.width_, segmenter.height_, sigma);
+      start = lap(Metrics.GAUSSIAN, start);
+      segmenter.statistics_.compute(segmenter.work_, segmenter.width_, area);
+      lap(Metrics.THRESHOLD, start);
+      return segmenter.statistics_;
+   }
+
+   /**
+    * Segments the nuclei in our source buffer into our mask
+    * @param threshold -1 for the Otsu threshold of the blurred image
+    * @param start start time of the first step
+    * @return start time of the next step
+    */
+   private long nucleiMask(double sigma, double maxPixels, int threshold,
+           long start) {
+      filters_.smoothAndBlur(source_, work_, width_, height_, sigma);
+      start = lap(Metrics.GAUSSIAN, start);
+      convertToMask(work_, bits_, threshold);
+      start = lap(Metrics.THRESHOLD, start);
+      bits_.close(bitsTmp_);
+      bits_.toMask(mask_);
+      start = lap(Metrics.DILATEERODE, start);
+      watershed(mask_, maxPixels);
+      return lap(Metrics.WATERSHED, start);
+   }
+
+   /**
+    * Sigma of the Gaussian in the binned image that blurs as much as
+    * smoothing and blurring at full resolution.  Variances add up: binning
+    * itself is a box filter with variance (binning^2 - 1) / 12, and 
+    * smoothing in the binned image adds 2/3 binned pixel^2
+    * @param sigma sigma at full resolution
+    * @param binning binning factor
+    * @return sigma in binned pixels, 0 when binning blurs enough by itself
+    */
+   static double binnedSigma(double sigma, int binning) {
+      double variance = (sigma * sigma + 2.0 / 3.0 
+              - (binning * binning - 1) / 12.0) / (binning * binning) 
+              - 2.0 / 3.0;
+      return variance > 0.0 ? Math.sqrt(variance) : 0.0;
+   }
+
+   private NativeSegmenter getBinned() {
+      if (binned_ == null) {
+         binned_ = new NativeSegmenter();
+         binned_.setTiles(tiles_ == null ? 1 : tiles_.length, executor_);
+         binned_.setFastBlur(filters_.isFast());
+      }
+      return binned_;
+   }
+
+   /**
+    * Fills our source buffer with the mean of each block of 
+    * binning x binning pixels of the given image.  Blocks at the right
+    * and bottom edges can be smaller
+    */
+   private void bin(short[] pixels, int width, int height, int binning) {
+      allocate((width + binning - 1) / binning, 
+              (height + binning - 1) / binning);
+      if (binSums_.length < width_) {
+         binSums_ = new int[width_];
+      }
+      int[] sums = binSums_;
+      for (int by = 0; by < height_; by++) {
+         Arrays.fill(sums, 0, width_, 0);
+         int yEnd = Math.min(height, (by + 1) * binning);
+         for (int y = by * binning; y < yEnd; y++) {
+            int row = y * width;
+            for (int x = 0; x < width; x++) {
+               sums[x / binning] += pixels[row + x] & 0xffff;
+            }
+         }
+         int rows = yEnd - by * binning;
+         for (int bx = 0; bx < width_; bx++) {
+            int n = rows * (Math.min(width, (bx + 1) * binning) - bx * binning);
+            source_[by * width_ + bx] = (short) ((sums[bx] + n / 2) / n);
+         }
+      }
+   }
+
+   /**
+    * Writes our mask at full resolution, every binned pixel becoming a 
+    * block of binning x binning pixels
+    */
+   private void expand(byte[] mask, int width, int height, int binning) {
+      for (int y = 0; y < height; y++) {
+         int row = y * width;
+         int binnedRow = (y / binning) * width_;
+         for (int x = 0; x < width; x++) {
+            mask[row + x] = mask_[binnedRow + x / binning];
+         }
+      }
+   }
+
+   /**
+    * Records the time since start for the given step
+    * @return start time of the next step
+    */
+   private static long lap(String step, long start) {
+      Metrics.stop(step, start);
+      return Metrics.start();
+   }
+
+   /**
+    * Returns a copy of the mask resulting from the last segmentation
+    * @return ByteProcessor with objects in white on a black background
+    */
+   public ByteProcessor getMask() {
+      return new ByteProcessor(width_, height_, mask_.clone());
+   }
+
+   /**
+    * (Re-)allocates the buffers when the size changed
+    */
+   private void allocate(int width, int height) {
+      if (width != width_ || height != height_) {
+         width_ = width;
+         height_ = height;
+         int size = width_ * height_;
+         source_ = new short[size];
+         work_ = new short[size];
+         mask_ = new byte[size];
+         bits_ = new BinaryMask(width_, height_);
+         bitsTmp_ = new BinaryMask(width_, height_);
+      }
+   }
+
+   /**
+    * Copies the input, or the given region of it, into our source buffer
+    */
+   private void load(ImageProcessor ip, Rectangle region) {
+      if (region == null) {
+         region = new Rectangle(0, 0, ip.getWidth(), ip.getHeight());
+      }
+      allocate(region.width, region.height);
+      Object pixels = ip.getPixels();
+      int ipWidth = ip.getWidth();
+      if (pixels instanceof short[]) {
+         for (int y = 0; y < height_; y++) {
+            System.arraycopy(pixels, (region.y + y) * ipWidth + region.x, 
+                    source_, y * width_, width_);
+         }
+      } else if (pixels instanceof byte[]) {
+         byte[] bytes = (byte[]) pixels;
+         for (int y = 0; y < height_; y++) {
+            int offset = (region.y + y) * ipWidth + region.x;
+            int row = y * width_;
+            for (int x = 0; x < width_; x++) {
+               source_[row + x] = (short) (bytes[offset + x] & 0xff);
+            }
+         }
+      } else {
+         throw new IllegalArgumentException("Only 8 and 16-bit images are supported");
+      }
+   }
+
+   /**
+    * Otsu threshold for a dark background, followed by "Convert to Mask".
+    * As in ImageJ, the threshold is calculated on a 256 bin histogram
+    * spanning the range between the minimum and maximum pixel value.
+    * A threshold of 0 or more is used as is
+    */
+   private void convertToMask(short[] in, BinaryMask out, int threshold) {
+      int lower = threshold;
+      if (lower < 0) {
+         statistics_.compute(in);
+         lower = statistics_.getOtsuThreshold();
+      }
+      out.threshold(in, lower);
+   }
+
+   /**
+    * Watershed of our mask buffer.  When split in bands, the halo is
+    * the diameter of a round particle of the largest size kept
+    * @param mask mask to be segmented
+    * @param maxPixels maximum particle size in pixels
+    */
+   private void watershed(byte[] mask, double maxPixels) {
+      if (tiles_ == null) {
+         watershed_.segment(mask, width_, height_);
+         return;
+      }
+      int halo = (int) Math.ceil(2.0 * Math.sqrt(maxPixels / Math.PI)) + 1;
+      try {
+         Watershed.segment(mask, width_, height_, tiles_, halo, executor_);
+      } catch (InterruptedException ie) {
+         Thread.currentThread().interrupt();
+         watershed_.segment(mask, width_, height_);
+      } catch (ExecutionException ee) {
+         throw new RuntimeException(ee.getCause());
+      }
+   }
+
+   /**
+    * Finds 8-connected particles in the mask, and adds those whose size
+    * is within the given range to the result list.  Outlines of the 
+    * particles are traced when asked for, until the next segmentation
+    *
+    * @param mask binary mask, will not be modified
+    * @param pixelSize size of a pixel in microns
+    * @param minSize minimum particle size in micron^2
+    * @param maxSize maximum particle size in micron^2
+    * @param pool particle objects to be re-used, grown when needed
+    * @param result list the particles will be added to
+    */
+   private void analyzeParticles(byte[] mask, double pixelSize, double minSize,
+           double maxSize, List<Particle> pool, List<Particle> result) {
+      final double pixelArea = pixelSize * pixelSize;
+      int count = labeler_.label(mask, width_, height_, minSize / pixelArea,
+              maxSize / pixelArea);
+      for (int i = 0; i < count; i++) {
+         if (i < pool.size()) {
+            pool.get(i).set(labeler_, i, pixelArea);
+         } else {
+            pool.add(new Particle(labeler_, i, pixelArea));
+         }
+         result.add(pool.get(i));
+      }
+   }
+
+}
@@ -0,0 +1,160 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei.analysis;
+
+import ij.gui.Roi;
+import java.awt.Rectangle;
+
+/**
+ * Object found by particle analysis
+ * Bounds are in pixels, area is in calibrated units (micron^2)
+ * The outline can be traced when first asked for, see ParticleLabeler.
+ * Particles found by a NativeSegmenter are re-used by its next 
+ * segmentation of the same kind, see set
+ *
+ * @author nico
+ */
+public class Particle {
+   private final Rectangle bounds_;
+   private double area_;
+   private double centroidX_;
+   private double centroidY_;
+   private Roi roi_;
+   private ParticleLabeler labeler_;
+   private int index_;
+   private int generation_;
+
+   /**
+    * @param bounds bounding box of the particle in pixels
+    * @param area area of the particle in micron^2, or NaN when not measured
+    * @param roi outline of the particle, can be null when not needed
+    */
+   public Particle(Rectangle bounds, double area, Roi roi) {
+      bounds_ = bounds;
+      area_ = area;
+      centroidX_ = bounds.x + 0.5 * bounds.width;
+      centroidY_ = bounds.y + 0.5 * bounds.height;
+      roi_ = roi;
+      labeler_ = null;
+      index_ = -1;
+      generation_ = 0;
+   }
+
+   /**
+    * Particle found by the last labeling of the given labeler.  Its outline
+    * can only be asked for until the labeler labels another mask
+    * @param labeler labeler that found the particle
+    * @param index particle number in the labeler
+    * @param pixelArea area of a pixel in micron^2
+    */
+   public Particle(ParticleLabeler labeler, int index, double pixelArea) {
+      bounds_ = new Rectangle();
+      set(labeler, index, pixelArea);
+   }
+
+   /**
+    * Turns this particle into another one found by the labeler, so that 
+    * particle objects can be re-used from image to image
+    * @param labeler labeler that found the particle
+    * @param index particle number in the labeler
+    * @param pixelArea area of a pixel in micron^2
+    */
+   void set(ParticleLabeler labeler, int index, double pixelArea) {
+      bounds_.setBounds(labeler.getX(index), labeler.getY(index), 
+              labeler.getWidth(index), labeler.getHeight(index));
+      area_ = labeler.getPixelCount(index) * pixelArea;
+      centroidX_ = labeler.getCentroidX(index);
+      centroidY_ = labeler.getCentroidY(index);
+      roi_ = null;
+      labeler_ = labeler;
+      index_ = index;
+      generation_ = labeler.getGeneration();
+   }
+
+   private Particle(Rectangle bounds, double area, double centroidX, 
+           double centroidY, Roi roi) {
+      bounds_ = bounds;
+      area_ = area;
+      centroidX_ = centroidX;
+      centroidY_ = centroidY;
+      roi_ = roi;
+      labeler_ = null;
+      index_ = -1;
+      generation_ = 0;
+   }
+
+   /**
+    * Copy of this particle at another position, for instance to move a 
+    * particle found in a part of an image to the coordinates of the whole 
+    * image.  The outline is traced now when asked for, since the copy no 
+    * longer refers to the labeler
+    * @param dx shift in x in pixels
+    * @param dy shift in y in pixels
+    * @param outline whether the copy should have an outline
+    * @return moved copy
+    */
+   public Particle translate(int dx, int dy, boolean outline) {
+      Rectangle bounds = new Rectangle(bounds_);
+      bounds.translate(dx, dy);
+      Roi roi = outline ? getRoi() : null;
+      if (roi != null) {
+         roi = (Roi) roi.clone();
+         Rectangle r = roi.getBounds();
+         roi.setLocation(r.x + dx, r.y + dy);
+      }
+      return new Particle(bounds, area_, centroidX_ + dx, centroidY_ + dy, 
+              roi);
+   }
+
+   public Rectangle getBounds() {
+      return bounds_;
+   }
+
+   public double getArea() {
+      return area_;
+   }
+
+   /**
+    * @return x coordinate of the center of mass in pixels, or of the
+    *         center of the bounding box when not measured
+    */
+   public double getCentroidX() {
+      return centroidX_;
+   }
+
+   /**
+    * @return y coordinate of the center of mass in pixels, or of the
+    *         center of the bounding box when not measured
+    */
+   public double getCentroidY() {
+      return centroidY_;
+   }
+
+   /**
+    * @return outline of the particle, or null when not available
+    */
+   public Roi getRoi() {
+      if (roi_ == null && labeler_ != null) {
+         roi_ = labeler_.outline(index_, generation_);
+      }
+      return roi_;
+   }
+
+}
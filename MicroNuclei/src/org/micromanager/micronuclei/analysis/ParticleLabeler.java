@@ -0,0 +1,376 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei.analysis;
+
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+import ij.gui.Wand;
+import ij.process.ByteProcessor;
+import java.util.Arrays;
+
+/**
+ * Connected component labeling of a binary mask, with the measurements of
+ * the particles collected while labeling.
+ * 
+ * The mask is scanned once, row by row.  Runs of foreground pixels that 
+ * touch a run in the row above (8-connected) are joined with union-find,
+ * and the pixel count, coordinate sums and bounding box of every run are 
+ * added to its provisional label.  Afterwards, the measurements of merged
+ * labels are combined, particles outside the size range are dropped, and 
+ * the label image is written from the runs.
+ * 
+ * Results are stored in primitive arrays indexed by particle number 
+ * (0 ... getCount() - 1), in the order of the first pixel of each particle,
+ * so that no objects are created per particle.  Outlines are only traced 
+ * when asked for.  Results, including the label image, remain valid until
+ * the next call to label.  Buffers are re-used, instances are not 
+ * thread safe.
+ *
+ * @author nico
+ */
+public class ParticleLabeler {
+   private static final byte FOREGROUND = (byte) 255;
+
+   private byte[] mask_;
+   private int width_;
+   private int height_;
+   private int[] labels_ = new int[0];
+   // increases with every labeling, to detect outlines requested too late
+   private int generation_ = 0;
+
+   // runs of foreground pixels: row, first and last x, provisional label
+   private int[] runY_ = new int[256];
+   private int[] runStart_ = new int[256];
+   private int[] runEnd_ = new int[256];
+   private int[] runLabel_ = new int[256];
+
+   // per provisional label: union-find parent and measurements
+   private int[] parent_ = new int[256];
+   private int[] pixels_ = new int[256];
+   private long[] sumX_ = new long[256];
+   private long[] sumY_ = new long[256];
+   private int[] xMin_ = new int[256];
+   private int[] xMax_ = new int[256];
+   private int[] yMin_ = new int[256];
+   private int[] yMax_ = new int[256];
+   // particle number of each provisional label that survived filtering
+   private int[] particle_ = new int[256];
+
+   // per particle
+   private int count_ = 0;
+   private int[] pCount_ = new int[256];
+   private double[] pCentroidX_ = new double[256];
+   private double[] pCentroidY_ = new double[256];
+   private int[] pX_ = new int[256];
+   private int[] pY_ = new int[256];
+   private int[] pWidth_ = new int[256];
+   private int[] pHeight_ = new int[256];
+   private int[] pFirst_ = new int[256];
+
+   private Wand wand_;
+
+   /**
+    * Labels the 8-connected particles in the mask.  Particles with fewer
+    * than minPixels or more than maxPixels pixels are treated as background
+    * 
+    * @param mask binary mask, with 255 for foreground.  Not modified, but 
+    *             used to trace outlines later, so should not be changed 
+    *             while the results are in use
+    * @param width width of the mask
+    * @param height height of the mask
+    * @param minPixels minimum size of a particle in pixels
+    * @param maxPixels maximum size of a particle in pixels
+    * @return number of particles
+    */
+   public int label(byte[] mask, int width, int height, double minPixels, 
+           double maxPixels) {
+      // the wand can keep tracing in the same mask buffer
+      if (mask != mask_ || width != width_ || height != height_) {
+         wand_ = null;
+      }
+      mask_ = mask;
+      width_ = width;
+      height_ = height;
+      generation_++;
+
+      int nrRuns = 0;
+      int nrLabels = 0;
+      // runs of the previous row are prevFirst .. rowFirst - 1
+      int prevFirst = 0;
+      for (int y = 0; y < height; y++) {
+         int rowFirst = nrRuns;
+         int row = y * width;
+         int p = prevFirst;
+         int x = 0;
+         while (x < width) {
+            if (mask[row + x] != FOREGROUND) {
+               x++;
+               continue;
+            }
+            int start = x;
+            while (x < width && mask[row + x] == FOREGROUND) {
+               x++;
+            }
+            int end = x - 1;
+            if (nrRuns == runY_.length) {
+               growRuns();
+            }
+            // skip runs above that end before this one can touch them
+            while (p < rowFirst && runEnd_[p] < start - 1) {
+               p++;
+            }
+            int label = -1;
+            for (int q = p; q < rowFirst && runStart_[q] <= end + 1; q++) {
+               int other = find(runLabel_[q]);
+               if (label < 0) {
+                  label = other;
+               } else if (other != label) {
+                  // the lowest label becomes the root, so that the root is
+                  // the label of the first run of the particle
+                  if (other < label) {
+                     parent_[label] = other;
+                     label = other;
+                  } else {
+                     parent_[other] = label;
+                  }
+               }
+            }
+            if (label < 0) {
+               if (nrLabels == parent_.length) {
+                  growLabels();
+               }
+               label = nrLabels++;
+               parent_[label] = label;
+               pixels_[label] = 0;
+               sumX_[label] = 0;
+               sumY_[label] = 0;
+               xMin_[label] = start;
+               xMax_[label] = end;
+               yMin_[label] = y;
+               yMax_[label] = y;
+            }
+            int length = end - start + 1;
+            pixels_[label] += length;
+            sumX_[label] += (long) (start + end) * length / 2;
+            sumY_[label] += (long) y * length;
+            if (start < xMin_[label]) {
+               xMin_[label] = start;
+            }
+            if (end > xMax_[label]) {
+               xMax_[label] = end;
+            }
+            yMax_[label] = y;
+            runY_[nrRuns] = y;
+            runStart_[nrRuns] = start;
+            runEnd_[nrRuns] = end;
+            runLabel_[nrRuns] = label;
+            nrRuns++;
+         }
+         prevFirst = rowFirst;
+      }
+
+      // combine measurements of merged labels in their roots.  Parents 
+      // always have lower numbers, so roots are final when reached
+      for (int label = 0; label < nrLabels; label++) {
+         int root = find(label);
+         parent_[label] = root;
+         if (root != label) {
+            pixels_[root] += pixels_[label];
+            sumX_[root] += sumX_[label];
+            sumY_[root] += sumY_[label];
+            xMin_[root] = Math.min(xMin_[root], xMin_[label]);
+            xMax_[root] = Math.max(xMax_[root], xMax_[label]);
+            yMin_[root] = Math.min(yMin_[root], yMin_[label]);
+            yMax_[root] = Math.max(yMax_[root], yMax_[label]);
+         }
+      }
+
+      // size filter, roots are in order of their first pixel
+      count_ = 0;
+      for (int label = 0; label < nrLabels; label++) {
+         particle_[label] = -1;
+         if (parent_[label] != label) {
+            continue;
+         }
+         int n = pixels_[label];
+         if (n < minPixels || n > maxPixels) {
+            continue;
+         }
+         if (count_ == pCount_.length) {
+            growParticles();
+         }
+         particle_[label] = count_;
+         pCount_[count_] = n;
+         pCentroidX_[count_] = (double) sumX_[label] / n + 0.5;
+         pCentroidY_[count_] = (double) sumY_[label] / n + 0.5;
+         pX_[count_] = xMin_[label];
+         pY_[count_] = yMin_[label];
+         pWidth_[count_] = xMax_[label] - xMin_[label] + 1;
+         pHeight_[count_] = yMax_[label] - yMin_[label] + 1;
+         pFirst_[count_] = -1;
+         count_++;
+      }
+
+      // label image, 1 based, and the first pixel of every particle
+      if (labels_.length < width * height) {
+         labels_ = new int[width * height];
+      } else {
+         Arrays.fill(labels_, 0, width * height, 0);
+      }
+      for (int r = 0; r < nrRuns; r++) {
+         int particle = particle_[parent_[runLabel_[r]]];
+         if (particle >= 0) {
+            int offset = runY_[r] * width;
+            Arrays.fill(labels_, offset + runStart_[r], offset + runEnd_[r] + 1,
+                    particle + 1);
+            if (pFirst_[particle] < 0) {
+               pFirst_[particle] = offset + runStart_[r];
+            }
+         }
+      }
+      return count_;
+   }
+
+   private int find(int label) {
+      while (parent_[label] != label) {
+         parent_[label] = parent_[parent_[label]];
+         label = parent_[label];
+      }
+      return label;
+   }
+
+   private void growRuns() {
+      int size = 2 * runY_.length;
+      runY_ = Arrays.copyOf(runY_, size);
+      runStart_ = Arrays.copyOf(runStart_, size);
+      runEnd_ = Arrays.copyOf(runEnd_, size);
+      runLabel_ = Arrays.copyOf(runLabel_, size);
+   }
+
+   private void growLabels() {
+      int size = 2 * parent_.length;
+      parent_ = Arrays.copyOf(parent_, size);
+      pixels_ = Arrays.copyOf(pixels_, size);
+      sumX_ = Arrays.copyOf(sumX_, size);
+      sumY_ = Arrays.copyOf(sumY_, size);
+      xMin_ = Arrays.copyOf(xMin_, size);
+      xMax_ = Arrays.copyOf(xMax_, size);
+      yMin_ = Arrays.copyOf(yMin_, size);
+      yMax_ = Arrays.copyOf(yMax_, size);
+      particle_ = Arrays.copyOf(particle_, size);
+   }
+
+   private void growParticles() {
+      int size = 2 * pCount_.length;
+      pCount_ = Arrays.copyOf(pCount_, size);
+      pCentroidX_ = Arrays.copyOf(pCentroidX_, size);
+      pCentroidY_ = Arrays.copyOf(pCentroidY_, size);
+      pX_ = Arrays.copyOf(pX_, size);
+      pY_ = Arrays.copyOf(pY_, size);
+      pWidth_ = Arrays.copyOf(pWidth_, size);
+      pHeight_ = Arrays.copyOf(pHeight_, size);
+      pFirst_ = Arrays.copyOf(pFirst_, size);
+   }
+
+   /**
+    * @return number of particles found by the last labeling
+    */
+   public int getCount() {
+      return count_;
+   }
+
+   /**
+    * @return label image of the last labeling, 0 for background and 
+    *         particle number + 1 for the pixels of a particle.  Can be 
+    *         longer than width * height
+    */
+   public int[] getLabels() {
+      return labels_;
+   }
+
+   /**
+    * @return value that changes with every labeling
+    */
+   public int getGeneration() {
+      return generation_;
+   }
+
+   public int getPixelCount(int particle) {
+      return pCount_[particle];
+   }
+
+   /**
+    * @return x coordinate of the center of mass, in pixels, where the 
+    *         center of the first pixel is 0.5
+    */
+   public double getCentroidX(int particle) {
+      return pCentroidX_[particle];
+   }
+
+   /**
+    * @return y coordinate of the center of mass, in pixels, where the 
+    *         center of the first pixel is 0.5
+    */
+   public double getCentroidY(int particle) {
+      return pCentroidY_[particle];
+   }
+
+   public int getX(int particle) {
+      return pX_[particle];
+   }
+
+   public int getY(int particle) {
+      return pY_[particle];
+   }
+
+   public int getWidth(int particle) {
+      return pWidth_[particle];
+   }
+
+   public int getHeight(int particle) {
+      return pHeight_[particle];
+   }
+
+   /**
+    * Traces the outline of a particle in the mask, as "Analyze Particles..."
+    * does
+    * @param particle particle number
+    * @param generation value of getGeneration when the particle was found
+    * @return outline of the particle
+    * @throws IllegalStateException when the mask has been labeled again 
+    *          since the particle was found
+    */
+   public Roi outline(int particle, int generation) {
+      if (generation != generation_) {
+         throw new IllegalStateException(
+                 "Outline requested after the mask was labeled again");
+      }
+      if (wand_ == null) {
+         wand_ = new Wand(new ByteProcessor(width_, height_, mask_));
+      }
+      int first = pFirst_[particle];
+      wand_.autoOutline(first % width_, first / width_, 255.0, 255.0);
+      // the wand re-uses its arrays
+      int n = wand_.npoints;
+      return new PolygonRoi(Arrays.copyOf(wand_.xpoints, n), 
+              Arrays.copyOf(wand_.ypoints, n), n, Roi.TRACED_ROI);
+   }
+
+}
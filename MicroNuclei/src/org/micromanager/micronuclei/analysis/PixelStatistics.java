@@ -0,0 +1,291 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei.analysis;
+
+import ij.process.AutoThresholder;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Histogram of an 8 or 16-bit image with one bin per pixel value, built in
+ * a single pass, from which the minimum, maximum, mean, standard deviation
+ * and Otsu threshold are derived without looking at the pixels again.
+ * 
+ * Mean and standard deviation are the same as those of ImageJ's 
+ * getStatistics.  The Otsu threshold is that of "Otsu dark" auto threshold 
+ * followed by "Convert to Mask": the Otsu method is applied to a histogram
+ * of 256 bins spanning the range between minimum and maximum.
+ * 
+ * Large images can be split in bands that are counted at the same time,
+ * each in its own histogram, which are added up afterwards.  In the same 
+ * way, the statistics of several images can be added up.
+ * 
+ * Buffers are re-used, instances are not thread safe.
+ *
+ * @author nico
+ */
+public class PixelStatistics {
+   private static final int NRVALUES = 65536;
+   // images with fewer pixels are always counted in the calling thread
+   private static final int MINPARALLELPIXELS = 1 << 20;
+
+   private final int[] histogram_ = new int[NRVALUES];
+   private final int[] histogram256_ = new int[256];
+   private final AutoThresholder thresholder_ = new AutoThresholder();
+   private ExecutorService executor_ = null;
+   private int[][] bandHistograms_ = new int[0][];
+   private long count_;
+   private int min_;
+   private int max_;
+   private double mean_;
+   private double stdDev_;
+   private int otsu_ = -1;
+
+   /**
+    * Splits the counting of large images over several threads
+    * @param nrBands number of bands, 1 or less to count in the calling thread
+    * @param executor runs the bands
+    */
+   public void setBands(int nrBands, ExecutorService executor) {
+      if (nrBands > 1 && executor != null) {
+         bandHistograms_ = new int[nrBands][NRVALUES];
+         executor_ = executor;
+      } else {
+         bandHistograms_ = new int[0][];
+         executor_ = null;
+      }
+   }
+
+   /**
+    * Counts the pixels of an image
+    * @param pixels byte[] or short[] pixels, values are unsigned
+    */
+   public void compute(Object pixels) {
+      final int length;
+      if (pixels instanceof short[]) {
+         length = ((short[]) pixels).length;
+      } else if (pixels instanceof byte[]) {
+         length = ((byte[]) pixels).length;
+      } else {
+         throw new IllegalArgumentException("Only 8 and 16-bit images are supported");
+      }
+      Arrays.fill(histogram_, 0);
+      if (executor_ == null || length < MINPARALLELPIXELS) {
+         count(pixels, 0, length, histogram_);
+      } else {
+         try {
+            countInBands(pixels, length);
+         } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            Arrays.fill(histogram_, 0);
+            count(pixels, 0, length, histogram_);
+         } catch (ExecutionException ee) {
+            throw new RuntimeException(ee.getCause());
+         }
+      }
+      summarize(length);
+   }
+
+   /**
+    * Counts the pixels in part of an image, in the calling thread
+    * @param pixels 16-bit image
+    * @param width width of the image
+    * @param area part of the image to be counted
+    */
+   public void compute(short[] pixels, int width, Rectangle area) {
+      Arrays.fill(histogram_, 0);
+      for (int y = area.y; y < area.y + area.height; y++) {
+         int offset = y * width + area.x;
+         count(pixels, offset, offset + area.width, histogram_);
+      }
+      summarize((long) area.width * area.height);
+   }
+
+   /**
+    * Empties the histogram, before adding the histograms of other images
+    */
+   public void clear() {
+      Arrays.fill(histogram_, 0);
+      summarize(0);
+   }
+
+   /**
+    * Adds the pixels counted by another instance, as if the pixels of 
+    * both images were counted together, for instance to combine the 
+    * tiles of an image
+    * @param other statistics of another image
+    */
+   public void add(PixelStatistics other) {
+      for (int v = other.min_; v <= other.max_ && other.count_ > 0; v++) {
+         histogram_[v] += other.histogram_[v];
+      }
+      summarize(count_ + other.count_);
+   }
+
+   private void countInBands(final Object pixels, int length) 
+           throws InterruptedException, ExecutionException {
+      final int nrBands = bandHistograms_.length;
+      List<Future<Object>> futures = new ArrayList<Future<Object>>();
+      for (int i = 0; i < nrBands; i++) {
+         final int[] histogram = bandHistograms_[i];
+         final int from = (int) ((long) i * length / nrBands);
+         final int to = (int) ((long) (i + 1) * length / nrBands);
+         futures.add(executor_.submit(new Callable<Object>() {
+            @Override
+            public Object call() {
+               Arrays.fill(histogram, 0);
+               count(pixels, from, to, histogram);
+               return null;
+            }
+         }));
+      }
+      try {
+         for (Future<Object> future : futures) {
+            future.get();
+         }
+      } finally {
+         for (Future<Object> future : futures) {
+            future.cancel(true);
+         }
+      }
+      for (int[] band : bandHistograms_) {
+         for (int v = 0; v < NRVALUES; v++) {
+            histogram_[v] += band[v];
+         }
+      }
+   }
+
+   private static void count(Object pixels, int from, int to, int[] histogram) {
+      if (pixels instanceof short[]) {
+         short[] shorts = (short[]) pixels;
+         for (int i = from; i < to; i++) {
+            histogram[shorts[i] & 0xffff]++;
+         }
+      } else {
+         byte[] bytes = (byte[]) pixels;
+         for (int i = from; i < to; i++) {
+            histogram[bytes[i] & 0xff]++;
+         }
+      }
+   }
+
+   /**
+    * Derives the statistics from the histogram
+    */
+   private void summarize(long count) {
+      count_ = count;
+      otsu_ = -1;
+      min_ = 0;
+      max_ = 0;
+      mean_ = 0.0;
+      stdDev_ = 0.0;
+      if (count == 0) {
+         return;
+      }
+      min_ = 0;
+      while (histogram_[min_] == 0) {
+         min_++;
+      }
+      max_ = NRVALUES - 1;
+      while (histogram_[max_] == 0) {
+         max_--;
+      }
+      long sum = 0;
+      double sum2 = 0.0;
+      for (int v = min_; v <= max_; v++) {
+         long n = histogram_[v];
+         sum += n * v;
+         sum2 += (double) (n * v) * v;
+      }
+      mean_ = (double) sum / count;
+      if (count > 1) {
+         double variance = (count * sum2 - (double) sum * sum) / count 
+                 / (count - 1.0);
+         stdDev_ = variance > 0.0 ? Math.sqrt(variance) : 0.0;
+      }
+   }
+
+   /**
+    * @return the histogram of the last image, one bin per value, not a copy
+    */
+   public int[] getHistogram() {
+      return histogram_;
+   }
+
+   public long getCount() {
+      return count_;
+   }
+
+   public int getMin() {
+      return min_;
+   }
+
+   public int getMax() {
+      return max_;
+   }
+
+   public double getMean() {
+      return mean_;
+   }
+
+   /**
+    * @return sample standard deviation, as calculated by ImageJ
+    */
+   public double getStdDev() {
+      return stdDev_;
+   }
+
+   /**
+    * Lowest value that becomes foreground with ImageJ's "Otsu dark" auto
+    * threshold and "Convert to Mask"
+    * @return threshold, pixels at or above this value are foreground
+    */
+   public int getOtsuThreshold() {
+      if (otsu_ < 0) {
+         otsu_ = min_;
+         if (max_ > min_) {
+            Arrays.fill(histogram256_, 0);
+            double scale = 256.0 / (max_ - min_ + 1);
+            for (int v = min_; v <= max_; v++) {
+               int bin = (int) ((v - min_) * scale + 0.5);
+               if (bin > 255) {
+                  bin = 255;
+               }
+               histogram256_[bin] += histogram_[v];
+            }
+            int threshold = thresholder_.getThreshold(
+                    AutoThresholder.Method.Otsu, histogram256_);
+            double level = threshold + 1;
+            if (level > 255) {
+               level = 255;
+            }
+            otsu_ = (int) Math.round(min_ + (level / 255.0) * (max_ - min_));
+         }
+      }
+      return otsu_;
+   }
+
+}
@@ -0,0 +1,252 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei.analysis;
+
+/**
+ * Uniform grid over a set of points, used to find the nucleus closest to
+ * a micronucleus without looking at all nuclei.
+ * Points are referred to by their index in the coordinate arrays handed to
+ * build().  The grid is stored as a sorted index array with per-cell offsets
+ * so that no objects are created per point.  An instance can be re-built
+ * many times, its arrays are only re-allocated when they are too small.
+ * Not thread-safe, but queries on an index that is no longer being built
+ * can be run from multiple threads.
+ *
+ * @author nico
+ */
+public class PointIndex {
+   // limits the number of cells when the search radius is small compared
+   // to the extent of the points
+   private static final int MAXCELLSPERPOINT = 4;
+
+   private double[] x_ = new double[0];
+   private double[] y_ = new double[0];
+   private int n_ = 0;
+   private double minX_;
+   private double minY_;
+   private double cellSize_;
+   private int nx_;
+   private int ny_;
+   private int[] cellStart_ = new int[1];
+   private int[] cellItems_ = new int[0];
+
+   /**
+    * (Re)builds the index
+    * @param x x coordinates of the points
+    * @param y y coordinates of the points
+    * @param n number of points to use from the arrays
+    * @param searchRadius typical radius of the queries that will be run.
+    *          Used to pick the cell size, can be Double.POSITIVE_INFINITY
+    *          when unknown
+    */
+   public void build(double[] x, double[] y, int n, double searchRadius) {
+      if (x_.length < n) {
+         x_ = new double[n];
+         y_ = new double[n];
+         cellItems_ = new int[n];
+      }
+      System.arraycopy(x, 0, x_, 0, n);
+      System.arraycopy(y, 0, y_, 0, n);
+      n_ = n;
+      if (n == 0) {
+         nx_ = ny_ = 0;
+         return;
+      }
+
+      double maxX, maxY;
+      minX_ = maxX = x[0];
+      minY_ = maxY = y[0];
+      for (int i = 1; i < n; i++) {
+         minX_ = Math.min(minX_, x[i]);
+         maxX = Math.max(maxX, x[i]);
+         minY_ = Math.min(minY_, y[i]);
+         maxY = Math.max(maxY, y[i]);
+      }
+      double width = maxX - minX_;
+      double height = maxY - minY_;
+      // cells of roughly one point each, unless the queries are larger
+      double cellSize = Math.sqrt(width * height / n);
+      if (searchRadius > cellSize && !Double.isInfinite(searchRadius)) {
+         cellSize = searchRadius;
+      }
+      if (!(cellSize > 0.0)) {
+         cellSize = Math.max(Math.max(width, height), 1.0);
+      }
+      while ( (width / cellSize + 1) * (height / cellSize + 1) >
+              (double) MAXCELLSPERPOINT * n + 1) {
+         cellSize *= 2.0;
+      }
+      cellSize_ = cellSize;
+      nx_ = (int) (width / cellSize) + 1;
+      ny_ = (int) (height / cellSize) + 1;
+
+      // counting sort of the points into the cells
+      int nCells = nx_ * ny_;
+      if (cellStart_.length < nCells + 1) {
+         cellStart_ = new int[nCells + 1];
+      } else {
+         java.util.Arrays.fill(cellStart_, 0, nCells + 1, 0);
+      }
+      for (int i = 0; i < n; i++) {
+         cellStart_[cell(i) + 1]++;
+      }
+      for (int c = 0; c < nCells; c++) {
+         cellStart_[c + 1] += cellStart_[c];
+      }
+      // fill from the back so that each cell lists its points in input order
+      for (int i = n - 1; i >= 0; i--) {
+         int c = cell(i);
+         cellItems_[cellStart_[c + 1] - 1] = i;
+         cellStart_[c + 1]--;
+      }
+      // cellStart_[c + 1] now holds the start of cell c; shift back
+      for (int c = 0; c < nCells; c++) {
+         cellStart_[c] = cellStart_[c + 1];
+      }
+      cellStart_[nCells] = n;
+   }
+
+   private int cell(int i) {
+      int cx = Math.min((int) ((x_[i] - minX_) / cellSize_), nx_ - 1);
+      int cy = Math.min((int) ((y_[i] - minY_) / cellSize_), ny_ - 1);
+      return cy * nx_ + cx;
+   }
+
+   public int size() {
+      return n_;
+   }
+
+   /**
+    * Finds the point closest to (x, y) that lies less than maxDistance away.
+    * When several points are equally close, the one with the lowest index
+    * is returned.
+    * @param x
+    * @param y
+    * @param maxDistance only points closer than this are considered.  Use
+    *          Double.POSITIVE_INFINITY for an unbounded search
+    * @return index of the closest point, or -1 when there is none
+    */
+   public int nearest(double x, double y, double maxDistance) {
+      if (n_ == 0) {
+         return -1;
+      }
+      double fx = (x - minX_) / cellSize_;
+      double fy = (y - minY_) / cellSize_;
+      int qx = (int) Math.floor(fx);
+      int qy = (int) Math.floor(fy);
+      // number of rings needed to have looked at every cell
+      int maxRing = Math.max(Math.max(qx, nx_ - 1 - qx),
+              Math.max(qy, ny_ - 1 - qy));
+
+      double bound = maxDistance * maxDistance;
+      int best = -1;
+      double bestD = Double.POSITIVE_INFINITY;
+      for (int ring = 0; ring <= maxRing; ring++) {
+         // points in this ring are at least (ring - 1) cells away
+         if (ring > 0) {
+            double gap = (ring - 1) * cellSize_;
+            double limit = Math.min(bestD, bound);
+            if (gap * gap >= limit) {
+               break;
+            }
+         }
+         int y0 = Math.max(qy - ring, 0);
+         int y1 = Math.min(qy + ring, ny_ - 1);
+         for (int cy = y0; cy <= y1; cy++) {
+            boolean edgeRow = cy == qy - ring || cy == qy + ring;
+            if (edgeRow) {
+               int x0 = Math.max(qx - ring, 0);
+               int x1 = Math.min(qx + ring, nx_ - 1);
+               for (int cx = x0; cx <= x1; cx++) {
+                  best = nearestInCell(cy * nx_ + cx, x, y, bound, best);
+               }
+            } else {
+               // inside the ring only the first and last column are new
+               if (qx - ring >= 0 && qx - ring < nx_) {
+                  best = nearestInCell(cy * nx_ + qx - ring, x, y, bound, best);
+               }
+               if (qx + ring >= 0 && qx + ring < nx_) {
+                  best = nearestInCell(cy * nx_ + qx + ring, x, y, bound, best);
+               }
+            }
+            if (best >= 0) {
+               bestD = distanceSq(best, x, y);
+            }
+         }
+      }
+      return best;
+   }
+
+   private int nearestInCell(int c, double x, double y, double bound, int best) {
+      double bestD = best >= 0 ? distanceSq(best, x, y) : Double.POSITIVE_INFINITY;
+      for (int k = cellStart_[c]; k < cellStart_[c + 1]; k++) {
+         int i = cellItems_[k];
+         double d = distanceSq(i, x, y);
+         if (d < bound && (d < bestD || (d == bestD && i < best))) {
+            bestD = d;
+            best = i;
+         }
+      }
+      return best;
+   }
+
+   private double distanceSq(int i, double x, double y) {
+      double dx = x_[i] - x;
+      double dy = y_[i] - y;
+      return dx * dx + dy * dy;
+   }
+
+   /**
+    * Finds all points that lie less than radius away from (x, y)
+    * @param x
+    * @param y
+    * @param radius
+    * @param result array that will be filled with the indices of the points
+    *          found, as far as it is large enough.  Can be null
+    * @return number of points found, can be larger than result.length
+    */
+   public int withinRadius(double x, double y, double radius, int[] result) {
+      if (n_ == 0) {
+         return 0;
+      }
+      int cx0 = Math.max((int) Math.floor((x - radius - minX_) / cellSize_), 0);
+      int cx1 = Math.min((int) Math.floor((x + radius - minX_) / cellSize_), nx_ - 1);
+      int cy0 = Math.max((int) Math.floor((y - radius - minY_) / cellSize_), 0);
+      int cy1 = Math.min((int) Math.floor((y + radius - minY_) / cellSize_), ny_ - 1);
+      double r2 = radius * radius;
+      int found = 0;
+      for (int cy = cy0; cy <= cy1; cy++) {
+         for (int cx = cx0; cx <= cx1; cx++) {
+            int c = cy * nx_ + cx;
+            for (int k = cellStart_[c]; k < cellStart_[c + 1]; k++) {
+               int i = cellItems_[k];
+               if (distanceSq(i, x, y) < r2) {
+                  if (result != null && found < result.length) {
+                     result[found] = i;
+                  }
+                  found++;
+               }
+            }
+         }
+      }
+      return found;
+   }
+
+}
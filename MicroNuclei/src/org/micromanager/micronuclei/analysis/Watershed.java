@@ -0,0 +1,576 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei.analysis;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Splits touching particles in a binary mask along the valleys of their 
+ * distance map, like ImageJ's "Watershed", but on the mask buffer itself.
+ * 
+ * The exact Euclidean distance of every foreground pixel to the nearest
+ * background pixel is calculated in linear time with the separable 
+ * algorithm of Felzenszwalb and Huttenlocher.  As in ImageJ, pixels 
+ * outside the image are not background.  Maxima of the distance map that
+ * are more than half a pixel above the saddle to any higher maximum are 
+ * used as seeds, and the particles are flooded from the seeds from high to
+ * low distance using a bucket queue.  Pixels reached from two different 
+ * seeds become background, so that the resulting particles are separated 
+ * for 8-connected particle analysis.
+ * 
+ * A part of the mask (a tile) can be segmented on its own, for instance to 
+ * split the work over several threads.  The tile is extended by a halo so
+ * that the particles crossing the tile edge are segmented the same way as
+ * in the whole mask, as long as they are smaller than the halo.
+ * 
+ * Work arrays are re-used as long as they are large enough.  Instances are
+ * not thread safe.
+ *
+ * @author nico
+ */
+public class Watershed {
+   private static final byte FOREGROUND = (byte) 255;
+   // minimum height of a maximum above the saddle to a higher maximum 
+   // (in pixels), as in ImageJ
+   private static final float TOLERANCE = 0.5f;
+   private static final float SQRT2 = 1.4142135624f;
+   // heights are estimated, so a neighbor can be this much higher than a 
+   // maximum, as in ImageJ
+   private static final float MAXSORTINGERROR = 1.1f * SQRT2 / 2f;
+   // the flooding queue has this many levels per pixel of distance
+   private static final int LEVELSPERPIXEL = 4;
+   // largest squared distance whose bucket is looked up in a table
+   private static final int MAXTABLE = 65535;
+   // values in the label array besides the seed numbers
+   private static final int LINE = -1;
+   private static final int QUEUED = -2;
+
+   // area worked on (tile and halo), in image coordinates
+   private int x0_;
+   private int y0_;
+   private int w_;
+   private int h_;
+   private Rectangle tile_;
+   private int nrLines_;
+
+   private byte[] mask_ = new byte[0];
+   private int[] dist2_ = new int[0];
+   private int[] labels_ = new int[0];
+   private int[] next_ = new int[0];
+   private int[] stack_ = new int[0];
+   private byte[] processed_ = new byte[0];
+   private long[] candidates_ = new long[0];
+   // distance transform of a single row or column
+   private int[] f_ = new int[0];
+   private int[] v_ = new int[0];
+   private int[] z_ = new int[0];
+   private int[] head_ = new int[0];
+   private int[] tail_ = new int[0];
+   // bucket of the small squared distances, to avoid square roots
+   private int[] buckets_ = new int[0];
+   // offsets of the opposite neighbors: horizontal, diagonal, vertical, 
+   // and the other diagonal
+   private final int[] offsets_ = new int[4];
+   private int maxLevel_;
+
+   /**
+    * Segments the whole mask
+    * @param mask binary mask, 255 for foreground.  Watershed lines are set
+    *             to 0
+    * @param width width of the mask
+    * @param height height of the mask
+    */
+   public void segment(byte[] mask, int width, int height) {
+      Rectangle all = new Rectangle(0, 0, width, height);
+      compute(mask, width, height, all, 0);
+      apply(mask, width);
+   }
+
+   /**
+    * Segments the mask in horizontal bands, one for each worker, at the
+    * same time.  The result is the same as that of segment, as long as 
+    * the particles that cross the edge of a band are smaller than the halo
+    * 
+    * @param mask binary mask, 255 for foreground.  Watershed lines are set
+    *             to 0
+    * @param width width of the mask
+    * @param height height of the mask
+    * @param workers one instance for each band
+    * @param halo number of pixels by which bands are extended
+    * @param executor runs the bands
+    * @throws InterruptedException
+    * @throws ExecutionException when a band fails
+    */
+   public static void segment(final byte[] mask, final int width, 
+           final int height, Watershed[] workers, final int halo, 
+           ExecutorService executor) 
+           throws InterruptedException, ExecutionException {
+      int nrBands = Math.min(workers.length, height);
+      List<Future<Object>> futures = new ArrayList<Future<Object>>();
+      for (int i = 0; i < nrBands; i++) {
+         final Watershed worker = workers[i];
+         int top = i * height / nrBands;
+         int bottom = (i + 1) * height / nrBands;
+         final Rectangle band = new Rectangle(0, top, width, bottom - top);
+         futures.add(executor.submit(new Callable<Object>() {
+            @Override
+            public Object call() {
+               worker.compute(mask, width, height, band, halo);
+               return null;
+            }
+         }));
+      }
+      try {
+         for (Future<Object> future : futures) {
+            future.get();
+         }
+      } finally {
+         for (Future<Object> future : futures) {
+            future.cancel(true);
+         }
+      }
+      // only write when all bands have read the mask
+      for (int i = 0; i < nrBands; i++) {
+         workers[i].apply(mask, width);
+      }
+   }
+
+   /**
+    * Finds the watershed lines in a tile of the mask, without changing
+    * the mask.  Call apply to set the lines in the mask
+    * 
+    * @param mask binary mask, 255 for foreground
+    * @param width width of the mask
+    * @param height height of the mask
+    * @param tile part of the mask to be segmented
+    * @param halo number of pixels around the tile that are taken into 
+    *             account
+    */
+   public void compute(byte[] mask, int width, int height, Rectangle tile,
+           int halo) {
+      tile_ = tile;
+      x0_ = Math.max(0, tile.x - halo);
+      y0_ = Math.max(0, tile.y - halo);
+      w_ = Math.min(width, tile.x + tile.width + halo) - x0_;
+      h_ = Math.min(height, tile.y + tile.height + halo) - y0_;
+      allocate();
+      for (int y = 0; y < h_; y++) {
+         System.arraycopy(mask, (y0_ + y) * width + x0_, mask_, y * w_, w_);
+      }
+      int maxDist2 = distanceTransform();
+      int nrSeeds = findSeeds();
+      nrLines_ = nrSeeds > 1 ? flood(maxDist2) : 0;
+   }
+
+   /**
+    * Sets the watershed lines found by compute in the mask
+    * @param mask mask handed to compute
+    * @param width width of the mask
+    */
+   public void apply(byte[] mask, int width) {
+      if (nrLines_ == 0) {
+         return;
+      }
+      int xStart = tile_.x - x0_;
+      int yStart = tile_.y - y0_;
+      for (int y = yStart; y < yStart + tile_.height; y++) {
+         int row = y * w_;
+         int maskRow = (y0_ + y) * width + x0_;
+         for (int x = xStart; x < xStart + tile_.width; x++) {
+            if (labels_[row + x] == LINE) {
+               mask[maskRow + x] = 0;
+            }
+         }
+      }
+   }
+
+   private void allocate() {
+      offsets_[0] = 1;
+      offsets_[1] = w_ + 1;
+      offsets_[2] = w_;
+      offsets_[3] = w_ - 1;
+      int size = w_ * h_;
+      if (mask_.length < size) {
+         mask_ = new byte[size];
+         dist2_ = new int[size];
+         labels_ = new int[size];
+         next_ = new int[size];
+         stack_ = new int[size];
+         processed_ = new byte[size];
+      }
+      int line = Math.max(w_, h_);
+      if (f_.length < line) {
+         f_ = new int[line];
+         v_ = new int[line];
+         z_ = new int[line];
+      }
+   }
+
+   /**
+    * Squared Euclidean distance of every pixel to the nearest background
+    * pixel, first along the columns, then along the rows
+    * @return largest squared distance
+    */
+   private int distanceTransform() {
+      final int w = w_;
+      final int h = h_;
+      // larger than any distance within the area, small enough to square
+      final int infinity = w + h;
+      // distance to the nearest background pixel in the same column, 
+      // going down row by row, then going up
+      for (int y = 0; y < h; y++) {
+         int row = y * w;
+         for (int x = 0; x < w; x++) {
+            int i = row + x;
+            if (mask_[i] != FOREGROUND) {
+               dist2_[i] = 0;
+            } else if (y == 0) {
+               dist2_[i] = infinity;
+            } else {
+               dist2_[i] = Math.min(dist2_[i - w] + 1, infinity);
+            }
+         }
+      }
+      for (int y = h - 2; y >= 0; y--) {
+         int row = y * w;
+         for (int x = 0; x < w; x++) {
+            int i = row + x;
+            int below = dist2_[i + w] + 1;
+            if (below < dist2_[i]) {
+               dist2_[i] = below;
+            }
+         }
+      }
+      int maxDist2 = 0;
+      for (int y = 0; y < h; y++) {
+         int row = y * w;
+         boolean foreground = false;
+         for (int x = 0; x < w; x++) {
+            int g = dist2_[row + x];
+            f_[x] = g * g;
+            if (g > 0) {
+               foreground = true;
+            }
+         }
+         if (!foreground) {
+            continue;
+         }
+         // lower envelope of the parabolas (x - u)^2 + f(u), as in Meijster
+         // et al.: v holds the columns of the parabolas, z the first x 
+         // where each of them is the lowest
+         int q = 0;
+         v_[0] = 0;
+         z_[0] = 0;
+         for (int u = 1; u < w; u++) {
+            while (q >= 0 && parabola(z_[q], v_[q]) > parabola(z_[q], u)) {
+               q--;
+            }
+            if (q < 0) {
+               q = 0;
+               v_[0] = u;
+            } else {
+               int start = 1 + separation(v_[q], u);
+               if (start < w) {
+                  q++;
+                  v_[q] = u;
+                  z_[q] = start;
+               }
+            }
+         }
+         for (int x = w - 1; x >= 0; x--) {
+            int d2 = parabola(x, v_[q]);
+            dist2_[row + x] = d2;
+            if (d2 > maxDist2) {
+               maxDist2 = d2;
+            }
+            if (x == z_[q]) {
+               q--;
+            }
+         }
+      }
+      return maxDist2;
+   }
+
+   private int parabola(int x, int u) {
+      return (x - u) * (x - u) + f_[u];
+   }
+
+   /**
+    * @return last x where the parabola of column i is not above that of u
+    */
+   private int separation(int i, int u) {
+      return (u * u - i * i + f_[u] - f_[i]) / (2 * (u - i));
+   }
+
+   /**
+    * Finds the maxima of the distance map that stand out by more than
+    * the tolerance, and labels them with numbers starting at 1.
+    * Local maxima are handled from high to low.  The area around a maximum
+    * within the tolerance is searched, and when it contains a higher pixel
+    * or a pixel searched before, it is not a maximum.
+    * @return number of seeds
+    */
+   private int findSeeds() {
+      final int w = w_;
+      final int h = h_;
+      final int size = w * h;
+      Arrays.fill(labels_, 0, size, 0);
+      Arrays.fill(processed_, 0, size, (byte) 0);
+      int nrCandidates = 0;
+      for (int y = 0; y < h; y++) {
+         for (int x = 0; x < w; x++) {
+            int i = y * w + x;
+            int d2 = dist2_[i];
+            if (d2 == 0) {
+               continue;
+            }
+            boolean isMax = true;
+            for (int yy = Math.max(0, y - 1); isMax && yy <= Math.min(h - 1, y + 1); yy++) {
+               for (int xx = Math.max(0, x - 1); xx <= Math.min(w - 1, x + 1); xx++) {
+                  if (dist2_[yy * w + xx] > d2) {
+                     isMax = false;
+                     break;
+                  }
+               }
+            }
+            if (isMax) {
+               if (nrCandidates == candidates_.length) {
+                  candidates_ = Arrays.copyOf(candidates_, 
+                          Math.max(256, 2 * nrCandidates));
+               }
+               candidates_[nrCandidates++] = ((long) d2 << 32) | i;
+            }
+         }
+      }
+      Arrays.sort(candidates_, 0, nrCandidates);
+
+      int nrSeeds = 0;
+      for (int c = nrCandidates - 1; c >= 0; c--) {
+         int start = (int) candidates_[c];
+         if (processed_[start] != 0) {
+            continue;
+         }
+         boolean isMax;
+         boolean sortingError;
+         int sp;
+         do {
+            float top = height(start);
+            isMax = true;
+            sortingError = false;
+            sp = 0;
+            stack_[sp++] = start;
+            processed_[start] = 2;
+            // pixels 0 .. n - 1 of the stack are the area searched so far
+            for (int n = 0; n < sp && isMax; n++) {
+               int i = stack_[n];
+               int x = i % w;
+               int y = i / w;
+               for (int yy = Math.max(0, y - 1); isMax && yy <= Math.min(h - 1, y + 1); yy++) {
+                  for (int xx = Math.max(0, x - 1); xx <= Math.min(w - 1, x + 1); xx++) {
+                     int j = yy * w + xx;
+                     if (dist2_[j] == 0 || processed_[j] == 2) {
+                        continue;
+                     }
+                     if (processed_[j] != 0) {
+                        isMax = false;
+                        break;
+                     }
+                     float v = height(j);
+                     if (v > top + MAXSORTINGERROR) {
+                        isMax = false;
+                        break;
+                     } else if (v >= top - TOLERANCE) {
+                        if (v > top) {
+                           // not the highest point after all, search
+                           // again from the higher one
+                           sortingError = true;
+                           start = j;
+                           top = v;
+                        }
+                        processed_[j] = 2;
+                        stack_[sp++] = j;
+                     }
+                  }
+               }
+            }
+            if (sortingError) {
+               for (int n = 0; n < sp; n++) {
+                  processed_[stack_[n]] = 0;
+               }
+            }
+         } while (sortingError && isMax);
+         if (isMax) {
+            nrSeeds++;
+         }
+         int top = dist2_[start];
+         for (int n = 0; n < sp; n++) {
+            int i = stack_[n];
+            processed_[i] = 1;
+            if (isMax && dist2_[i] == top) {
+               labels_[i] = nrSeeds;
+            }
+         }
+      }
+      return nrSeeds;
+   }
+
+   /**
+    * Height of the ridge or maximum at a pixel, estimated from the 
+    * distances of its neighbors as done by ImageJ for distance maps.
+    * Can be up to half a diagonal above the distance of the pixel itself
+    */
+   private float height(int i) {
+      final int w = w_;
+      int x = i % w;
+      int y = i / w;
+      float v = (float) Math.sqrt(dist2_[i]);
+      if (x == 0 || y == 0 || x == w - 1 || y == h_ - 1) {
+         return v;
+      }
+      float height = v + 0.5f * SQRT2;
+      boolean ridgeOrMax = false;
+      for (int d = 0; d < 4; d++) {
+         float v1 = (float) Math.sqrt(dist2_[i + offsets_[d]]);
+         float v2 = (float) Math.sqrt(dist2_[i - offsets_[d]]);
+         float hd;
+         if (v >= v1 && v >= v2) {
+            ridgeOrMax = true;
+            hd = (v1 + v2) / 2;
+         } else {
+            hd = Math.min(v1, v2);
+         }
+         hd += (d % 2 == 0) ? 1f : SQRT2;
+         if (height > hd) {
+            height = hd;
+         }
+      }
+      return ridgeOrMax ? height : v;
+   }
+
+   /**
+    * Floods the particles from the seeds, in order of decreasing distance.
+    * @param maxDist2 largest squared distance
+    * @return number of pixels that became watershed lines
+    */
+   private int flood(int maxDist2) {
+      final int w = w_;
+      final int h = h_;
+      final int size = w * h;
+      maxLevel_ = level(maxDist2);
+      final int nrBuckets = maxLevel_ + 1;
+      int tableSize = Math.min(maxDist2, MAXTABLE) + 1;
+      if (buckets_.length < tableSize) {
+         buckets_ = new int[tableSize];
+      }
+      for (int d2 = 0; d2 < tableSize; d2++) {
+         buckets_[d2] = maxLevel_ - level(d2);
+      }
+      if (head_.length < nrBuckets) {
+         head_ = new int[nrBuckets];
+         tail_ = new int[nrBuckets];
+      }
+      Arrays.fill(head_, 0, nrBuckets, -1);
+      Arrays.fill(tail_, 0, nrBuckets, -1);
+      for (int i = 0; i < size; i++) {
+         if (labels_[i] > 0) {
+            push(i, bucket(dist2_[i]));
+         }
+      }
+      int nrLines = 0;
+      for (int b = 0; b < nrBuckets; b++) {
+         while (head_[b] >= 0) {
+            int i = head_[b];
+            head_[b] = next_[i];
+            if (head_[b] < 0) {
+               tail_[b] = -1;
+            }
+            int x = i % w;
+            int y = i / w;
+            int xMin = Math.max(0, x - 1);
+            int xMax = Math.min(w - 1, x + 1);
+            int yMin = Math.max(0, y - 1);
+            int yMax = Math.min(h - 1, y + 1);
+            int label = labels_[i];
+            if (label <= 0) {
+               // reached from a labeled neighbor, take over its label 
+               // unless there are neighbors with another label
+               label = 0;
+               for (int yy = yMin; yy <= yMax && label >= 0; yy++) {
+                  for (int xx = xMin; xx <= xMax; xx++) {
+                     int other = labels_[yy * w + xx];
+                     if (other > 0) {
+                        if (label == 0) {
+                           label = other;
+                        } else if (other != label) {
+                           label = LINE;
+                           break;
+                        }
+                     }
+                  }
+               }
+               labels_[i] = label;
+               if (label == LINE) {
+                  nrLines++;
+                  continue;
+               }
+            }
+            for (int yy = yMin; yy <= yMax; yy++) {
+               for (int xx = xMin; xx <= xMax; xx++) {
+                  int j = yy * w + xx;
+                  if (labels_[j] == 0 && dist2_[j] > 0) {
+                     labels_[j] = QUEUED;
+                     push(j, Math.max(b, bucket(dist2_[j])));
+                  }
+               }
+            }
+         }
+      }
+      return nrLines;
+   }
+
+   /**
+    * @return bucket of the flooding queue, 0 for the largest distance
+    */
+   private int bucket(int dist2) {
+      return dist2 < buckets_.length ? buckets_[dist2] : maxLevel_ - level(dist2);
+   }
+
+   private static int level(int dist2) {
+      return (int) (Math.sqrt(dist2) * LEVELSPERPIXEL);
+   }
+
+   private void push(int i, int bucket) {
+      next_[i] = -1;
+      if (tail_[bucket] < 0) {
+         head_[bucket] = i;
+      } else {
+         next_[tail_[bucket]] = i;
+      }
+      tail_[bucket] = i;
+   }
+
+}
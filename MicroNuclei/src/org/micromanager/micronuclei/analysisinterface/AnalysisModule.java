@@ -20,12 +20,22 @@
 package org.micromanager.micronuclei.analysisinterface;
 
 import ij.gui.Roi;
+import ij.measure.ResultsTable;
+import java.util.ArrayList;
 import java.util.List;
 import mmcorej.TaggedImage;
+import org.json.JSONException;
 import org.json.JSONObject;
 import org.micromanager.utils.MMScriptException;
 
 /**
+ * Base class for analysis modules
+ * 
+ * Modules implement analyze(TaggedImage, AnalysisParameters), which should 
+ * only use the image and the parameter snapshot that are passed in, and 
+ * return everything it found in the AnalysisResult.  As long as no state 
+ * is kept in the module, several images can be analyzed at the same time
+ * on different threads.
  *
  * @author nico
  */
@@ -38,15 +48,78 @@ public abstract class AnalysisModule  {
    public final static String OBJECTCOUNT = "ObjectCount";
    
    private List<AnalysisProperty> analysisProperties_;
+   private List<AnalysisProperty> hiddenProperties_ = 
+           new ArrayList<AnalysisProperty>();
 
-  
-   public abstract Roi[] analyze (TaggedImage img, JSONObject parms) throws MMScriptException;
+   /**
+    * Analyzes a single image.  Implementations must be safe to call 
+    * concurrently from multiple threads
+    * 
+    * @param img image to be analyzed
+    * @param parms snapshot of the analysis parameters
+    * @return everything that was found in this image
+    * @throws MMScriptException 
+    */
+   public abstract AnalysisResult analyze (TaggedImage img, 
+           AnalysisParameters parms) throws MMScriptException;
+   
+   /**
+    * Older interface, that accumulates counts in the JSONObject
+    * Takes a snapshot of the current parameters, analyzes the image,
+    * adds the number of nuclei and hits to the CELLCOUNT and OBJECTCOUNT
+    * entries of parms, and shows the objects found in the ImageJ 
+    * Results table
+    * 
+    * @param img image to be analyzed
+    * @param parms contains SHOWMASKS, CELLCOUNT and OBJECTCOUNT
+    * @return Rois to be zapped, or null if the image was rejected
+    * @throws MMScriptException 
+    */
+   public Roi[] analyze (TaggedImage img, JSONObject parms) throws MMScriptException {
+      AnalysisResult result = analyze(img, 
+              getParameters(parms.optBoolean(SHOWMASKS, false)));
+      if (result.isRejected()) {
+         return null;
+      }
+      try {
+         parms.put(CELLCOUNT, parms.optInt(CELLCOUNT, 0) + result.getNucleusCount());
+         parms.put(OBJECTCOUNT, parms.optInt(OBJECTCOUNT, 0) + result.getHitCount());
+      } catch (JSONException ex) {
+         ij.IJ.log("AnalysisModule.java: This should never happen!!!");
+      }
+      ResultsTable res = ResultsTable.getResultsTable();
+      res.reset();
+      for (ObjectMeasurement om : result.getObjects()) {
+         res.incrementCounter();
+         res.addValue("X", om.getX());
+         res.addValue("Y", om.getY());
+         res.addValue("# mN", om.getNrMicroNuclei());
+         res.addValue("Zap", om.getZap() ? 1 : 0);
+      }
+      res.show("Results");
+      return result.getHits();
+   }
+   
+   /**
+    * Takes a snapshot of the current values of all properties of this module
+    * @param showMasks whether or not the analysis should show its masks
+    * @return immutable parameters to be passed to analyze
+    */
+   public final AnalysisParameters getParameters(boolean showMasks) {
+      List<AnalysisProperty> all = new ArrayList<AnalysisProperty>();
+      if (analysisProperties_ != null) {
+         all.addAll(analysisProperties_);
+      }
+      all.addAll(hiddenProperties_);
+      return new AnalysisParameters(all, showMasks);
+   }
    
    /**
     * Resets the module so that it can be re-used without side effects
-    * Can for instance be used to reset counters
+    * Modules that keep no state (as they should) do not need to do anything
     */
-   public abstract void reset();
+   public void reset() {
+   }
    
    /**
     * UI name for the analysis module
@@ -63,6 +136,15 @@ public abstract class AnalysisModule  {
       analysisProperties_ = aps;
    }
    
+   /**
+    * Properties that are used by the analysis, but that are not shown to 
+    * the user.  They will be included in the parameter snapshot
+    * @param aps 
+    */
+   protected final void setHiddenAnalysisProperties(List<AnalysisProperty> aps) {
+      hiddenProperties_ = aps;
+   }
+   
    public final List<AnalysisProperty> getAnalysisProperties() {
       return analysisProperties_;
    }
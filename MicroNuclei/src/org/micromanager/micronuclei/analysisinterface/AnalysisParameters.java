@@ -0,0 +1,119 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei.analysisinterface;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable snapshot of the values of the AnalysisProperties of a module,
+ * taken at the start of a run.  Since the user can change the properties
+ * at any time, analysis code should only read values from this snapshot.
+ * Instances can be shared between threads.
+ *
+ * @author nico
+ */
+public final class AnalysisParameters {
+   private final Map<String, Object> values_;
+   private final boolean showMasks_;
+
+   /**
+    * Copies the current values of the given properties
+    * @param properties properties to take a snapshot of
+    * @param showMasks whether or not the analysis should show its masks
+    */
+   public AnalysisParameters(List<AnalysisProperty> properties, boolean showMasks) {
+      Map<String, Object> values = new HashMap<String, Object>();
+      for (AnalysisProperty ap : properties) {
+         values.put(ap.getDescription(), ap.get());
+      }
+      values_ = Collections.unmodifiableMap(values);
+      showMasks_ = showMasks;
+   }
+
+   /**
+    * Returns a copy of these parameters with a different showMasks setting
+    * @param showMasks whether or not the analysis should show its masks
+    * @return new AnalysisParameters
+    */
+   public AnalysisParameters withShowMasks(boolean showMasks) {
+      return new AnalysisParameters(values_, showMasks);
+   }
+
+   /**
+    * Returns a copy of these parameters in which one value is replaced.
+    * The property itself is not changed
+    * @param property property to give a different value
+    * @param value new value, of the same type as the current one
+    * @return new AnalysisParameters
+    * @throws IllegalArgumentException when the property is not part of the 
+    *          snapshot, or the value is of the wrong type
+    */
+   public AnalysisParameters with(AnalysisProperty property, Object value) {
+      if (!get(property).getClass().isInstance(value)) {
+         throw new IllegalArgumentException("Property \"" + 
+                 property.getDescription() + "\" needs a value of type " + 
+                 get(property).getClass().getSimpleName());
+      }
+      Map<String, Object> values = new HashMap<String, Object>(values_);
+      values.put(property.getDescription(), value);
+      return new AnalysisParameters(Collections.unmodifiableMap(values), 
+              showMasks_);
+   }
+
+   private AnalysisParameters(Map<String, Object> values, boolean showMasks) {
+      values_ = values;
+      showMasks_ = showMasks;
+   }
+
+   /**
+    * Value of the property at the time the snapshot was taken
+    * @param property
+    * @return value of the property
+    * @throws IllegalArgumentException when the property is not part of the snapshot
+    */
+   public Object get(AnalysisProperty property) {
+      Object value = values_.get(property.getDescription());
+      if (value == null) {
+         throw new IllegalArgumentException("Property \"" +
+                 property.getDescription() + "\" is not part of these parameters");
+      }
+      return value;
+   }
+
+   public double getDouble(AnalysisProperty property) {
+      return (Double) get(property);
+   }
+
+   public int getInteger(AnalysisProperty property) {
+      return (Integer) get(property);
+   }
+
+   public boolean getBoolean(AnalysisProperty property) {
+      return (Boolean) get(property);
+   }
+
+   public boolean showMasks() {
+      return showMasks_;
+   }
+
+}
@@ -28,7 +28,7 @@ import java.util.prefs.Preferences;
  */
 public class AnalysisProperty<T> {
    private final String description_;
-   private T t_;
+   private volatile T t_;
    private final Preferences prefs_;
    
    /**
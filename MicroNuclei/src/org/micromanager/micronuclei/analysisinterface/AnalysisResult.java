@@ -0,0 +1,94 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei.analysisinterface;
+
+import ij.gui.Roi;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Outcome of the analysis of a single image
+ *
+ * @author nico
+ */
+public final class AnalysisResult {
+   private final Roi[] hits_;
+   private final int nucleusCount_;
+   private final List<ObjectMeasurement> objects_;
+   private final boolean rejected_;
+
+   /**
+    * @param hits Rois of the objects that should be zapped
+    * @param nucleusCount number of nuclei found in the image
+    * @param objects measurements of all objects found in the image
+    */
+   public AnalysisResult(Roi[] hits, int nucleusCount,
+           List<ObjectMeasurement> objects) {
+      this(hits, nucleusCount, objects, false);
+   }
+
+   private AnalysisResult(Roi[] hits, int nucleusCount,
+           List<ObjectMeasurement> objects, boolean rejected) {
+      hits_ = hits;
+      nucleusCount_ = nucleusCount;
+      objects_ = Collections.unmodifiableList(
+              new ArrayList<ObjectMeasurement>(objects));
+      rejected_ = rejected;
+   }
+
+   /**
+    * Result for an image that was not analyzed, for instance because it
+    * shows the edge of the well
+    * @return result without nuclei or hits
+    */
+   public static AnalysisResult rejected() {
+      return new AnalysisResult(new Roi[0], 0,
+              new ArrayList<ObjectMeasurement>(), true);
+   }
+
+   /**
+    * @return Rois of the objects that should be zapped.  Callers get a copy
+    * of the array, but share the Rois
+    */
+   public Roi[] getHits() {
+      return hits_.clone();
+   }
+
+   public int getHitCount() {
+      return hits_.length;
+   }
+
+   public int getNucleusCount() {
+      return nucleusCount_;
+   }
+
+   public List<ObjectMeasurement> getObjects() {
+      return objects_;
+   }
+
+   /**
+    * @return true when the image was not analyzed
+    */
+   public boolean isRejected() {
+      return rejected_;
+   }
+
+}
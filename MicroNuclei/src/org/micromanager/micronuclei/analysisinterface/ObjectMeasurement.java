@@ -0,0 +1,100 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei.analysisinterface;
+
+/**
+ * Measurements of a single object (for instance a nucleus) found by an
+ * analysis module.  Positions are in microns, relative to the top left
+ * corner of the image
+ *
+ * @author nico
+ */
+public final class ObjectMeasurement {
+   private final double x_;
+   private final double y_;
+   private final double centroidX_;
+   private final double centroidY_;
+   private final double area_;
+   private final int nrMicroNuclei_;
+   private final boolean zap_;
+
+   /**
+    * Object of which the center of mass is not known, and is taken to be 
+    * the given position
+    * @param x x position in microns
+    * @param y y position in microns
+    * @param area area in micron^2
+    * @param nrMicroNuclei number of micronuclei assigned to this object
+    * @param zap whether this object qualified to be zapped
+    */
+   public ObjectMeasurement(double x, double y, double area, int nrMicroNuclei,
+           boolean zap) {
+      this(x, y, x, y, area, nrMicroNuclei, zap);
+   }
+
+   /**
+    * @param x x position in microns, the center of the bounding box
+    * @param y y position in microns, the center of the bounding box
+    * @param centroidX x of the center of mass in microns
+    * @param centroidY y of the center of mass in microns
+    * @param area area in micron^2
+    * @param nrMicroNuclei number of micronuclei assigned to this object
+    * @param zap whether this object qualified to be zapped
+    */
+   public ObjectMeasurement(double x, double y, double centroidX, 
+           double centroidY, double area, int nrMicroNuclei, boolean zap) {
+      x_ = x;
+      y_ = y;
+      centroidX_ = centroidX;
+      centroidY_ = centroidY;
+      area_ = area;
+      nrMicroNuclei_ = nrMicroNuclei;
+      zap_ = zap;
+   }
+
+   public double getX() {
+      return x_;
+   }
+
+   public double getY() {
+      return y_;
+   }
+
+   public double getCentroidX() {
+      return centroidX_;
+   }
+
+   public double getCentroidY() {
+      return centroidY_;
+   }
+
+   public double getArea() {
+      return area_;
+   }
+
+   public int getNrMicroNuclei() {
+      return nrMicroNuclei_;
+   }
+
+   public boolean getZap() {
+      return zap_;
+   }
+
+}
@@ -0,0 +1,154 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei.hardware;
+
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+import java.awt.Polygon;
+import java.awt.Rectangle;
+import mmcorej.CMMCore;
+import mmcorej.TaggedImage;
+import org.micromanager.api.MultiStagePosition;
+import org.micromanager.api.ScriptInterface;
+import org.micromanager.micronuclei.metrics.Metrics;
+import org.micromanager.projector.ProjectorControlForm;
+
+/**
+ * Micro-Manager hardware: stages and camera through the core, zapping
+ * through the Projector plugin
+ *
+ * @author nico
+ */
+public class MMMicroscope implements Microscope {
+   private final ScriptInterface gui_;
+   private final CMMCore core_;
+   private final String channelGroup_;
+   private boolean batchZap_ = false;
+   // center of the last ROI zapped, where the galvo starts at the next site
+   private double galvoX_ = 0.0;
+   private double galvoY_ = 0.0;
+
+   public MMMicroscope(ScriptInterface gui) {
+      gui_ = gui;
+      core_ = gui.getMMCore();
+      channelGroup_ = core_.getChannelGroup();
+   }
+
+   /**
+    * @param batchZap when true, all ROIs of a site are sent to the galvo 
+    *                 at once, ordered along a short path (see ZapPath).
+    *                 Otherwise they are sent one by one
+    */
+   public void setBatchZap(boolean batchZap) {
+      batchZap_ = batchZap;
+   }
+
+   @Override
+   public void moveTo(MultiStagePosition site) throws Exception {
+      MultiStagePosition.goToPosition(site, core_);
+      long start = Metrics.start();
+      core_.waitForSystem();
+      Metrics.stop(Metrics.WAITFORSYSTEM, start);
+   }
+
+   /**
+    * Runs fullFocus on the autofocus device, and reads the default focus 
+    * drive, as measureZ.bsh does
+    */
+   @Override
+   public double autofocus() throws Exception {
+      core_.fullFocus();
+      return core_.getPosition(core_.getFocusDevice());
+   }
+
+   @Override
+   public void setZ(double z) throws Exception {
+      String focusDevice = core_.getFocusDevice();
+      core_.setPosition(focusDevice, z);
+      core_.waitForDevice(focusDevice);
+   }
+
+   @Override
+   public void setChannel(String channel) throws Exception {
+      core_.setConfig(channelGroup_, channel);
+   }
+
+   @Override
+   public TaggedImage snap() throws Exception {
+      core_.snapImage();
+      return core_.getTaggedImage();
+   }
+
+   /**
+    * Photoconverts the provided ROIs, one by one or in a single batch.  
+    * The ROIs in the array are replaced by their convex hulls.
+    * @param rois
+    * @throws Exception
+    */
+   @Override
+   public void zap(Roi[] rois) throws Exception {
+      if (rois == null)
+         return;
+      ProjectorControlForm pcf
+              = ProjectorControlForm.showSingleton(core_, gui_);
+      int i;
+      // convert zapRois in a Roi[] of Polygon Rois
+      for (i = 0; i < rois.length; i++) {
+         Polygon poly = rois[i].getConvexHull();
+         rois[i] = new PolygonRoi(poly, Roi.POLYGON);
+      }
+
+      // send to the galvo device and zap them for real
+      pcf.setNrRepetitions(5);
+      if (batchZap_) {
+         zapBatch(pcf, rois);
+         return;
+      }
+      for (i = 0; i < rois.length; i++) {
+         gui_.message("Zapping " + (i + 1) + " of " + rois.length);
+         long start = Metrics.start();
+         Roi[] theRois = {rois[i]};
+         pcf.setROIs(theRois);
+         pcf.updateROISettings();
+         pcf.getDevice().waitForDevice();
+         pcf.runRois();
+         pcf.getDevice().waitForDevice();
+         Metrics.stop(Metrics.ZAPROI, start);
+      }
+   }
+
+   private void zapBatch(ProjectorControlForm pcf, Roi[] rois) 
+           throws Exception {
+      if (rois.length == 0) {
+         return;
+      }
+      Roi[] ordered = ZapPath.order(rois, galvoX_, galvoY_);
+      gui_.message("Zapping " + rois.length + " ROIs");
+      pcf.setROIs(ordered);
+      pcf.updateROISettings();
+      pcf.getDevice().waitForDevice();
+      pcf.runRois();
+      pcf.getDevice().waitForDevice();
+      Rectangle last = ordered[ordered.length - 1].getBounds();
+      galvoX_ = last.x + last.width / 2.0;
+      galvoY_ = last.y + last.height / 2.0;
+   }
+
+}
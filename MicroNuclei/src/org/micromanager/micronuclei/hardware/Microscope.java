@@ -0,0 +1,79 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei.hardware;
+
+import ij.gui.Roi;
+import mmcorej.TaggedImage;
+import org.micromanager.api.MultiStagePosition;
+
+/**
+ * The parts of the microscope used during a screen: stage, focus, camera, 
+ * the configurations of the channel group and the projector.  Allows the screen 
+ * to run on a real microscope as well as on a simulated one.
+ * Methods are called from a single thread, and block until the hardware 
+ * is done.
+ * 
+ * @author nico
+ */
+public interface Microscope {
+   
+   /**
+    * Moves the stage(s) to the given site and waits until they arrived
+    * @param site position to move to
+    * @throws Exception when the stage(s) can not be moved
+    */
+   public void moveTo(MultiStagePosition site) throws Exception;
+   
+   /**
+    * Runs the hardware autofocus at the current site
+    * @return position of the focus drive in focus, in microns
+    * @throws Exception when focus can not be found
+    */
+   public double autofocus() throws Exception;
+   
+   /**
+    * Moves the focus drive and waits until it arrived
+    * @param z position in microns
+    * @throws Exception when the focus drive can not be moved
+    */
+   public void setZ(double z) throws Exception;
+   
+   /**
+    * Sets the configuration of the channel group
+    * @param channel name of the configuration
+    * @throws Exception when the configuration can not be set
+    */
+   public void setChannel(String channel) throws Exception;
+   
+   /**
+    * Takes an image at the current site in the current channel
+    * @return image with metadata, including width, height and pixel size
+    * @throws Exception when no image could be acquired
+    */
+   public TaggedImage snap() throws Exception;
+   
+   /**
+    * Photoconverts the given regions in the current field of view
+    * @param rois regions in camera pixel coordinates
+    * @throws Exception when the projector fails
+    */
+   public void zap(Roi[] rois) throws Exception;
+   
+}
@@ -0,0 +1,325 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei.hardware;
+
+import ij.ImagePlus;
+import ij.gui.Roi;
+import ij.io.Opener;
+import ij.process.ImageProcessor;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import mmcorej.TaggedImage;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.micromanager.api.MultiStagePosition;
+
+/**
+ * Microscope without hardware.  Serves TIFF files from a directory as camera
+ * images, and waits as long as the real hardware would take.
+ *
+ * Each site is served one image file.  Sites created by createPositions are
+ * named after the files when the file names follow the Micro-Manager
+ * convention (well-site, for instance "A1-Site_0.tif"), otherwise they are
+ * distributed over wells in the order of the file names.  For other sites,
+ * a file is picked based on the site label.  When a file named
+ * "site_channel.tif" exists, it is used for that channel.
+ * The plate is slightly tilted and bent, and the autofocus finds the exact
+ * focus position.  Images are not blurred, but the distance to focus of
+ * every snap is kept.
+ *
+ * @author nico
+ */
+public class SimulatedMicroscope implements Microscope {
+   public static final String XYSTAGE = "SimulatedXYStage";
+   // distance between wells of a 96-well plate, in microns
+   private static final double WELLSPACING = 9000.0;
+   private static final int WELLSPERROW = 12;
+   // shape of the plate: focus at the origin, tilt and bend
+   private static final double FOCUS = 3000.0;
+   private static final double TILTX = 2.0e-4;
+   private static final double TILTY = -1.0e-4;
+   private static final double BEND = 2.0e-9;
+   private static final double PLATECENTERX = 50000.0;
+   private static final double PLATECENTERY = 30000.0;
+
+   private final File[] files_;
+   private final SimulationTimings timings_;
+   private final double pixelSize_;
+   private final Map<String, File> siteFiles_ = new HashMap<String, File>();
+   private final Opener opener_ = new Opener();
+
+   private File currentFile_;
+   private String currentLabel_ = "";
+   private String currentChannel_ = "";
+   private double x_ = 0.0;
+   private double y_ = 0.0;
+   private double z_ = 0.0;
+   private boolean batchZap_ = false;
+
+   private int nrMoves_ = 0;
+   private int nrSnaps_ = 0;
+   private int nrZapped_ = 0;
+   private int nrAutofocus_ = 0;
+   private double maxFocusError_ = 0.0;
+
+   /**
+    * @param imageDir directory with 8 or 16-bit TIFF files
+    * @param timings how long the simulated hardware takes
+    * @param pixelSize pixel size in microns reported with the images
+    * @throws IOException when the directory contains no TIFF files
+    */
+   public SimulatedMicroscope(File imageDir, SimulationTimings timings,
+           double pixelSize) throws IOException {
+      File[] files = imageDir.listFiles(new FilenameFilter() {
+         @Override
+         public boolean accept(File dir, String name) {
+            String lower = name.toLowerCase();
+            return lower.endsWith(".tif") || lower.endsWith(".tiff");
+         }
+      });
+      if (files == null || files.length == 0) {
+         throw new IOException("No TIFF files found in " + imageDir);
+      }
+      Arrays.sort(files);
+      files_ = files;
+      timings_ = timings;
+      pixelSize_ = pixelSize;
+   }
+
+   /**
+    * Creates one site for every image file, grouped in wells
+    * @param sitesPerWell number of sites per well, used when the file names
+    *                     do not give well and site
+    * @param fieldSize distance between sites in a well in microns
+    * @return sites, ordered by well
+    */
+   public MultiStagePosition[] createPositions(int sitesPerWell,
+           double fieldSize) {
+      List<MultiStagePosition> positions = new ArrayList<MultiStagePosition>();
+      int sitesPerRow = (int) Math.ceil(Math.sqrt(sitesPerWell));
+      String currentWell = "";
+      int wellIndex = -1;
+      int siteIndex = 0;
+      Set<String> names = new HashSet<String>();
+      for (int i = 0; i < files_.length; i++) {
+         String name = baseName(files_[i]);
+         if (name.contains("_") && names.contains(
+                 name.substring(0, name.lastIndexOf('_')))) {
+            // channel specific image of a site we already have
+            continue;
+         }
+         names.add(name);
+         String well;
+         String label;
+         if (name.contains("-")) {
+            well = name.split("-")[0];
+            label = name;
+         } else {
+            well = wellName(positions.size() / sitesPerWell);
+            label = well + "-Site_" + (positions.size() % sitesPerWell);
+         }
+         if (!well.equals(currentWell)) {
+            currentWell = well;
+            wellIndex++;
+            siteIndex = 0;
+         }
+         double x = (wellIndex % WELLSPERROW) * WELLSPACING +
+                 (siteIndex % sitesPerRow) * fieldSize;
+         double y = (wellIndex / WELLSPERROW) * WELLSPACING +
+                 (siteIndex / sitesPerRow) * fieldSize;
+         MultiStagePosition msp = new MultiStagePosition(XYSTAGE, x, y, "", 0.0);
+         msp.setLabel(label);
+         positions.add(msp);
+         siteFiles_.put(label, files_[i]);
+         siteIndex++;
+      }
+      return positions.toArray(new MultiStagePosition[positions.size()]);
+   }
+
+   private static String wellName(int index) {
+      return (char) ('A' + index / WELLSPERROW) + "" + (index % WELLSPERROW + 1);
+   }
+
+   private static String baseName(File file) {
+      String name = file.getName();
+      return name.substring(0, name.lastIndexOf('.'));
+   }
+
+   @Override
+   public void moveTo(MultiStagePosition site) throws Exception {
+      double x = site.getX();
+      double y = site.getY();
+      double distance = Math.sqrt((x - x_) * (x - x_) + (y - y_) * (y - y_));
+      sleep(timings_.stageMove(distance));
+      x_ = x;
+      y_ = y;
+      currentLabel_ = site.getLabel();
+      currentFile_ = siteFiles_.get(currentLabel_);
+      if (currentFile_ == null) {
+         currentFile_ = files_[(currentLabel_.hashCode() & 0x7fffffff) %
+                 files_.length];
+      }
+      nrMoves_++;
+   }
+
+   /**
+    * @return focus position of the plate at the given stage position
+    */
+   private static double focusAt(double x, double y) {
+      double dx = x - PLATECENTERX;
+      double dy = y - PLATECENTERY;
+      return FOCUS + TILTX * x + TILTY * y + BEND * (dx * dx + dy * dy);
+   }
+
+   @Override
+   public double autofocus() throws Exception {
+      sleep(timings_.getAutofocus());
+      z_ = focusAt(x_, y_);
+      nrAutofocus_++;
+      return z_;
+   }
+
+   @Override
+   public void setZ(double z) throws Exception {
+      if (z != z_) {
+         sleep(timings_.getFocusMove());
+         z_ = z;
+      }
+   }
+
+   @Override
+   public void setChannel(String channel) throws Exception {
+      if (!channel.equals(currentChannel_)) {
+         sleep(timings_.getChannelSwitch());
+         currentChannel_ = channel;
+      }
+   }
+
+   /**
+    * Reads the image of the current site from disk.  Reading counts towards
+    * the exposure time
+    */
+   @Override
+   public TaggedImage snap() throws Exception {
+      if (currentFile_ == null) {
+         throw new IllegalStateException("Snap before the first stage move");
+      }
+      long start = System.nanoTime();
+      File file = currentFile_;
+      File channelFile = new File(file.getParentFile(),
+              baseName(file) + "_" + currentChannel_ + ".tif");
+      if (channelFile.exists()) {
+         file = channelFile;
+      }
+      ImagePlus imp = opener_.openImage(file.getAbsolutePath());
+      if (imp == null) {
+         throw new IOException("Failed to open " + file);
+      }
+      ImageProcessor ip = imp.getProcessor();
+      String pixelType;
+      if (imp.getBitDepth() == 16) {
+         pixelType = "GRAY16";
+      } else if (imp.getBitDepth() == 8) {
+         pixelType = "GRAY8";
+      } else {
+         throw new IOException(file + " is not an 8 or 16-bit image");
+      }
+      TaggedImage tImg = new TaggedImage(ip.getPixels(),
+              makeTags(ip.getWidth(), ip.getHeight(), pixelType));
+      sleep(timings_.getExposure() - (System.nanoTime() - start) / 1000000.0);
+      maxFocusError_ = Math.max(maxFocusError_, Math.abs(z_ - focusAt(x_, y_)));
+      nrSnaps_++;
+      return tImg;
+   }
+
+   private JSONObject makeTags(int width, int height, String pixelType)
+           throws JSONException {
+      JSONObject tags = new JSONObject();
+      tags.put("Width", width);
+      tags.put("Height", height);
+      tags.put("PixelType", pixelType);
+      tags.put("PixelSizeUm", pixelSize_);
+      tags.put("PositionName", currentLabel_);
+      tags.put("Channel", currentChannel_);
+      tags.put("XPositionUm", x_);
+      tags.put("YPositionUm", y_);
+      tags.put("ZPositionUm", z_);
+      return tags;
+   }
+
+   /**
+    * @param batchZap when true, all ROIs of a site are sent to the galvo in 
+    *                 a single batch, otherwise one by one
+    */
+   public void setBatchZap(boolean batchZap) {
+      batchZap_ = batchZap;
+   }
+
+   @Override
+   public void zap(Roi[] rois) throws Exception {
+      if (rois == null || rois.length == 0) {
+         return;
+      }
+      int nrBatches = batchZap_ ? 1 : rois.length;
+      sleep(nrBatches * timings_.getZapSetup() + 
+              rois.length * timings_.getZapPerRoi());
+      nrZapped_ += rois.length;
+   }
+
+   private static void sleep(double ms) throws InterruptedException {
+      if (ms > 0.0) {
+         long nanos = (long) (ms * 1000000.0);
+         Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+      }
+   }
+
+   public int getNrMoves() {
+      return nrMoves_;
+   }
+
+   public int getNrSnaps() {
+      return nrSnaps_;
+   }
+
+   public int getNrZapped() {
+      return nrZapped_;
+   }
+
+   public int getNrAutofocus() {
+      return nrAutofocus_;
+   }
+
+   /**
+    * @return largest distance between the focus drive and the focus 
+    *         position of the plate at a snap, in microns
+    */
+   public double getMaxFocusError() {
+      return maxFocusError_;
+   }
+
+}
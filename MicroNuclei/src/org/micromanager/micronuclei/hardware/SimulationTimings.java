@@ -0,0 +1,124 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei.hardware;
+
+/**
+ * How long the simulated hardware takes to do things.  All times in
+ * milliseconds
+ *
+ * @author nico
+ */
+public final class SimulationTimings {
+   private final double stageSettle_;
+   private final double stageSpeed_;
+   private final double channelSwitch_;
+   private final double exposure_;
+   private final double zapPerRoi_;
+   private final double zapSetup_;
+   private final double autofocus_;
+   private final double focusMove_;
+
+   /**
+    * @param stageSettle time for every stage move, independent of distance
+    * @param stageSpeed stage speed in microns per millisecond
+    * @param channelSwitch time to switch to a different channel (filters,
+    *                      shutters, light source)
+    * @param exposure time to snap an image, including read out
+    * @param zapPerRoi time the galvo needs per ROI, including all repetitions
+    * @param zapSetup time to send ROIs to the galvo and wait for it to be 
+    *                 ready, once per batch of ROIs
+    * @param autofocus time to find focus with the hardware autofocus
+    * @param focusMove time to move the focus drive to a given position
+    */
+   public SimulationTimings(double stageSettle, double stageSpeed,
+           double channelSwitch, double exposure, double zapPerRoi,
+           double zapSetup, double autofocus, double focusMove) {
+      stageSettle_ = stageSettle;
+      stageSpeed_ = stageSpeed;
+      channelSwitch_ = channelSwitch;
+      exposure_ = exposure;
+      zapPerRoi_ = zapPerRoi;
+      zapSetup_ = zapSetup;
+      autofocus_ = autofocus;
+      focusMove_ = focusMove;
+   }
+
+   /**
+    * Timings that roughly resemble our screening microscope: a motorized
+    * stage doing 10 mm/sec with 100 ms settling, 50 ms filter wheel,
+    * 100 ms exposure, 5 repetitions of 40 ms per zapped ROI, 30 ms to
+    * send ROIs to the galvo, 500 ms hardware autofocus and 20 ms to move
+    * the focus drive
+    * @return default timings
+    */
+   public static SimulationTimings defaults() {
+      return new SimulationTimings(100.0, 10.0, 50.0, 100.0, 200.0, 30.0,
+              500.0, 20.0);
+   }
+
+   /**
+    * @return timings without any waiting, to measure the software only
+    */
+   public static SimulationTimings none() {
+      return new SimulationTimings(0.0, Double.POSITIVE_INFINITY, 0.0, 0.0, 0.0,
+              0.0, 0.0, 0.0);
+   }
+
+   public double getStageSettle() {
+      return stageSettle_;
+   }
+
+   public double getStageSpeed() {
+      return stageSpeed_;
+   }
+
+   public double getChannelSwitch() {
+      return channelSwitch_;
+   }
+
+   public double getExposure() {
+      return exposure_;
+   }
+
+   public double getZapPerRoi() {
+      return zapPerRoi_;
+   }
+
+   public double getZapSetup() {
+      return zapSetup_;
+   }
+
+   public double getAutofocus() {
+      return autofocus_;
+   }
+
+   public double getFocusMove() {
+      return focusMove_;
+   }
+
+   /**
+    * @param distance distance moved in microns
+    * @return time a stage move takes
+    */
+   public double stageMove(double distance) {
+      return stageSettle_ + distance / stageSpeed_;
+   }
+
+}
@@ -0,0 +1,153 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei.hardware;
+
+import ij.gui.Roi;
+import java.awt.Rectangle;
+
+/**
+ * Orders ROIs so that the galvo travels as little as possible between them.
+ * Starts with a nearest neighbour path from a given point, and improves it
+ * with 2-opt moves until no move makes the path shorter.  The path is open:
+ * it does not return to the start.
+ *
+ * @author nico
+ */
+public class ZapPath {
+   // 2-opt is quadratic per pass, more ROIs only get the nearest neighbour path
+   private static final int MAXTWOOPT = 500;
+
+   private ZapPath() {
+   }
+
+   /**
+    * @param rois regions to be zapped, in camera pixel coordinates
+    * @param startX x position of the galvo before the first ROI
+    * @param startY y position of the galvo before the first ROI
+    * @return new array with the same ROIs, ordered along a short path
+    */
+   public static Roi[] order(Roi[] rois, double startX, double startY) {
+      int n = rois.length;
+      double[] x = new double[n + 1];
+      double[] y = new double[n + 1];
+      // index 0 is the start position, ROIs are 1..n
+      x[0] = startX;
+      y[0] = startY;
+      for (int i = 0; i < n; i++) {
+         Rectangle r = rois[i].getBounds();
+         x[i + 1] = r.x + r.width / 2.0;
+         y[i + 1] = r.y + r.height / 2.0;
+      }
+
+      int[] path = new int[n + 1];
+      boolean[] visited = new boolean[n + 1];
+      visited[0] = true;
+      for (int i = 1; i <= n; i++) {
+         int last = path[i - 1];
+         int nearest = -1;
+         double minDistance = Double.MAX_VALUE;
+         for (int j = 1; j <= n; j++) {
+            if (!visited[j]) {
+               double d = distance2(x, y, last, j);
+               if (d < minDistance) {
+                  minDistance = d;
+                  nearest = j;
+               }
+            }
+         }
+         visited[nearest] = true;
+         path[i] = nearest;
+      }
+
+      if (n <= MAXTWOOPT) {
+         twoOpt(path, x, y);
+      }
+
+      Roi[] ordered = new Roi[n];
+      for (int i = 0; i < n; i++) {
+         ordered[i] = rois[path[i + 1] - 1];
+      }
+      return ordered;
+   }
+
+   /**
+    * Reverses sections of the path as long as that makes it shorter.  
+    * The first point (the start position) stays in place
+    */
+   private static void twoOpt(int[] path, double[] x, double[] y) {
+      int n = path.length;
+      boolean improved = true;
+      while (improved) {
+         improved = false;
+         for (int i = 1; i < n - 1; i++) {
+            for (int j = i + 1; j < n; j++) {
+               // reverse path[i..j]: edges (i-1, i) and (j, j+1) change
+               double before = distance(x, y, path[i - 1], path[i]);
+               double after = distance(x, y, path[i - 1], path[j]);
+               if (j + 1 < n) {
+                  before += distance(x, y, path[j], path[j + 1]);
+                  after += distance(x, y, path[i], path[j + 1]);
+               }
+               if (after < before - 1.0e-9) {
+                  for (int a = i, b = j; a < b; a++, b--) {
+                     int tmp = path[a];
+                     path[a] = path[b];
+                     path[b] = tmp;
+                  }
+                  improved = true;
+               }
+            }
+         }
+      }
+   }
+
+   /**
+    * @param rois regions in the order they will be zapped
+    * @param startX x position of the galvo before the first ROI
+    * @param startY y position of the galvo before the first ROI
+    * @return distance in pixels between the centers of the ROIs
+    */
+   public static double length(Roi[] rois, double startX, double startY) {
+      double length = 0.0;
+      double lastX = startX;
+      double lastY = startY;
+      for (Roi roi : rois) {
+         Rectangle r = roi.getBounds();
+         double cx = r.x + r.width / 2.0;
+         double cy = r.y + r.height / 2.0;
+         length += Math.sqrt((cx - lastX) * (cx - lastX) + 
+                 (cy - lastY) * (cy - lastY));
+         lastX = cx;
+         lastY = cy;
+      }
+      return length;
+   }
+
+   private static double distance2(double[] x, double[] y, int a, int b) {
+      double dx = x[a] - x[b];
+      double dy = y[a] - y[b];
+      return dx * dx + dy * dy;
+   }
+
+   private static double distance(double[] x, double[] y, int a, int b) {
+      return Math.sqrt(distance2(x, y, a, b));
+   }
+
+}
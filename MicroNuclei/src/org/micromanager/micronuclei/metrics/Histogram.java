@@ -0,0 +1,146 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of durations in nanoseconds.  Values are counted in buckets
+ * that are 1/8th of a power of two wide, so percentiles are accurate to 
+ * about 6%, and memory use is fixed.  Recording is lock free and can be 
+ * done from multiple threads.
+ *
+ * @author nico
+ */
+public class Histogram {
+   private static final int SUBBITS = 3;
+   private static final int SUBBUCKETS = 1 << SUBBITS;
+   // durations of 2^MAXEXPONENT ns (73 minutes) and longer share the last bucket
+   private static final int MAXEXPONENT = 42;
+   private static final int NRBUCKETS = (MAXEXPONENT - SUBBITS + 2) * SUBBUCKETS;
+
+   private final AtomicLongArray counts_ = new AtomicLongArray(NRBUCKETS);
+   private final AtomicLong count_ = new AtomicLong();
+   private final AtomicLong sum_ = new AtomicLong();
+   private final AtomicLong min_ = new AtomicLong(Long.MAX_VALUE);
+   private final AtomicLong max_ = new AtomicLong(Long.MIN_VALUE);
+
+   /**
+    * @param value duration in nanoseconds, negative values count as 0
+    */
+   public void record(long value) {
+      if (value < 0) {
+         value = 0;
+      }
+      counts_.incrementAndGet(bucket(value));
+      count_.incrementAndGet();
+      sum_.addAndGet(value);
+      long min = min_.get();
+      while (value < min && !min_.compareAndSet(min, value)) {
+         min = min_.get();
+      }
+      long max = max_.get();
+      while (value > max && !max_.compareAndSet(max, value)) {
+         max = max_.get();
+      }
+   }
+
+   private static int bucket(long value) {
+      if (value < SUBBUCKETS) {
+         return (int) value;
+      }
+      int exponent = 63 - Long.numberOfLeadingZeros(value);
+      if (exponent >= MAXEXPONENT) {
+         return NRBUCKETS - 1;
+      }
+      int sub = (int) (value >>> (exponent - SUBBITS)) & (SUBBUCKETS - 1);
+      return (exponent - SUBBITS + 1) * SUBBUCKETS + sub;
+   }
+
+   /**
+    * @return smallest value counted in the given bucket
+    */
+   private static long lowerBound(int bucket) {
+      if (bucket < SUBBUCKETS) {
+         return bucket;
+      }
+      int exponent = bucket / SUBBUCKETS + SUBBITS - 1;
+      long sub = bucket % SUBBUCKETS;
+      return (SUBBUCKETS + sub) << (exponent - SUBBITS);
+   }
+
+   private static long width(int bucket) {
+      if (bucket < SUBBUCKETS) {
+         return 1;
+      }
+      return 1L << (bucket / SUBBUCKETS - 1);
+   }
+
+   public long getCount() {
+      return count_.get();
+   }
+
+   /**
+    * @return sum of all values in nanoseconds
+    */
+   public long getTotal() {
+      return sum_.get();
+   }
+
+   public double getMean() {
+      long count = count_.get();
+      return count == 0 ? 0.0 : sum_.get() / (double) count;
+   }
+
+   public long getMin() {
+      return count_.get() == 0 ? 0 : min_.get();
+   }
+
+   public long getMax() {
+      return count_.get() == 0 ? 0 : max_.get();
+   }
+
+   /**
+    * @param percentile between 0 and 100
+    * @return value below which the given percentage of the values fall, 
+    *          estimated as the middle of the bucket it falls in
+    */
+   public long getPercentile(double percentile) {
+      long count = count_.get();
+      if (count == 0) {
+         return 0;
+      }
+      long rank = (long) Math.ceil(percentile / 100.0 * count);
+      if (rank < 1) {
+         rank = 1;
+      }
+      long seen = 0;
+      for (int i = 0; i < NRBUCKETS; i++) {
+         seen += counts_.get(i);
+         if (seen >= rank) {
+            long value = lowerBound(i) + width(i) / 2;
+            return Math.max(Math.min(value, getMax()), getMin());
+         }
+      }
+      return getMax();
+   }
+
+}
@@ -0,0 +1,159 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei.metrics;
+
+/**
+ * Timers and counters for the stages of a screen, from stage moves down to
+ * the steps of the segmentation.  Measurements go to the MetricsRegistry
+ * set with enable, and are dropped when there is none, in which case
+ * timing costs a volatile read.
+ *
+ * Use as:
+ * <pre>
+ *    long start = Metrics.start();
+ *    ...
+ *    Metrics.stop(Metrics.SNAP, start);
+ * </pre>
+ * Durations are also recorded for the well set with setWell on the
+ * current thread.
+ *
+ * @author nico
+ */
+public class Metrics {
+   // names of the stages
+   public static final String STAGEMOVE = "screen.stage move";
+   public static final String AUTOFOCUS = "screen.autofocus";
+   public static final String FOCUSMOVE = "screen.focus move";
+   public static final String WAITFORSYSTEM = "screen.wait for system";
+   public static final String CHANNEL = "screen.channel switch";
+   public static final String SNAP = "screen.snap";
+   public static final String SAVE = "screen.save image";
+   public static final String WRITE = "screen.write image";
+   public static final String WRITEQUEUED = "screen.queue and write image";
+   public static final String READ = "screen.read image";
+   public static final String NORMALIZE = "screen.normalize";
+   public static final String ANALYZE = "screen.analyze";
+   public static final String ZAP = "screen.zap site";
+   public static final String ZAPROI = "screen.zap roi";
+   public static final String SITE = "screen.site";
+   public static final String STDDEV = "analysis.std dev";
+   public static final String FINDMICRONUCLEI = "analysis.find micronuclei";
+   public static final String FINDNUCLEI = "analysis.find nuclei";
+   public static final String SEGMENTIMAGEJ = "analysis.segment with ImageJ";
+   public static final String SEGMENTTILES = "analysis.segment in tiles";
+   public static final String ASSIGN = "analysis.assign micronuclei";
+   public static final String RECHECK = "analysis.check in subregion";
+   public static final String LOAD = "segmentation.load";
+   public static final String RESAMPLE = "segmentation.bin and expand";
+   public static final String SHARPEN = "segmentation.sharpen";
+   public static final String GAUSSIAN = "segmentation.smooth and gaussian blur";
+   public static final String THRESHOLD = "segmentation.threshold";
+   public static final String DILATEERODE = "segmentation.dilate and erode";
+   public static final String WATERSHED = "segmentation.watershed";
+   public static final String PARTICLES = "segmentation.analyze particles";
+   // names of the counters
+   public static final String SITES = "sites";
+   public static final String IMAGES = "images";
+   public static final String ZAPPEDROIS = "zapped rois";
+   public static final String SPECULATIVEMOVES = "speculative moves";
+   public static final String RETURNMOVES = "return moves";
+   public static final String AUTOFOCUSSITES = "autofocus sites";
+   public static final String WRITERFULL = "writer queue full";
+
+   private static volatile MetricsRegistry registry_ = null;
+   private static final ThreadLocal<String> well_ = new ThreadLocal<String>();
+
+   private Metrics() {
+   }
+
+   /**
+    * Starts sending measurements to the given registry
+    * @param registry 
+    */
+   public static void enable(MetricsRegistry registry) {
+      registry_ = registry;
+   }
+
+   /**
+    * Stops measuring
+    */
+   public static void disable() {
+      registry_ = null;
+   }
+
+   public static boolean isEnabled() {
+      return registry_ != null;
+   }
+
+   /**
+    * @return registry receiving the measurements, or null when disabled
+    */
+   public static MetricsRegistry getRegistry() {
+      return registry_;
+   }
+
+   /**
+    * @param well well whose durations are measured on the current thread,
+    *             null for none
+    */
+   public static void setWell(String well) {
+      if (registry_ != null) {
+         well_.set(well);
+      }
+   }
+
+   /**
+    * @return well set on the current thread, null for none
+    */
+   public static String getWell() {
+      return well_.get();
+   }
+
+   /**
+    * @return start time to be passed to stop, 0 when disabled
+    */
+   public static long start() {
+      return registry_ == null ? 0L : System.nanoTime();
+   }
+
+   /**
+    * Records the time since start
+    * @param stage name of the stage
+    * @param start value returned by start()
+    */
+   public static void stop(String stage, long start) {
+      MetricsRegistry registry = registry_;
+      if (registry != null && start != 0L) {
+         registry.record(stage, well_.get(), System.nanoTime() - start);
+      }
+   }
+
+   /**
+    * @param counter name of the counter
+    * @param delta amount to add to the counter
+    */
+   public static void count(String counter, long delta) {
+      MetricsRegistry registry = registry_;
+      if (registry != null) {
+         registry.increment(counter, delta);
+      }
+   }
+
+}
@@ -0,0 +1,174 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei.metrics;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects durations per stage, both over the whole run and per well, and 
+ * counters.  Can be used from multiple threads.
+ *
+ * @author nico
+ */
+public class MetricsRegistry {
+   public static final String ALLWELLS = "all";
+
+   private final ConcurrentMap<String, Histogram> stages_ = 
+           new ConcurrentHashMap<String, Histogram>();
+   private final ConcurrentMap<String, ConcurrentMap<String, Histogram>> wells_ = 
+           new ConcurrentHashMap<String, ConcurrentMap<String, Histogram>>();
+   private final ConcurrentMap<String, AtomicLong> counters_ =
+           new ConcurrentHashMap<String, AtomicLong>();
+   private final List<String> wellOrder_ = 
+           Collections.synchronizedList(new ArrayList<String>());
+
+   /**
+    * @param stage name of the stage
+    * @param well well the stage was part of, or null
+    * @param nanos duration in nanoseconds
+    */
+   public void record(String stage, String well, long nanos) {
+      histogram(stages_, stage).record(nanos);
+      if (well != null) {
+         ConcurrentMap<String, Histogram> wellStages = wells_.get(well);
+         if (wellStages == null) {
+            ConcurrentMap<String, Histogram> newStages = 
+                    new ConcurrentHashMap<String, Histogram>();
+            wellStages = wells_.putIfAbsent(well, newStages);
+            if (wellStages == null) {
+               wellStages = newStages;
+               wellOrder_.add(well);
+            }
+         }
+         histogram(wellStages, stage).record(nanos);
+      }
+   }
+
+   private static Histogram histogram(ConcurrentMap<String, Histogram> map,
+           String stage) {
+      Histogram histogram = map.get(stage);
+      if (histogram == null) {
+         Histogram newHistogram = new Histogram();
+         histogram = map.putIfAbsent(stage, newHistogram);
+         if (histogram == null) {
+            histogram = newHistogram;
+         }
+      }
+      return histogram;
+   }
+
+   /**
+    * @param counter name of the counter
+    * @param delta amount to add
+    */
+   public void increment(String counter, long delta) {
+      AtomicLong value = counters_.get(counter);
+      if (value == null) {
+         AtomicLong newValue = new AtomicLong();
+         value = counters_.putIfAbsent(counter, newValue);
+         if (value == null) {
+            value = newValue;
+         }
+      }
+      value.addAndGet(delta);
+   }
+
+   /**
+    * @param stage name of the stage
+    * @return durations of the stage over all wells, or null when the stage
+    *          was never recorded
+    */
+   public Histogram getHistogram(String stage) {
+      return stages_.get(stage);
+   }
+
+   /**
+    * @param counter name of the counter
+    * @return value of the counter, 0 when it was never incremented
+    */
+   public long getCounter(String counter) {
+      AtomicLong value = counters_.get(counter);
+      return value == null ? 0 : value.get();
+   }
+
+   /**
+    * Writes all stages, first over all wells, then per well in the order in
+    * which the wells were first seen, followed by the counters.
+    * Tab separated, durations in milliseconds
+    * @param file file to write to
+    * @throws IOException
+    */
+   public void write(File file) throws IOException {
+      BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+      try {
+         writer.write("Stage\tWell\tCount\tTotal\tMean\tMin\t50%\t90%\t99%\tMax");
+         writer.newLine();
+         write(writer, ALLWELLS, stages_);
+         List<String> wells;
+         synchronized (wellOrder_) {
+            wells = new ArrayList<String>(wellOrder_);
+         }
+         for (String well : wells) {
+            write(writer, well, wells_.get(well));
+         }
+         writer.newLine();
+         writer.write("Counter\tValue");
+         writer.newLine();
+         List<String> counters = new ArrayList<String>(counters_.keySet());
+         Collections.sort(counters);
+         for (String counter : counters) {
+            writer.write(counter + "\t" + counters_.get(counter).get());
+            writer.newLine();
+         }
+      } finally {
+         writer.close();
+      }
+   }
+
+   private static void write(BufferedWriter writer, String well,
+           Map<String, Histogram> stages) throws IOException {
+      List<String> names = new ArrayList<String>(stages.keySet());
+      Collections.sort(names);
+      for (String name : names) {
+         Histogram h = stages.get(name);
+         writer.write(name + "\t" + well + "\t" + h.getCount() + "\t" +
+                 ms(h.getTotal()) + "\t" + ms(h.getMean()) + "\t" + 
+                 ms(h.getMin()) + "\t" + ms(h.getPercentile(50)) + "\t" + 
+                 ms(h.getPercentile(90)) + "\t" + ms(h.getPercentile(99)) + 
+                 "\t" + ms(h.getMax()));
+         writer.newLine();
+      }
+   }
+
+   private static String ms(double nanos) {
+      return String.format("%.3f", nanos / 1000000.0);
+   }
+
+}
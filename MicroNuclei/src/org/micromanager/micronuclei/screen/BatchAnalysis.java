@@ -0,0 +1,367 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei.screen;
+
+import ij.ImagePlus;
+import ij.gui.Roi;
+import ij.io.Opener;
+import java.awt.Rectangle;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import mmcorej.TaggedImage;
+import org.micromanager.micronuclei.Terms;
+import org.micromanager.micronuclei.analysis.ImageNormalizer;
+import org.micromanager.micronuclei.analysis.MicroNucleiAnalysisModule;
+import org.micromanager.micronuclei.analysisinterface.AnalysisModule;
+import org.micromanager.micronuclei.analysisinterface.AnalysisParameters;
+import org.micromanager.micronuclei.analysisinterface.AnalysisResult;
+import org.micromanager.micronuclei.metrics.Metrics;
+import org.micromanager.micronuclei.metrics.MetricsRegistry;
+
+/**
+ * Analyzes a screen saved to disk again, for instance after changing the
+ * analysis parameters.  Sites are analyzed in parallel, without Micro-Manager
+ * or ImageJ windows.  Writes the number of nuclei and hits per well to 
+ * results.txt, in the same format as a screen, and the position of every
+ * hit to hits.txt.  Every object found is stored in an ObjectStore in the
+ * objects directory, without stage positions.
+ *
+ * Usage: java -Djava.awt.headless=true -cp MicroNuclei.jar:ij.jar:MMJ_.jar:MMCoreJ.jar
+ *    org.micromanager.micronuclei.screen.BatchAnalysis screenDir outputDir [options]
+ *
+ * Options:
+ *    --threads n           analysis threads (default: number of cores)
+ *    --channel-index n     channel to analyze (default 0, the imaging channel)
+ *    --pixel-size um       used when the images have no pixel size (default 0.65)
+ *    --parameters file     analysis settings, one "description=value" per line
+ *    --set "description=value"
+ *                          overrides an analysis property for this run
+ *    --background file, --flatfield file
+ *                          images used to correct the sites before analysis
+ *    --metrics             measure the time spent in each step, and write
+ *                          the statistics to metrics.txt in outputDir
+ *    --verbose             print the result of every site
+ *
+ * See SavedScreen for the layouts of screenDir that are recognized.
+ * As with HeadlessScreen, native segmentation is switched on unless 
+ * overridden.
+ *
+ * @author nico
+ */
+public class BatchAnalysis {
+   public static final String HITSFILE = "hits.txt";
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 2) {
+         System.out.println("Usage: BatchAnalysis screenDir outputDir [options]");
+         System.exit(1);
+      }
+      File screenDir = new File(args[0]);
+      File outputDir = new File(args[1]);
+      int nrThreads = Runtime.getRuntime().availableProcessors();
+      int channelIndex = 0;
+      double pixelSize = 0.65;
+      boolean verbose = false;
+      ImagePlus background = null;
+      ImagePlus flatField = null;
+
+      AnalysisModule module = new MicroNucleiAnalysisModule();
+      AnalysisParameters parms = module.getParameters(false);
+      parms = HeadlessScreen.useNativeSegmentation(module, parms);
+
+      for (int i = 2; i < args.length; i++) {
+         String arg = args[i];
+         if (arg.equals("--verbose")) {
+            verbose = true;
+         } else if (arg.equals("--metrics")) {
+            Metrics.enable(new MetricsRegistry());
+         } else if (i + 1 < args.length) {
+            String value = args[++i];
+            if (arg.equals("--threads")) {
+               nrThreads = Integer.parseInt(value);
+            } else if (arg.equals("--channel-index")) {
+               channelIndex = Integer.parseInt(value);
+            } else if (arg.equals("--pixel-size")) {
+               pixelSize = Double.parseDouble(value);
+            } else if (arg.equals("--parameters")) {
+               parms = readParameters(module, parms, new File(value));
+            } else if (arg.equals("--set")) {
+               parms = HeadlessScreen.override(module, parms, value);
+            } else if (arg.equals("--background")) {
+               background = openImage(value);
+            } else if (arg.equals("--flatfield")) {
+               flatField = openImage(value);
+            } else {
+               throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+         } else {
+            throw new IllegalArgumentException("Unknown option: " + arg);
+         }
+      }
+
+      long start = System.nanoTime();
+      SavedScreen screen = new SavedScreen(screenDir, channelIndex);
+      BatchAnalysis batch = new BatchAnalysis(module, 
+              new ImageNormalizer(background, flatField), nrThreads);
+      batch.setVerbose(verbose);
+      int failed = batch.run(screen.getSites(), parms, pixelSize, outputDir);
+      double elapsed = (System.nanoTime() - start) / 1000000000.0;
+
+      int nrSites = screen.getSites().size();
+      System.out.println("Sites:           " + nrSites + " in " + 
+              batch.nrWells_ + " wells (" + nrThreads + " threads)");
+      System.out.println("Rejected:        " + batch.nrRejected_);
+      if (failed > 0) {
+         System.out.println("Failed:          " + failed);
+      }
+      System.out.println("Nuclei:          " + batch.nrNuclei_);
+      System.out.println("Hits:            " + batch.nrHits_);
+      System.out.println("Total time:      " + String.format("%.1f", elapsed) +
+              " s (" + String.format("%.1f", nrSites / elapsed) + 
+              " sites per s)");
+      System.out.println("Results written to " + new File(outputDir, 
+              ScreenRunner.RESULTSFILE) + ", " + new File(outputDir, HITSFILE) +
+              " and " + new File(outputDir, ScreenRunner.OBJECTSDIR));
+      System.exit(failed > 0 ? 1 : 0);
+   }
+
+   private final AnalysisModule analysisModule_;
+   private final ImageNormalizer normalizer_;
+   private final int nrThreads_;
+   private boolean verbose_ = false;
+   private int nrWells_ = 0;
+   private int nrRejected_ = 0;
+   private int nrNuclei_ = 0;
+   private int nrHits_ = 0;
+
+   /**
+    * @param analysisModule module used to analyze the sites.  Needs to be 
+    *                  reentrant
+    * @param normalizer applied to the sites before analysis
+    * @param nrThreads number of sites analyzed at the same time
+    */
+   public BatchAnalysis(AnalysisModule analysisModule, 
+           ImageNormalizer normalizer, int nrThreads) {
+      analysisModule_ = analysisModule;
+      normalizer_ = normalizer;
+      nrThreads_ = nrThreads;
+   }
+
+   /**
+    * @param verbose when true, the result of every site is printed
+    */
+   public void setVerbose(boolean verbose) {
+      verbose_ = verbose;
+   }
+
+   /**
+    * Analyzes all sites, and writes results.txt, hits.txt and the objects 
+    * directory, and metrics.txt when Metrics are enabled.  Sites that can not be read are reported 
+    * and skipped
+    * @param sites sites to analyze, ordered by well
+    * @param parms analysis parameters
+    * @param pixelSize pixel size for images without one
+    * @param outputDir directory to write the results to
+    * @return number of sites that could not be analyzed
+    * @throws IOException when the results can not be written
+    * @throws InterruptedException
+    */
+   public int run(List<SavedScreen.SiteImage> sites, 
+           final AnalysisParameters parms, final double pixelSize,
+           File outputDir) throws IOException, InterruptedException {
+      if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+         throw new IOException("Can not create directory " + outputDir);
+      }
+      BufferedWriter resultsWriter = null;
+      BufferedWriter hitsWriter = null;
+      ObjectStore objects = null;
+      ExecutorService analysisPool = Executors.newFixedThreadPool(nrThreads_);
+      int failed = 0;
+      try {
+         resultsWriter = new BufferedWriter(new FileWriter(
+                 new File(outputDir, ScreenRunner.RESULTSFILE)));
+         hitsWriter = new BufferedWriter(new FileWriter(
+                 new File(outputDir, HITSFILE)));
+         objects = new ObjectStore(new File(outputDir, 
+                 ScreenRunner.OBJECTSDIR));
+         hitsWriter.write("Well\t" + Terms.POSITION + "\tLabel\t" + Terms.X + 
+                 "\t" + Terms.Y);
+         hitsWriter.newLine();
+         // keep a limited number of sites ahead of the one being written,
+         // so that results of a whole plate do not pile up in memory
+         int window = 4 * nrThreads_;
+         List<Future<AnalysisResult>> results = 
+                 new ArrayList<Future<AnalysisResult>>();
+         String currentWell = "";
+         int wellNucleusCount = 0;
+         int wellHitCount = 0;
+         for (int i = 0; i < sites.size(); i++) {
+            while (results.size() < sites.size() && 
+                    results.size() < i + window) {
+               final SavedScreen.SiteImage next = sites.get(results.size());
+               results.add(analysisPool.submit(new Callable<AnalysisResult>() {
+                  @Override
+                  public AnalysisResult call() throws Exception {
+                     Metrics.setWell(next.getWell());
+                     long start = Metrics.start();
+                     TaggedImage tImg = next.read(pixelSize);
+                     Metrics.stop(Metrics.READ, start);
+                     start = Metrics.start();
+                     tImg = normalizer_.normalize(tImg);
+                     Metrics.stop(Metrics.NORMALIZE, start);
+                     start = Metrics.start();
+                     AnalysisResult result = analysisModule_.analyze(tImg, parms);
+                     Metrics.stop(Metrics.ANALYZE, start);
+                     Metrics.count(Metrics.SITES, 1);
+                     return result;
+                  }
+               }));
+            }
+            SavedScreen.SiteImage site = sites.get(i);
+            if (!currentWell.equals(site.getWell())) {
+               if (!currentWell.equals("")) {
+                  recordResults(resultsWriter, currentWell, wellNucleusCount,
+                          wellHitCount);
+               }
+               currentWell = site.getWell();
+               wellNucleusCount = 0;
+               wellHitCount = 0;
+            }
+            AnalysisResult result;
+            try {
+               result = results.get(i).get();
+            } catch (ExecutionException ee) {
+               System.err.println("Failed to analyze " + site.getFile() + 
+                       ": " + ee.getCause());
+               failed++;
+               continue;
+            } finally {
+               results.set(i, null);
+            }
+            objects.addSite(site.getWell(), site.getSiteIndex(), Double.NaN,
+                    Double.NaN, result.getObjects());
+            if (result.isRejected()) {
+               nrRejected_++;
+            } else {
+               wellNucleusCount += result.getNucleusCount();
+               wellHitCount += result.getHitCount();
+               recordHits(hitsWriter, site, result.getHits());
+            }
+            if (verbose_) {
+               System.out.println(site.getLabel() + "\t" + (result.isRejected() ?
+                       "rejected" : result.getNucleusCount() + "\t" + 
+                       result.getHitCount()));
+            }
+         }
+         if (!currentWell.equals("")) {
+            recordResults(resultsWriter, currentWell, wellNucleusCount,
+                    wellHitCount);
+         }
+      } finally {
+         analysisPool.shutdownNow();
+         // close whatever was opened, also when opening the rest failed
+         try {
+            if (resultsWriter != null) {
+               resultsWriter.close();
+            }
+         } finally {
+            try {
+               if (hitsWriter != null) {
+                  hitsWriter.close();
+               }
+            } finally {
+               if (objects != null) {
+                  objects.close();
+               }
+            }
+         }
+      }
+      if (Metrics.isEnabled()) {
+         Metrics.getRegistry().write(new File(outputDir, 
+                 ScreenRunner.METRICSFILE));
+      }
+      return failed;
+   }
+
+   private void recordResults(BufferedWriter resultsWriter, String well,
+           int nucleusCount, int hitCount) throws IOException {
+      resultsWriter.write(well + "\t" + nucleusCount + "\t" + hitCount);
+      resultsWriter.newLine();
+      nrWells_++;
+      nrNuclei_ += nucleusCount;
+      nrHits_ += hitCount;
+   }
+
+   /**
+    * Writes the center of every hit in pixel coordinates
+    */
+   private void recordHits(BufferedWriter hitsWriter, 
+           SavedScreen.SiteImage site, Roi[] hits) throws IOException {
+      for (Roi roi : hits) {
+         Rectangle bounds = roi.getBounds();
+         int x = bounds.x + (int) (0.5 * bounds.width);
+         int y = bounds.y + (int) (0.5 * bounds.height);
+         hitsWriter.write(site.getWell() + "\t" + site.getSiteIndex() + "\t" + 
+                 site.getLabel() + "\t" + x + "\t" + y);
+         hitsWriter.newLine();
+      }
+   }
+
+   /**
+    * Reads analysis settings, one "description=value" per line.  Empty 
+    * lines and lines starting with # are ignored
+    */
+   private static AnalysisParameters readParameters(AnalysisModule module,
+           AnalysisParameters parms, File file) throws IOException {
+      BufferedReader reader = new BufferedReader(new FileReader(file));
+      try {
+         String line;
+         while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (line.length() > 0 && !line.startsWith("#")) {
+               parms = HeadlessScreen.override(module, parms, line);
+            }
+         }
+      } finally {
+         reader.close();
+      }
+      return parms;
+   }
+
+   private static ImagePlus openImage(String path) throws IOException {
+      ImagePlus imp = new Opener().openImage(path);
+      if (imp == null) {
+         throw new IOException("Failed to open " + path);
+      }
+      return imp;
+   }
+
+}
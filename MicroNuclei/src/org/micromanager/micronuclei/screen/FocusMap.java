@@ -0,0 +1,260 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei.screen;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Predicts the focus position at any site of a plate from a sparse set of
+ * autofocus samples.
+ * A plane is fitted through the samples of a well once it has at least
+ * three that are not on a line.  Other wells use a surface fitted through
+ * all samples of the plate: flat with fewer than three samples, a plane up
+ * to 12 samples, and a second order surface, which follows a bent plate,
+ * from then on.  It is shifted by the mean distance of the samples of the
+ * well to it, or for wells without samples, by that of the last sample
+ * taken, which follows drift of the focus over time.
+ *
+ * @author nico
+ */
+public class FocusMap {
+   // samples needed before the plate is fitted with a second order surface
+   private static final int MINQUADRATIC = 12;
+   private final List<Sample> samples_ = new ArrayList<Sample>();
+   private final Map<String, List<Sample>> wells_ =
+           new HashMap<String, List<Sample>>();
+   // surface through all samples, null when it needs to be fitted again
+   private double[] plate_ = null;
+
+   /**
+    * @param well name of the well
+    * @param x stage position in microns
+    * @param y stage position in microns
+    * @param z focus position found by the autofocus, in microns
+    */
+   public void addSample(String well, double x, double y, double z) {
+      Sample sample = new Sample(well, x, y, z);
+      samples_.add(sample);
+      List<Sample> wellSamples = wells_.get(well);
+      if (wellSamples == null) {
+         wellSamples = new ArrayList<Sample>();
+         wells_.put(well, wellSamples);
+      }
+      wellSamples.add(sample);
+      plate_ = null;
+   }
+
+   public int getNrSamples() {
+      return samples_.size();
+   }
+
+   /**
+    * @param well name of the well
+    * @param x stage position in microns
+    * @param y stage position in microns
+    * @return predicted focus position in microns, NaN when there are no
+    *         samples
+    */
+   public double predict(String well, double x, double y) {
+      if (samples_.isEmpty()) {
+         return Double.NaN;
+      }
+      List<Sample> wellSamples = wells_.get(well);
+      if (wellSamples != null && wellSamples.size() >= 3) {
+         double[] plane = fit(wellSamples, 3);
+         if (plane != null) {
+            return evaluate(plane, x, y);
+         }
+      }
+      if (plate_ == null) {
+         if (samples_.size() >= MINQUADRATIC) {
+            plate_ = fit(samples_, 6);
+         }
+         if (plate_ == null) {
+            plate_ = fit(samples_, 3);
+         }
+         if (plate_ == null) {
+            plate_ = flat(samples_);
+         }
+      }
+      double offset;
+      if (wellSamples != null) {
+         offset = 0.0;
+         for (Sample s : wellSamples) {
+            offset += s.z_ - evaluate(plate_, s.x_, s.y_);
+         }
+         offset /= wellSamples.size();
+      } else {
+         Sample last = samples_.get(samples_.size() - 1);
+         offset = last.z_ - evaluate(plate_, last.x_, last.y_);
+      }
+      return evaluate(plate_, x, y) + offset;
+   }
+
+   /**
+    * Writes the samples, tab separated: well, x, y and z in microns
+    * @param file file to write to
+    * @throws IOException
+    */
+   public void write(File file) throws IOException {
+      BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+      try {
+         writer.write("Well\tX\tY\tZ");
+         writer.newLine();
+         for (Sample s : samples_) {
+            writer.write(s.well_ + "\t" + s.x_ + "\t" + s.y_ + "\t" + s.z_);
+            writer.newLine();
+         }
+      } finally {
+         writer.close();
+      }
+   }
+
+   /**
+    * Least squares fit of a plane, or of a second order surface, through
+    * the samples.  Positions are centered and scaled first, to keep the
+    * equations well conditioned
+    * @param nrTerms 3 for a plane, 6 to include x^2, x y and y^2
+    * @return the coefficients, followed by the center and scale, or null
+    *         when the samples do not determine the surface
+    */
+   private static double[] fit(List<Sample> samples, int nrTerms) {
+      int n = samples.size();
+      if (n < nrTerms) {
+         return null;
+      }
+      double x0 = 0.0;
+      double y0 = 0.0;
+      for (Sample s : samples) {
+         x0 += s.x_;
+         y0 += s.y_;
+      }
+      x0 /= n;
+      y0 /= n;
+      double scale = 0.0;
+      for (Sample s : samples) {
+         scale = Math.max(scale, Math.max(Math.abs(s.x_ - x0),
+                 Math.abs(s.y_ - y0)));
+      }
+      if (scale == 0.0) {
+         return null;
+      }
+      // normal equations, with the right hand side in the last column
+      double[][] a = new double[nrTerms][nrTerms + 1];
+      double[] t = new double[nrTerms];
+      for (Sample s : samples) {
+         terms((s.x_ - x0) / scale, (s.y_ - y0) / scale, t);
+         for (int i = 0; i < nrTerms; i++) {
+            for (int j = 0; j < nrTerms; j++) {
+               a[i][j] += t[i] * t[j];
+            }
+            a[i][nrTerms] += t[i] * s.z_;
+         }
+      }
+      // Gaussian elimination with partial pivoting
+      for (int col = 0; col < nrTerms; col++) {
+         int pivot = col;
+         for (int row = col + 1; row < nrTerms; row++) {
+            if (Math.abs(a[row][col]) > Math.abs(a[pivot][col])) {
+               pivot = row;
+            }
+         }
+         // samples on a line (or a point) do not define a plane
+         if (Math.abs(a[pivot][col]) < 1.0e-9 * n) {
+            return null;
+         }
+         double[] tmp = a[col];
+         a[col] = a[pivot];
+         a[pivot] = tmp;
+         for (int row = col + 1; row < nrTerms; row++) {
+            double f = a[row][col] / a[col][col];
+            for (int j = col; j <= nrTerms; j++) {
+               a[row][j] -= f * a[col][j];
+            }
+         }
+      }
+      double[] surface = new double[9];
+      for (int row = nrTerms - 1; row >= 0; row--) {
+         double sum = a[row][nrTerms];
+         for (int j = row + 1; j < nrTerms; j++) {
+            sum -= a[row][j] * surface[j];
+         }
+         surface[row] = sum / a[row][row];
+      }
+      surface[6] = x0;
+      surface[7] = y0;
+      surface[8] = scale;
+      return surface;
+   }
+
+   /**
+    * @return surface at the mean z of the samples
+    */
+   private static double[] flat(List<Sample> samples) {
+      double z = 0.0;
+      for (Sample s : samples) {
+         z += s.z_;
+      }
+      double[] surface = new double[9];
+      surface[0] = z / samples.size();
+      surface[8] = 1.0;
+      return surface;
+   }
+
+   private static void terms(double x, double y, double[] t) {
+      t[0] = 1.0;
+      t[1] = x;
+      t[2] = y;
+      if (t.length > 3) {
+         t[3] = x * x;
+         t[4] = x * y;
+         t[5] = y * y;
+      }
+   }
+
+   private static double evaluate(double[] surface, double x, double y) {
+      double u = (x - surface[6]) / surface[8];
+      double v = (y - surface[7]) / surface[8];
+      return surface[0] + surface[1] * u + surface[2] * v + 
+              surface[3] * u * u + surface[4] * u * v + surface[5] * v * v;
+   }
+
+   private static class Sample {
+      private final String well_;
+      private final double x_;
+      private final double y_;
+      private final double z_;
+
+      public Sample(String well, double x, double y, double z) {
+         well_ = well;
+         x_ = x;
+         y_ = y;
+         z_ = z;
+      }
+   }
+
+}
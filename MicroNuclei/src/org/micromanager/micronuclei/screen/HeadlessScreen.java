@@ -0,0 +1,315 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei.screen;
+
+import ij.gui.Roi;
+import java.io.File;
+import java.util.concurrent.atomic.AtomicBoolean;
+import mmcorej.TaggedImage;
+import org.micromanager.api.MultiStagePosition;
+import org.micromanager.micronuclei.analysis.ImageNormalizer;
+import org.micromanager.micronuclei.analysis.MicroNucleiAnalysisModule;
+import org.micromanager.micronuclei.analysisinterface.AnalysisModule;
+import org.micromanager.micronuclei.analysisinterface.AnalysisParameters;
+import org.micromanager.micronuclei.analysisinterface.AnalysisProperty;
+import org.micromanager.micronuclei.hardware.SimulatedMicroscope;
+import org.micromanager.micronuclei.hardware.SimulationTimings;
+import org.micromanager.micronuclei.metrics.Metrics;
+import org.micromanager.micronuclei.metrics.MetricsRegistry;
+
+/**
+ * Runs a complete screen on the simulated microscope, without Micro-Manager
+ * or a display, and reports how long it took.
+ *
+ * Usage: java -Djava.awt.headless=true -cp MicroNuclei.jar:ij.jar:MMJ_.jar:MMCoreJ.jar
+ *    org.micromanager.micronuclei.screen.HeadlessScreen imageDir outputDir [options]
+ *
+ * Options:
+ *    --acquire-first       image all sites first, then revisit sites with hits
+ *    --speculative         move to the next site while a site is analyzed,
+ *                          and return when it has hits
+ *    --sites-per-well n    (default 4)
+ *    --pixel-size um       (default 0.65)
+ *    --threads n           analysis threads for --acquire-first
+ *    --stage-settle ms, --stage-speed um/ms, --channel-switch ms,
+ *    --exposure ms, --zap-per-roi ms, --zap-setup ms, --autofocus ms,
+ *    --focus-move ms       hardware timings, see SimulationTimings
+ *    --autofocus-every n   run the autofocus at every n-th site, and predict
+ *                          the focus at the others (default 0: never)
+ *    --batch-zap           send all hits of a site to the galvo at once
+ *    --write-queue n       pass images on to be saved on a writer thread,
+ *                          with up to n images waiting (default 0: directly)
+ *    --no-wait             simulate hardware that takes no time
+ *    --set "description=value"
+ *                          overrides an analysis property for this run
+ *    --metrics             measure the time spent in each step, and write
+ *                          the statistics to metrics.txt in outputDir
+ *    --verbose             print progress messages
+ *
+ * The ImageJ commands used by the non-native segmentation need a display,
+ * so native segmentation is switched on unless overridden with --set.
+ *
+ * @author nico
+ */
+public class HeadlessScreen {
+   public static void main(String[] args) throws Exception {
+      if (args.length < 2) {
+         System.out.println("Usage: HeadlessScreen imageDir outputDir [options]");
+         System.exit(1);
+      }
+      File imageDir = new File(args[0]);
+      String outputDir = args[1];
+      boolean acquireFirst = false;
+      boolean verbose = false;
+      boolean metrics = false;
+      boolean batchZap = false;
+      boolean speculative = false;
+      int writeQueueSize = 0;
+      int autofocusInterval = 0;
+      int sitesPerWell = 4;
+      double pixelSize = 0.65;
+      int nrThreads = Runtime.getRuntime().availableProcessors();
+      SimulationTimings d = SimulationTimings.defaults();
+      double stageSettle = d.getStageSettle();
+      double stageSpeed = d.getStageSpeed();
+      double channelSwitch = d.getChannelSwitch();
+      double exposure = d.getExposure();
+      double zapPerRoi = d.getZapPerRoi();
+      double zapSetup = d.getZapSetup();
+      double autofocus = d.getAutofocus();
+      double focusMove = d.getFocusMove();
+
+      AnalysisModule module = new MicroNucleiAnalysisModule();
+      AnalysisParameters parms = module.getParameters(false);
+      parms = useNativeSegmentation(module, parms);
+
+      for (int i = 2; i < args.length; i++) {
+         String arg = args[i];
+         if (arg.equals("--acquire-first")) {
+            acquireFirst = true;
+         } else if (arg.equals("--verbose")) {
+            verbose = true;
+         } else if (arg.equals("--metrics")) {
+            metrics = true;
+         } else if (arg.equals("--batch-zap")) {
+            batchZap = true;
+         } else if (arg.equals("--speculative")) {
+            speculative = true;
+         } else if (arg.equals("--no-wait")) {
+            SimulationTimings none = SimulationTimings.none();
+            stageSettle = none.getStageSettle();
+            stageSpeed = none.getStageSpeed();
+            channelSwitch = none.getChannelSwitch();
+            exposure = none.getExposure();
+            zapPerRoi = none.getZapPerRoi();
+            zapSetup = none.getZapSetup();
+            autofocus = none.getAutofocus();
+            focusMove = none.getFocusMove();
+         } else if (i + 1 < args.length) {
+            String value = args[++i];
+            if (arg.equals("--sites-per-well")) {
+               sitesPerWell = Integer.parseInt(value);
+            } else if (arg.equals("--pixel-size")) {
+               pixelSize = Double.parseDouble(value);
+            } else if (arg.equals("--threads")) {
+               nrThreads = Integer.parseInt(value);
+            } else if (arg.equals("--write-queue")) {
+               writeQueueSize = Integer.parseInt(value);
+            } else if (arg.equals("--stage-settle")) {
+               stageSettle = Double.parseDouble(value);
+            } else if (arg.equals("--stage-speed")) {
+               stageSpeed = Double.parseDouble(value);
+            } else if (arg.equals("--channel-switch")) {
+               channelSwitch = Double.parseDouble(value);
+            } else if (arg.equals("--exposure")) {
+               exposure = Double.parseDouble(value);
+            } else if (arg.equals("--zap-per-roi")) {
+               zapPerRoi = Double.parseDouble(value);
+            } else if (arg.equals("--zap-setup")) {
+               zapSetup = Double.parseDouble(value);
+            } else if (arg.equals("--autofocus")) {
+               autofocus = Double.parseDouble(value);
+            } else if (arg.equals("--focus-move")) {
+               focusMove = Double.parseDouble(value);
+            } else if (arg.equals("--autofocus-every")) {
+               autofocusInterval = Integer.parseInt(value);
+            } else if (arg.equals("--set")) {
+               parms = override(module, parms, value);
+            } else {
+               throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+         } else {
+            throw new IllegalArgumentException("Unknown option: " + arg);
+         }
+      }
+
+      SimulationTimings timings = new SimulationTimings(stageSettle, stageSpeed,
+              channelSwitch, exposure, zapPerRoi, zapSetup, autofocus, 
+              focusMove);
+      SimulatedMicroscope microscope = new SimulatedMicroscope(imageDir,
+              timings, pixelSize);
+      microscope.setBatchZap(batchZap);
+      // 2048 pixels per field
+      MultiStagePosition[] positions = microscope.createPositions(sitesPerWell,
+              2048 * pixelSize);
+
+      ConsoleListener listener = new ConsoleListener(verbose);
+      ScreenRunner runner = new ScreenRunner(microscope, module,
+              new ImageNormalizer(null, null), listener, new AtomicBoolean(false));
+      runner.setChannels("DAPI", "", "Zap", "After Zap");
+      runner.setNrThreads(nrThreads);
+      runner.setSpeculativeMoves(speculative);
+      runner.setWriteQueueSize(writeQueueSize);
+      runner.setAutofocusInterval(autofocusInterval);
+
+      if (metrics) {
+         Metrics.enable(new MetricsRegistry());
+      }
+      long start = System.nanoTime();
+      int count = runner.run(positions, parms, acquireFirst, outputDir);
+      double elapsed = (System.nanoTime() - start) / 1000000.0;
+
+      System.out.println("Mode:            " + (acquireFirst ?
+              "acquire all first (" + nrThreads + " analysis threads)" :
+              (speculative ? "analyze and zap each site, speculative moves" :
+              "analyze and zap each site")));
+      System.out.println("Sites:           " + count + " in " +
+              listener.nrWells_ + " wells");
+      System.out.println("Nuclei:          " + listener.nrNuclei_);
+      System.out.println("Hits:            " + listener.nrHits_ +
+              " (" + microscope.getNrZapped() + " zapped)");
+      System.out.println("Stage moves:     " + microscope.getNrMoves());
+      System.out.println("Images:          " + microscope.getNrSnaps());
+      if (autofocusInterval > 0) {
+         System.out.println("Autofocus:       " + microscope.getNrAutofocus() +
+                 " times, focus off by at most " + 
+                 String.format("%.2f", microscope.getMaxFocusError()) + " um");
+      }
+      if (speculative && !acquireFirst) {
+         System.out.println("Stage time saved: " + 
+                 String.format("%.1f", runner.getStageTimeSaved()) + " ms");
+      }
+      System.out.println("Total time:      " + String.format("%.1f", elapsed) +
+              " ms");
+      if (count > 0) {
+         System.out.println("Time per site:   " +
+                 String.format("%.1f", elapsed / count) + " ms");
+      }
+      System.out.println("Results written to " + new File(outputDir,
+              ScreenRunner.RESULTSFILE));
+      if (metrics) {
+         System.out.println("Timings written to " + new File(outputDir,
+                 ScreenRunner.METRICSFILE));
+      }
+      System.exit(0);
+   }
+
+   static AnalysisProperty findProperty(AnalysisModule module,
+           String description) {
+      for (AnalysisProperty ap : module.getAnalysisProperties()) {
+         if (ap.getDescription().equals(description)) {
+            return ap;
+         }
+      }
+      return null;
+   }
+
+   /**
+    * @return the parameters with native segmentation switched on
+    * @throws IllegalStateException when the module has no such property
+    */
+   static AnalysisParameters useNativeSegmentation(AnalysisModule module,
+           AnalysisParameters parms) {
+      AnalysisProperty ap = findProperty(module, 
+              MicroNucleiAnalysisModule.NATIVESEGMENTATION);
+      if (ap == null) {
+         throw new IllegalStateException("No such property: " + 
+                 MicroNucleiAnalysisModule.NATIVESEGMENTATION);
+      }
+      return parms.with(ap, Boolean.TRUE);
+   }
+
+   static AnalysisParameters override(AnalysisModule module,
+           AnalysisParameters parms, String setting) {
+      int split = setting.lastIndexOf('=');
+      if (split < 0) {
+         throw new IllegalArgumentException("Expected description=value: " +
+                 setting);
+      }
+      String description = setting.substring(0, split);
+      String value = setting.substring(split + 1);
+      AnalysisProperty ap = findProperty(module, description);
+      if (ap == null) {
+         throw new IllegalArgumentException("No such property: " + description);
+      }
+      Object current = parms.get(ap);
+      if (current instanceof Integer) {
+         return parms.with(ap, Integer.valueOf(value));
+      } else if (current instanceof Double) {
+         return parms.with(ap, Double.valueOf(value));
+      } else if (current instanceof Boolean) {
+         return parms.with(ap, Boolean.valueOf(value));
+      }
+      return parms.with(ap, value);
+   }
+
+   /**
+    * Prints progress and keeps totals
+    */
+   private static class ConsoleListener implements ScreenListener {
+      private final boolean verbose_;
+      private int nrWells_ = 0;
+      private int nrNuclei_ = 0;
+      private int nrHits_ = 0;
+
+      public ConsoleListener(boolean verbose) {
+         verbose_ = verbose;
+      }
+
+      @Override
+      public void message(String msg) {
+         if (verbose_) {
+            System.out.println(msg);
+         }
+      }
+
+      @Override
+      public void wellStarted(String well, int nrSites, int nrChannels) {
+      }
+
+      @Override
+      public void imageAcquired(String well, int channel, String channelName,
+              int site, TaggedImage image) {
+      }
+
+      @Override
+      public void hitsFound(String well, int site, Roi[] hits) {
+      }
+
+      @Override
+      public void wellFinished(String well, int nucleusCount, int hitCount) {
+         nrWells_++;
+         nrNuclei_ += nucleusCount;
+         nrHits_ += hitCount;
+         System.out.println(well + "\t" + nucleusCount + "\t" + hitCount);
+      }
+   }
+
+}
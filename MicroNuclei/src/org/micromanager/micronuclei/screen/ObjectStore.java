@@ -0,0 +1,205 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei.screen;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.micromanager.micronuclei.analysisinterface.ObjectMeasurement;
+
+/**
+ * Stores every object found in a screen, one row per object, in a directory
+ * with one binary file per column.  Rows are only appended, site after site,
+ * so that a whole plate never needs to be in memory.  Use ObjectStoreReader
+ * to memory-map the files and query them.
+ *
+ * Files, all numbers big-endian:
+ * - wells.txt: names of the wells, one per line, in the order first seen.
+ *   The well column holds the line number, starting at 0.
+ * - sites.bin: one entry of 40 bytes per site: well (int), site (int),
+ *   first row (long), number of rows (int), 4 bytes padding, and the stage
+ *   position in microns (x and y, double).  Sites without objects have an
+ *   entry without rows.
+ * - well.bin and site.bin (int), x.bin and y.bin (float, center of the
+ *   bounding box of the object, as used to assign micronuclei),
+ *   centroidx.bin and centroidy.bin (float, center of mass of the object),
+ *   positions in microns, relative to the top left corner of the image,
+ *   area.bin (float, micron^2), micronuclei.bin (short) and zap.bin (byte,
+ *   1 when the object qualified to be zapped).
+ *
+ * @author nico
+ */
+public class ObjectStore {
+   public static final String WELLSFILE = "wells.txt";
+   public static final String SITESFILE = "sites.bin";
+   public static final String WELLFILE = "well.bin";
+   public static final String SITEFILE = "site.bin";
+   public static final String XFILE = "x.bin";
+   public static final String YFILE = "y.bin";
+   public static final String CENTROIDXFILE = "centroidx.bin";
+   public static final String CENTROIDYFILE = "centroidy.bin";
+   public static final String AREAFILE = "area.bin";
+   public static final String MICRONUCLEIFILE = "micronuclei.bin";
+   public static final String ZAPFILE = "zap.bin";
+   public static final int SITEENTRYSIZE = 40;
+
+   private final BufferedWriter wellsOut_;
+   private final DataOutputStream sitesOut_;
+   private final DataOutputStream wellOut_;
+   private final DataOutputStream siteOut_;
+   private final DataOutputStream xOut_;
+   private final DataOutputStream yOut_;
+   private final DataOutputStream centroidXOut_;
+   private final DataOutputStream centroidYOut_;
+   private final DataOutputStream areaOut_;
+   private final DataOutputStream microNucleiOut_;
+   private final DataOutputStream zapOut_;
+   private final Map<String, Integer> wells_ = new HashMap<String, Integer>();
+   private long nrRows_ = 0;
+
+   /**
+    * Creates the directory when needed, and starts a new store in it
+    * @param dir directory for the column files.  Existing files are
+    *            overwritten
+    * @throws IOException when the directory or a file can not be created.
+    *          The files opened so far are closed then
+    */
+   public ObjectStore(File dir) throws IOException {
+      if (!dir.isDirectory() && !dir.mkdirs()) {
+         throw new IOException("Can not create directory " + dir);
+      }
+      List<Closeable> opened = new ArrayList<Closeable>();
+      try {
+         wellsOut_ = new BufferedWriter(new FileWriter(
+                 new File(dir, WELLSFILE)));
+         opened.add(wellsOut_);
+         sitesOut_ = open(dir, SITESFILE, opened);
+         wellOut_ = open(dir, WELLFILE, opened);
+         siteOut_ = open(dir, SITEFILE, opened);
+         xOut_ = open(dir, XFILE, opened);
+         yOut_ = open(dir, YFILE, opened);
+         centroidXOut_ = open(dir, CENTROIDXFILE, opened);
+         centroidYOut_ = open(dir, CENTROIDYFILE, opened);
+         areaOut_ = open(dir, AREAFILE, opened);
+         microNucleiOut_ = open(dir, MICRONUCLEIFILE, opened);
+         zapOut_ = open(dir, ZAPFILE, opened);
+      } catch (IOException ex) {
+         for (Closeable out : opened) {
+            closeQuietly(out);
+         }
+         throw ex;
+      }
+   }
+
+   /**
+    * Appends the objects found at a site
+    * @param well name of the well
+    * @param site index of the site in the well
+    * @param stageX stage position of the site in microns, NaN when not known
+    * @param stageY stage position of the site in microns, NaN when not known
+    * @param objects objects found at the site
+    * @throws IOException
+    */
+   public synchronized void addSite(String well, int site, double stageX,
+           double stageY, List<ObjectMeasurement> objects) throws IOException {
+      Integer wellIndex = wells_.get(well);
+      if (wellIndex == null) {
+         wellIndex = wells_.size();
+         wells_.put(well, wellIndex);
+         wellsOut_.write(well);
+         wellsOut_.newLine();
+      }
+      sitesOut_.writeInt(wellIndex);
+      sitesOut_.writeInt(site);
+      sitesOut_.writeLong(nrRows_);
+      sitesOut_.writeInt(objects.size());
+      sitesOut_.writeInt(0);
+      sitesOut_.writeDouble(stageX);
+      sitesOut_.writeDouble(stageY);
+      for (ObjectMeasurement om : objects) {
+         wellOut_.writeInt(wellIndex);
+         siteOut_.writeInt(site);
+         xOut_.writeFloat((float) om.getX());
+         yOut_.writeFloat((float) om.getY());
+         centroidXOut_.writeFloat((float) om.getCentroidX());
+         centroidYOut_.writeFloat((float) om.getCentroidY());
+         areaOut_.writeFloat((float) om.getArea());
+         microNucleiOut_.writeShort(
+                 Math.min(om.getNrMicroNuclei(), Short.MAX_VALUE));
+         zapOut_.writeByte(om.getZap() ? 1 : 0);
+      }
+      nrRows_ += objects.size();
+   }
+
+   public synchronized long getNrRows() {
+      return nrRows_;
+   }
+
+   /**
+    * Writes what is still buffered, and closes all files
+    * @throws IOException
+    */
+   public synchronized void close() throws IOException {
+      IOException error = null;
+      for (Closeable out : new Closeable[] {wellsOut_,
+              sitesOut_, wellOut_, siteOut_, xOut_, yOut_, centroidXOut_,
+              centroidYOut_, areaOut_, microNucleiOut_, zapOut_}) {
+         try {
+            out.close();
+         } catch (IOException ex) {
+            error = ex;
+         }
+      }
+      if (error != null) {
+         throw error;
+      }
+   }
+
+   private static DataOutputStream open(File dir, String name,
+           List<Closeable> opened) throws IOException {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+              new FileOutputStream(new File(dir, name)), 1 << 16));
+      opened.add(out);
+      return out;
+   }
+
+   /**
+    * Closes a file while an earlier error is being reported, so that a
+    * failure to close does not hide that error
+    * @param out file to close
+    */
+   static void closeQuietly(Closeable out) {
+      try {
+         out.close();
+      } catch (IOException ex) {
+         // the earlier error is the one that matters
+      }
+   }
+
+}
@@ -0,0 +1,359 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei.screen;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the objects written by an ObjectStore.  The column files are
+ * memory-mapped, so that only the parts that are used are read from disk,
+ * and a whole plate does not need to fit on the heap.  Only the site index
+ * and the well names are read into memory.
+ * Each column file is mapped in one piece, which limits a store to about
+ * 500 million rows.
+ *
+ * Usage: java -cp MicroNuclei.jar
+ *    org.micromanager.micronuclei.screen.ObjectStoreReader dir [well [site]]
+ * prints a summary per well, or the objects of a well or site.
+ *
+ * @author nico
+ */
+public class ObjectStoreReader {
+   private final List<String> wells_ = new ArrayList<String>();
+   private final int nrSites_;
+   private final int[] siteWells_;
+   private final int[] siteIndices_;
+   private final int[] firstRows_;
+   private final int[] siteRows_;
+   private final double[] stageX_;
+   private final double[] stageY_;
+   private final int nrRows_;
+   private final IntBuffer well_;
+   private final IntBuffer site_;
+   private final FloatBuffer x_;
+   private final FloatBuffer y_;
+   private final FloatBuffer centroidX_;
+   private final FloatBuffer centroidY_;
+   private final FloatBuffer area_;
+   private final ShortBuffer microNuclei_;
+   private final ByteBuffer zap_;
+
+   /**
+    * @param dir directory written by an ObjectStore
+    * @throws IOException when the files can not be read, or do not agree
+    */
+   public ObjectStoreReader(File dir) throws IOException {
+      BufferedReader reader = new BufferedReader(new FileReader(
+              new File(dir, ObjectStore.WELLSFILE)));
+      try {
+         String line;
+         while ((line = reader.readLine()) != null) {
+            wells_.add(line);
+         }
+      } finally {
+         reader.close();
+      }
+
+      ByteBuffer sites = map(dir, ObjectStore.SITESFILE);
+      nrSites_ = sites.capacity() / ObjectStore.SITEENTRYSIZE;
+      siteWells_ = new int[nrSites_];
+      siteIndices_ = new int[nrSites_];
+      firstRows_ = new int[nrSites_];
+      siteRows_ = new int[nrSites_];
+      stageX_ = new double[nrSites_];
+      stageY_ = new double[nrSites_];
+      long nrRows = 0;
+      for (int i = 0; i < nrSites_; i++) {
+         siteWells_[i] = sites.getInt();
+         siteIndices_[i] = sites.getInt();
+         long firstRow = sites.getLong();
+         siteRows_[i] = sites.getInt();
+         sites.getInt();
+         stageX_[i] = sites.getDouble();
+         stageY_[i] = sites.getDouble();
+         if (firstRow != nrRows) {
+            throw new IOException("Site index does not match the rows in " +
+                    dir);
+         }
+         nrRows += siteRows_[i];
+         firstRows_[i] = (int) firstRow;
+      }
+      if (nrRows > Integer.MAX_VALUE / 4) {
+         throw new IOException("Too many rows to map: " + nrRows);
+      }
+      nrRows_ = (int) nrRows;
+
+      well_ = map(dir, ObjectStore.WELLFILE, 4).asIntBuffer();
+      site_ = map(dir, ObjectStore.SITEFILE, 4).asIntBuffer();
+      x_ = map(dir, ObjectStore.XFILE, 4).asFloatBuffer();
+      y_ = map(dir, ObjectStore.YFILE, 4).asFloatBuffer();
+      centroidX_ = map(dir, ObjectStore.CENTROIDXFILE, 4).asFloatBuffer();
+      centroidY_ = map(dir, ObjectStore.CENTROIDYFILE, 4).asFloatBuffer();
+      area_ = map(dir, ObjectStore.AREAFILE, 4).asFloatBuffer();
+      microNuclei_ = map(dir, ObjectStore.MICRONUCLEIFILE, 2).asShortBuffer();
+      zap_ = map(dir, ObjectStore.ZAPFILE, 1);
+   }
+
+   public int getNrRows() {
+      return nrRows_;
+   }
+
+   public int getNrWells() {
+      return wells_.size();
+   }
+
+   /**
+    * @param well index of the well, as found in the well column
+    * @return name of the well
+    */
+   public String getWellName(int well) {
+      return wells_.get(well);
+   }
+
+   /**
+    * @param name name of the well
+    * @return index of the well, -1 when the well is not in the store
+    */
+   public int findWell(String name) {
+      return wells_.indexOf(name);
+   }
+
+   public int getNrSites() {
+      return nrSites_;
+   }
+
+   /**
+    * @param well index of the well
+    * @param site index of the site in the well
+    * @return entry of the site in the site index, -1 when not found
+    */
+   public int findSite(int well, int site) {
+      for (int i = 0; i < nrSites_; i++) {
+         if (siteWells_[i] == well && siteIndices_[i] == site) {
+            return i;
+         }
+      }
+      return -1;
+   }
+
+   /**
+    * @param row row of an object
+    * @return entry in the site index of the site the object was found at
+    */
+   public int findSiteOfRow(int row) {
+      int low = 0;
+      int high = nrSites_ - 1;
+      while (low < high) {
+         int mid = (low + high + 1) >>> 1;
+         if (firstRows_[mid] <= row) {
+            low = mid;
+         } else {
+            high = mid - 1;
+         }
+      }
+      // sites without rows share their first row with the next site, so
+      // the last site starting at or before the row holds it
+      return low;
+   }
+
+   // The following take an entry of the site index
+
+   public int getSiteWell(int entry) {
+      return siteWells_[entry];
+   }
+
+   public int getSiteIndex(int entry) {
+      return siteIndices_[entry];
+   }
+
+   public int getFirstRow(int entry) {
+      return firstRows_[entry];
+   }
+
+   public int getSiteRows(int entry) {
+      return siteRows_[entry];
+   }
+
+   public double getStageX(int entry) {
+      return stageX_[entry];
+   }
+
+   public double getStageY(int entry) {
+      return stageY_[entry];
+   }
+
+   // The following take a row
+
+   public int getWell(int row) {
+      return well_.get(row);
+   }
+
+   public int getSite(int row) {
+      return site_.get(row);
+   }
+
+   /**
+    * @param row row of an object
+    * @return x of the center of the bounding box of the object in microns
+    */
+   public float getX(int row) {
+      return x_.get(row);
+   }
+
+   /**
+    * @param row row of an object
+    * @return y of the center of the bounding box of the object in microns
+    */
+   public float getY(int row) {
+      return y_.get(row);
+   }
+
+   /**
+    * @param row row of an object
+    * @return x of the center of mass of the object in microns
+    */
+   public float getCentroidX(int row) {
+      return centroidX_.get(row);
+   }
+
+   /**
+    * @param row row of an object
+    * @return y of the center of mass of the object in microns
+    */
+   public float getCentroidY(int row) {
+      return centroidY_.get(row);
+   }
+
+   public float getArea(int row) {
+      return area_.get(row);
+   }
+
+   public int getNrMicroNuclei(int row) {
+      return microNuclei_.get(row);
+   }
+
+   public boolean getZap(int row) {
+      return zap_.get(row) != 0;
+   }
+
+   private static ByteBuffer map(File dir, String name) throws IOException {
+      RandomAccessFile file = new RandomAccessFile(new File(dir, name), "r");
+      try {
+         FileChannel channel = file.getChannel();
+         if (channel.size() > Integer.MAX_VALUE) {
+            throw new IOException(name + " is too large to map");
+         }
+         MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+                 0, channel.size());
+         return buffer;
+      } finally {
+         // the mapping stays valid after closing
+         file.close();
+      }
+   }
+
+   private ByteBuffer map(File dir, String name, int bytesPerRow)
+           throws IOException {
+      ByteBuffer buffer = map(dir, name);
+      if (buffer.capacity() != (long) nrRows_ * bytesPerRow) {
+         throw new IOException(name + " does not hold " + nrRows_ + " rows");
+      }
+      return buffer;
+   }
+
+   public static void main(String[] args) throws IOException {
+      if (args.length < 1) {
+         System.out.println("Usage: ObjectStoreReader dir [well [site]]");
+         System.exit(1);
+      }
+      ObjectStoreReader store = new ObjectStoreReader(new File(args[0]));
+      if (args.length == 1) {
+         printWells(store);
+         return;
+      }
+      int well = store.findWell(args[1]);
+      if (well < 0) {
+         System.out.println("No such well: " + args[1]);
+         System.exit(1);
+      }
+      int site = args.length > 2 ? Integer.parseInt(args[2]) : -1;
+      System.out.println("Site\tStage X\tStage Y\tX\tY\tCentroid X\tCentroid Y\tArea\t# mN\tZap");
+      for (int entry = 0; entry < store.getNrSites(); entry++) {
+         if (store.getSiteWell(entry) != well ||
+                 (site >= 0 && store.getSiteIndex(entry) != site)) {
+            continue;
+         }
+         int first = store.getFirstRow(entry);
+         for (int row = first; row < first + store.getSiteRows(entry); row++) {
+            System.out.println(store.getSite(row) + "\t" +
+                    store.getStageX(entry) + "\t" + store.getStageY(entry) +
+                    "\t" + store.getX(row) + "\t" + store.getY(row) + "\t" +
+                    store.getCentroidX(row) + "\t" + store.getCentroidY(row) +
+                    "\t" + store.getArea(row) + "\t" + store.getNrMicroNuclei(row) +
+                    "\t" + (store.getZap(row) ? 1 : 0));
+         }
+      }
+   }
+
+   /**
+    * Prints the number of sites, objects, objects with micronuclei and
+    * objects to zap per well, in one pass over the well, micronuclei and zap
+    * columns
+    */
+   private static void printWells(ObjectStoreReader store) {
+      int nrWells = store.getNrWells();
+      int[] sites = new int[nrWells];
+      for (int entry = 0; entry < store.getNrSites(); entry++) {
+         sites[store.getSiteWell(entry)]++;
+      }
+      int[] objects = new int[nrWells];
+      int[] withMicroNuclei = new int[nrWells];
+      int[] zap = new int[nrWells];
+      for (int row = 0; row < store.getNrRows(); row++) {
+         int well = store.getWell(row);
+         objects[well]++;
+         if (store.getNrMicroNuclei(row) > 0) {
+            withMicroNuclei[well]++;
+         }
+         if (store.getZap(row)) {
+            zap[well]++;
+         }
+      }
+      System.out.println("Well\tSites\tNuclei\tWith mN\tZap");
+      for (int well = 0; well < nrWells; well++) {
+         System.out.println(store.getWellName(well) + "\t" + sites[well] +
+                 "\t" + objects[well] + "\t" + withMicroNuclei[well] + "\t" +
+                 zap[well]);
+      }
+   }
+
+}
@@ -0,0 +1,265 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei.screen;
+
+import ij.gui.Roi;
+import java.awt.Rectangle;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.micromanager.micronuclei.analysisinterface.ObjectMeasurement;
+
+/**
+ * Collects the outcome of a screen: the center of each hit, and the number
+ * of nuclei and hits per well.  Hits are kept in int arrays rather than as
+ * objects, so that large screens take little memory.  Can be read from other
+ * threads while the screen runs, for instance to refresh a display now and
+ * then.
+ * The counts per well are written to a results file on a thread of its own,
+ * one tab separated line per well, so that the screen does not wait for
+ * the disk.  The same thread can append every object found to an
+ * ObjectStore.
+ *
+ * @author nico
+ */
+public class ResultSink {
+   private final List<String> wells_ = new ArrayList<String>();
+   private int[] nucleusCounts_ = new int[16];
+   private int[] hitCounts_ = new int[16];
+   // per hit: index of the well in wells_, site, and center in pixels
+   private int[] hitWells_ = new int[256];
+   private int[] hitSites_ = new int[256];
+   private int[] hitX_ = new int[256];
+   private int[] hitY_ = new int[256];
+   private int nrHits_ = 0;
+   private final BufferedWriter out_;
+   private final ObjectStore objects_;
+   private final ExecutorService writer_;
+   private volatile IOException error_ = null;
+
+   /**
+    * Keeps the results in memory only
+    */
+   public ResultSink() {
+      out_ = null;
+      objects_ = null;
+      writer_ = null;
+   }
+
+   /**
+    * @param resultsFile file the counts per well are written to
+    * @param objectsDir directory for the ObjectStore, null to not store the
+    *                   objects
+    * @throws IOException when the files can not be opened.  Nothing is 
+    *          left open then
+    */
+   public ResultSink(File resultsFile, File objectsDir) throws IOException {
+      BufferedWriter out = new BufferedWriter(new FileWriter(resultsFile));
+      try {
+         objects_ = objectsDir == null ? null : new ObjectStore(objectsDir);
+      } catch (IOException ex) {
+         ObjectStore.closeQuietly(out);
+         throw ex;
+      }
+      out_ = out;
+      writer_ = Executors.newSingleThreadExecutor();
+   }
+
+   /**
+    * @param well name of the well
+    * @param site index of the site in the well
+    * @param hits hits found at the site, in pixel coordinates
+    */
+   public synchronized void addHits(String well, int site, Roi[] hits) {
+      if (hits.length == 0) {
+         return;
+      }
+      if (nrHits_ + hits.length > hitX_.length) {
+         int size = Math.max(2 * hitX_.length, nrHits_ + hits.length);
+         hitWells_ = Arrays.copyOf(hitWells_, size);
+         hitSites_ = Arrays.copyOf(hitSites_, size);
+         hitX_ = Arrays.copyOf(hitX_, size);
+         hitY_ = Arrays.copyOf(hitY_, size);
+      }
+      int wellIndex = wellIndex(well);
+      for (Roi roi : hits) {
+         Rectangle bounds = roi.getBounds();
+         hitWells_[nrHits_] = wellIndex;
+         hitSites_[nrHits_] = site;
+         hitX_[nrHits_] = bounds.x + (int) (0.5 * bounds.width);
+         hitY_[nrHits_] = bounds.y + (int) (0.5 * bounds.height);
+         nrHits_++;
+      }
+   }
+
+   /**
+    * Stores the counts of a well, and queues them for the results file
+    * @param well name of the well
+    * @param nucleusCount number of nuclei found in the well
+    * @param hitCount number of hits found in the well
+    */
+   public synchronized void addWell(String well, int nucleusCount,
+           int hitCount) {
+      int index = wellIndex(well);
+      nucleusCounts_[index] = nucleusCount;
+      hitCounts_[index] = hitCount;
+      if (writer_ != null) {
+         write(well + "\t" + nucleusCount + "\t" + hitCount);
+      }
+   }
+
+   /**
+    * Queues the objects found at a site for the ObjectStore, when there is
+    * one
+    * @param well name of the well
+    * @param site index of the site in the well
+    * @param stageX stage position of the site in microns
+    * @param stageY stage position of the site in microns
+    * @param objects objects found at the site
+    */
+   public void addObjects(final String well, final int site,
+           final double stageX, final double stageY,
+           final List<ObjectMeasurement> objects) {
+      if (objects_ == null) {
+         return;
+      }
+      writer_.submit(new Runnable() {
+         @Override
+         public void run() {
+            if (error_ != null) {
+               return;
+            }
+            try {
+               objects_.addSite(well, site, stageX, stageY, objects);
+            } catch (IOException ex) {
+               error_ = ex;
+            }
+         }
+      });
+   }
+
+   public synchronized int getNrHits() {
+      return nrHits_;
+   }
+
+   /**
+    * @param i index of the hit, in the order in which hits were added
+    * @return name of the well the hit was found in
+    */
+   public synchronized String getHitWell(int i) {
+      return wells_.get(hitWells_[i]);
+   }
+
+   public synchronized int getHitSite(int i) {
+      return hitSites_[i];
+   }
+
+   public synchronized int getHitX(int i) {
+      return hitX_[i];
+   }
+
+   public synchronized int getHitY(int i) {
+      return hitY_[i];
+   }
+
+   /**
+    * @return number of wells with hits or counts, in the order they were
+    *         first seen
+    */
+   public synchronized int getNrWells() {
+      return wells_.size();
+   }
+
+   public synchronized String getWell(int i) {
+      return wells_.get(i);
+   }
+
+   public synchronized int getNucleusCount(int i) {
+      return nucleusCounts_[i];
+   }
+
+   public synchronized int getHitCount(int i) {
+      return hitCounts_[i];
+   }
+
+   /**
+    * Waits until all counts and objects are written, and closes the files
+    * @throws IOException when writing failed
+    * @throws InterruptedException
+    */
+   public void close() throws IOException, InterruptedException {
+      if (writer_ == null) {
+         return;
+      }
+      writer_.shutdown();
+      writer_.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+      out_.close();
+      if (objects_ != null) {
+         objects_.close();
+      }
+      if (error_ != null) {
+         throw error_;
+      }
+   }
+
+   private int wellIndex(String well) {
+      int last = wells_.size() - 1;
+      // wells come one after the other, so this is nearly always the last
+      if (last >= 0 && wells_.get(last).equals(well)) {
+         return last;
+      }
+      int index = wells_.indexOf(well);
+      if (index < 0) {
+         index = wells_.size();
+         wells_.add(well);
+         if (index == nucleusCounts_.length) {
+            nucleusCounts_ = Arrays.copyOf(nucleusCounts_, 2 * index);
+            hitCounts_ = Arrays.copyOf(hitCounts_, 2 * index);
+         }
+      }
+      return index;
+   }
+
+   private void write(final String line) {
+      writer_.submit(new Runnable() {
+         @Override
+         public void run() {
+            if (error_ != null) {
+               return;
+            }
+            try {
+               out_.write(line);
+               out_.newLine();
+               out_.flush();
+            } catch (IOException ex) {
+               error_ = ex;
+            }
+         }
+      });
+   }
+
+}
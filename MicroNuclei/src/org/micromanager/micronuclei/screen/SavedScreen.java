@@ -0,0 +1,368 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei.screen;
+
+import ij.ImagePlus;
+import ij.io.Opener;
+import ij.process.ImageProcessor;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import mmcorej.TaggedImage;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Finds the images of a screen saved to disk, without Micro-Manager.
+ *
+ * The following layouts are recognized:
+ * - Micro-Manager multipage TIFF: one "..._MMStack_....tif" file per site,
+ *   in a directory per well ("A1_1").  The image of the requested channel
+ *   is read from the file.
+ * - Micro-Manager single images: "img_&lt;frame&gt;_&lt;channel&gt;_&lt;slice&gt;.tif"
+ *   files in a directory per site ("A1-Site_0"), in a directory per well.
+ *   The channel is looked up in metadata.txt.
+ * - Other TIFF files, one per site, named "well-site.tif" (as used with the
+ *   SimulatedMicroscope).
+ * The pixel size is taken from the Micro-Manager metadata when present,
+ * otherwise from the calibration of the image.
+ *
+ * @author nico
+ */
+public class SavedScreen {
+   private final List<SiteImage> sites_ = new ArrayList<SiteImage>();
+   private final int channelIndex_;
+   // metadata summary for each directory that has one
+   private final Map<File, JSONObject> summaries_ = 
+           new HashMap<File, JSONObject>();
+
+   /**
+    * Looks for site images in the given directory and its sub directories
+    * @param dir directory in which the screen was saved
+    * @param channelIndex index of the channel to analyze, 0 is the 
+    *                     imaging channel
+    * @throws IOException when no images are found
+    */
+   public SavedScreen(File dir, int channelIndex) throws IOException {
+      channelIndex_ = channelIndex;
+      scan(dir, dir);
+      if (sites_.isEmpty()) {
+         throw new IOException("No site images found in " + dir);
+      }
+      Collections.sort(sites_, new Comparator<SiteImage>() {
+         @Override
+         public int compare(SiteImage s1, SiteImage s2) {
+            int c = compareWells(s1.well_, s2.well_);
+            if (c != 0) {
+               return c;
+            }
+            if (s1.siteNumber_ != s2.siteNumber_) {
+               return s1.siteNumber_ < s2.siteNumber_ ? -1 : 1;
+            }
+            return s1.file_.getPath().compareTo(s2.file_.getPath());
+         }
+      });
+      // number the sites in each well
+      String currentWell = "";
+      int siteIndex = 0;
+      for (SiteImage site : sites_) {
+         if (!site.well_.equals(currentWell)) {
+            currentWell = site.well_;
+            siteIndex = 0;
+         }
+         site.siteIndex_ = siteIndex++;
+      }
+   }
+
+   /**
+    * @return all sites, ordered by well, and by site within the well
+    */
+   public List<SiteImage> getSites() {
+      return sites_;
+   }
+
+   private void scan(File root, File dir) throws IOException {
+      File[] files = dir.listFiles();
+      if (files == null) {
+         return;
+      }
+      Arrays.sort(files);
+      Set<String> names = new HashSet<String>();
+      for (File file : files) {
+         if (file.isDirectory()) {
+            scan(root, file);
+            continue;
+         }
+         String name = file.getName();
+         String lower = name.toLowerCase();
+         if (!lower.endsWith(".tif") && !lower.endsWith(".tiff")) {
+            continue;
+         }
+         String base = name.substring(0, name.indexOf('.'));
+         if (base.contains("_MMStack")) {
+            String position = base.substring(base.indexOf("_MMStack") + 8);
+            if (position.startsWith("_")) {
+               position = position.substring(1);
+            }
+            String well = position.contains("-") ? position.split("-")[0] :
+                    acquisitionName(dir, root);
+            addSite(file, channelIndex_ + 1, well, position, 
+                    readSummary(dir));
+         } else if (base.startsWith("img_")) {
+            JSONObject summary = readSummary(dir);
+            // img_frame_channel_slice, the channel name may contain "_"
+            int first = base.indexOf('_', 4);
+            int last = base.lastIndexOf('_');
+            if (first < 0 || last <= first || 
+                    !base.substring(4, first).matches("0+") ||
+                    !base.substring(last + 1).matches("0+") ||
+                    !base.substring(first + 1, last).equals(
+                            channelName(summary, dir))) {
+               continue;
+            }
+            String position = dir.getName();
+            String well = position.contains("-") ? position.split("-")[0] :
+                    acquisitionName(dir.getParentFile(), root);
+            addSite(file, 1, well, position, summary);
+         } else {
+            if (base.contains("_") && names.contains(
+                    base.substring(0, base.lastIndexOf('_')))) {
+               // channel specific image of a site we already have
+               continue;
+            }
+            names.add(base);
+            String well = base.contains("-") ? base.split("-")[0] : base;
+            addSite(file, 1, well, base, null);
+         }
+      }
+   }
+
+   private void addSite(File file, int page, String well, String label,
+           JSONObject summary) {
+      double pixelSize = Double.NaN;
+      if (summary != null && summary.has("PixelSize_um")) {
+         pixelSize = summary.optDouble("PixelSize_um", Double.NaN);
+      }
+      if (pixelSize <= 0.0) {
+         pixelSize = Double.NaN;
+      }
+      sites_.add(new SiteImage(file, page, well, label, pixelSize));
+   }
+
+   /**
+    * Name of the acquisition, without the "_1" Micro-Manager adds to make
+    * names unique
+    */
+   private static String acquisitionName(File dir, File root) {
+      if (dir == null || dir.equals(root)) {
+         return "A1";
+      }
+      return dir.getName().replaceFirst("_[0-9]+$", "");
+   }
+
+   private String channelName(JSONObject summary, File dir) throws IOException {
+      if (summary == null) {
+         throw new IOException("No metadata.txt in " + dir);
+      }
+      JSONArray names = summary.optJSONArray("ChNames");
+      if (names == null || names.length() <= channelIndex_) {
+         throw new IOException("Channel " + channelIndex_ + 
+                 " not listed in the metadata of " + dir);
+      }
+      return names.optString(channelIndex_);
+   }
+
+   /**
+    * Reads the Summary of the Micro-Manager metadata file in the given 
+    * directory.  Metadata of single images are in "metadata.txt", those of
+    * multipage files in "..._metadata.txt"
+    * @return Summary, or null when there is no metadata file
+    */
+   private JSONObject readSummary(File dir) throws IOException {
+      if (summaries_.containsKey(dir)) {
+         return summaries_.get(dir);
+      }
+      JSONObject summary = null;
+      File[] files = dir.listFiles();
+      if (files != null) {
+         Arrays.sort(files);
+         for (File file : files) {
+            if (file.getName().endsWith("metadata.txt")) {
+               StringBuilder text = new StringBuilder();
+               BufferedReader reader = new BufferedReader(new FileReader(file));
+               try {
+                  String line;
+                  while ((line = reader.readLine()) != null) {
+                     text.append(line).append('\n');
+                  }
+               } finally {
+                  reader.close();
+               }
+               try {
+                  summary = new JSONObject(text.toString()).optJSONObject(
+                          "Summary");
+               } catch (JSONException je) {
+                  throw new IOException("Failed to read " + file + ": " + 
+                          je.getMessage());
+               }
+               break;
+            }
+         }
+      }
+      summaries_.put(dir, summary);
+      return summary;
+   }
+
+   /**
+    * Orders wells by row and then by column number, so that A2 comes 
+    * before A10
+    */
+   static int compareWells(String w1, String w2) {
+      String r1 = w1.replaceFirst("[0-9]+$", "");
+      String r2 = w2.replaceFirst("[0-9]+$", "");
+      if (!r1.equals(r2) || r1.length() == w1.length() ||
+              r2.length() == w2.length()) {
+         int c = r1.compareTo(r2);
+         return c != 0 ? c : w1.compareTo(w2);
+      }
+      long c1 = Long.parseLong(w1.substring(r1.length()));
+      long c2 = Long.parseLong(w2.substring(r2.length()));
+      return c1 < c2 ? -1 : (c1 == c2 ? w1.compareTo(w2) : 1);
+   }
+
+   /**
+    * Image of a single site on disk
+    */
+   public static class SiteImage {
+      private final File file_;
+      private final int page_;
+      private final String well_;
+      private final String label_;
+      private final int siteNumber_;
+      private final double pixelSize_;
+      private int siteIndex_;
+
+      private SiteImage(File file, int page, String well, String label,
+              double pixelSize) {
+         file_ = file;
+         page_ = page;
+         well_ = well;
+         label_ = label;
+         pixelSize_ = pixelSize;
+         siteNumber_ = number(label);
+      }
+
+      /**
+       * @return last number in the label, for instance 3 for "A1-Site_3" or 
+       *          "Pos3", or -1 when there is none
+       */
+      private static int number(String label) {
+         String digits = label.replaceFirst("^.*?([0-9]+)$", "$1");
+         if (digits.length() == label.length() && !label.matches("[0-9]+")) {
+            return -1;
+         }
+         try {
+            return Integer.parseInt(digits);
+         } catch (NumberFormatException nfe) {
+            return -1;
+         }
+      }
+
+      public File getFile() {
+         return file_;
+      }
+
+      public String getWell() {
+         return well_;
+      }
+
+      public String getLabel() {
+         return label_;
+      }
+
+      /**
+       * @return index of the site in its well
+       */
+      public int getSiteIndex() {
+         return siteIndex_;
+      }
+
+      /**
+       * Reads the image from disk.  Each call uses its own Opener, so that 
+       * sites can be read from multiple threads
+       * @param defaultPixelSize pixel size in microns used when neither the
+       *                         metadata nor the image have one
+       * @return the image, tagged with its size and pixel size
+       * @throws IOException
+       * @throws JSONException
+       */
+      public TaggedImage read(double defaultPixelSize) throws IOException, 
+              JSONException {
+         Opener opener = new Opener();
+         opener.setSilentMode(true);
+         ImagePlus imp = page_ > 1 ?
+                 opener.openImage(file_.getAbsolutePath(), page_) :
+                 opener.openImage(file_.getAbsolutePath());
+         if (imp == null) {
+            throw new IOException("Failed to open " + file_ + 
+                    (page_ > 1 ? ", image " + page_ : ""));
+         }
+         ImageProcessor ip = imp.getProcessor();
+         String pixelType;
+         if (imp.getBitDepth() == 16) {
+            pixelType = "GRAY16";
+         } else if (imp.getBitDepth() == 8) {
+            pixelType = "GRAY8";
+         } else {
+            throw new IOException(file_ + " is not an 8 or 16-bit image");
+         }
+         double pixelSize = pixelSize_;
+         if (Double.isNaN(pixelSize) && imp.getCalibration().scaled()) {
+            String unit = imp.getCalibration().getUnit();
+            if (unit.equals("micron") || unit.equals("um") || 
+                    unit.equals("\u00B5m")) {
+               pixelSize = imp.getCalibration().pixelWidth;
+            }
+         }
+         if (Double.isNaN(pixelSize)) {
+            pixelSize = defaultPixelSize;
+         }
+         JSONObject tags = new JSONObject();
+         tags.put("Width", ip.getWidth());
+         tags.put("Height", ip.getHeight());
+         tags.put("PixelType", pixelType);
+         tags.put("PixelSizeUm", pixelSize);
+         tags.put("PositionName", label_);
+         return new TaggedImage(ip.getPixels(), tags);
+      }
+   }
+
+}
@@ -0,0 +1,78 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei.screen;
+
+import ij.gui.Roi;
+import mmcorej.TaggedImage;
+
+/**
+ * Receives the progress of a screen, for instance to store and display
+ * images and hits.  All methods are called on the thread running the screen,
+ * except when the ScreenRunner has a write queue: wellStarted and
+ * imageAcquired are then called in order on a writer thread.
+ *
+ * @author nico
+ */
+public interface ScreenListener {
+
+   /**
+    * @param msg progress message for the user
+    */
+   public void message(String msg);
+
+   /**
+    * Called before the first image of a well is acquired
+    * @param well name of the well
+    * @param nrSites number of sites per well
+    * @param nrChannels number of channels that will be stored per site,
+    *                   including the image of the zapped cells
+    * @throws Exception
+    */
+   public void wellStarted(String well, int nrSites, int nrChannels)
+           throws Exception;
+
+   /**
+    * @param well name of the well
+    * @param channel index of the channel.  The last channel holds images
+    *                taken after zapping
+    * @param channelName name of the channel
+    * @param site index of the site in the well
+    * @param image the image
+    * @throws Exception
+    */
+   public void imageAcquired(String well, int channel, String channelName,
+           int site, TaggedImage image) throws Exception;
+
+   /**
+    * @param well name of the well
+    * @param site index of the site in the well
+    * @param hits Rois of the objects found to be hits, in pixel coordinates
+    */
+   public void hitsFound(String well, int site, Roi[] hits);
+
+   /**
+    * Called when the results of a well have been written to the results file
+    * @param well name of the well
+    * @param nucleusCount number of nuclei found in the well
+    * @param hitCount number of hits found in the well
+    */
+   public void wellFinished(String well, int nucleusCount, int hitCount);
+
+}
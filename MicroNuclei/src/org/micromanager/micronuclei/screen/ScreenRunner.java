@@ -0,0 +1,762 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei.screen;
+
+import ij.gui.Roi;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import mmcorej.TaggedImage;
+import org.micromanager.api.MultiStagePosition;
+import org.micromanager.micronuclei.analysis.ImageNormalizer;
+import org.micromanager.micronuclei.analysisinterface.AnalysisModule;
+import org.micromanager.micronuclei.analysisinterface.AnalysisParameters;
+import org.micromanager.micronuclei.analysisinterface.AnalysisResult;
+import org.micromanager.micronuclei.hardware.Microscope;
+import org.micromanager.micronuclei.metrics.Metrics;
+
+/**
+ * Runs a screen: visits all sites, images and analyzes them, zaps the hits,
+ * and writes the number of nuclei and hits per well to results.txt.
+ * Every object found is stored in an ObjectStore in the objects directory.
+ * The focus can be set at every site from a FocusMap, built from autofocus
+ * runs at some of the sites.
+ * When Metrics are enabled, the time spent in each stage is written to
+ * metrics.txt at the end of the screen.
+ * Talks to the hardware only through a Microscope, so that the same code
+ * runs with Micro-Manager and with a simulated microscope.
+ *
+ * @author nico
+ */
+public class ScreenRunner {
+   public static final String RESULTSFILE = "results.txt";
+   public static final String ZAPPEDCHANNEL = "zapped";
+   public static final String METRICSFILE = "metrics.txt";
+   public static final String OBJECTSDIR = "objects";
+   public static final String FOCUSFILE = "focus.txt";
+
+   private final Microscope microscope_;
+   private final AnalysisModule analysisModule_;
+   private final ImageNormalizer normalizer_;
+   private final ScreenListener listener_;
+   private final AtomicBoolean stop_;
+
+   private String imagingChannel_ = "";
+   private String secondImagingChannel_ = "";
+   private String zapChannel_ = "";
+   private String afterZapChannel_ = "";
+   private int nrThreads_ = Runtime.getRuntime().availableProcessors();
+   private boolean speculativeMoves_ = false;
+   private int writeQueueSize_ = 0;
+   private int autofocusInterval_ = 0;
+   // focus samples of the current run, and sites imaged since the last one
+   private FocusMap focusMap_ = null;
+   private int sitesSinceAutofocus_ = 0;
+   // passes images on to the listener during a run
+   private ScreenListener imageListener_;
+   private volatile ResultSink results_ = null;
+   // stage time won and lost by speculative moves during the last run
+   private long stageNanosSaved_ = 0;
+   private long stageNanosLost_ = 0;
+
+   /**
+    * @param microscope hardware to run the screen on
+    * @param analysisModule finds the objects to zap
+    * @param normalizer background and flatfield correction applied before
+    *                   analysis
+    * @param listener receives images, hits and progress
+    * @param stop the screen ends as soon as possible once this is set
+    */
+   public ScreenRunner(Microscope microscope, AnalysisModule analysisModule,
+           ImageNormalizer normalizer, ScreenListener listener,
+           AtomicBoolean stop) {
+      microscope_ = microscope;
+      analysisModule_ = analysisModule;
+      normalizer_ = normalizer;
+      listener_ = listener;
+      stop_ = stop;
+   }
+
+   /**
+    * @param imaging channel used for analysis
+    * @param secondImaging additional channel that is imaged (not analyzed),
+    *                      null or empty when not used
+    * @param zap channel used while zapping
+    * @param afterZap channel used to image the zapped cells
+    */
+   public void setChannels(String imaging, String secondImaging, String zap,
+           String afterZap) {
+      imagingChannel_ = imaging;
+      secondImagingChannel_ = secondImaging;
+      zapChannel_ = zap;
+      afterZapChannel_ = afterZap;
+   }
+
+   /**
+    * @param nrThreads number of threads used for analysis when all sites are
+    *                  acquired first
+    */
+   public void setNrThreads(int nrThreads) {
+      nrThreads_ = nrThreads;
+   }
+
+   /**
+    * @param speculativeMoves when true, the stage moves on to the next site
+    *                  while a site is analyzed, and returns to the site when
+    *                  it has hits.  Only used when sites are analyzed and
+    *                  zapped one by one
+    */
+   public void setSpeculativeMoves(boolean speculativeMoves) {
+      speculativeMoves_ = speculativeMoves;
+   }
+
+   /**
+    * @param writeQueueSize when larger than 0, images are passed to the 
+    *                  listener on a thread of its own, and up to this
+    *                  number of images can wait for the listener before the
+    *                  screen waits.  0 passes images on directly
+    */
+   public void setWriteQueueSize(int writeQueueSize) {
+      writeQueueSize_ = writeQueueSize;
+   }
+
+   /**
+    * @param autofocusInterval 0 leaves the focus as it is (or as set by the
+    *                  positions), 1 runs the autofocus at every site, and
+    *                  n runs it at every n-th site.  The focus at the other
+    *                  sites is predicted from the autofocus results so far
+    */
+   public void setAutofocusInterval(int autofocusInterval) {
+      autofocusInterval_ = autofocusInterval;
+   }
+
+   /**
+    * @return autofocus results of the current or last run, null when the
+    *         autofocus was not used
+    */
+   public FocusMap getFocusMap() {
+      return focusMap_;
+   }
+
+   /**
+    * @return stage time in ms saved by speculative moves during the last run,
+    *         after subtracting the time lost returning to sites with hits.
+    *         Negative when speculation did not pay off
+    */
+   public double getStageTimeSaved() {
+      return (stageNanosSaved_ - stageNanosLost_) / 1000000.0;
+   }
+
+   /**
+    * @return hits and counts per well of the current or last run, null 
+    *         before the first run.  Can be read while the screen runs
+    */
+   public ResultSink getResults() {
+      return results_;
+   }
+
+   public int getNrImagingChannels() {
+      if (secondImagingChannel_ != null && secondImagingChannel_.length() > 1) {
+         return 2;
+      }
+      return 1;
+   }
+
+   /**
+    * Runs the screen
+    * @param positions sites to visit.  The part of the label before the
+    *                  first "-" is the name of the well
+    * @param parms analysis parameters
+    * @param acquireFirst when true, all sites are imaged first and analyzed
+    *                  in parallel, then the sites with hits are revisited
+    * @param saveLocation directory in which results.txt, the objects 
+    *                  directory (and metrics.txt) are written
+    * @return number of images analyzed, or -1 when the screen was stopped
+    * @throws Exception
+    */
+   public int run(MultiStagePosition[] positions, AnalysisParameters parms,
+           boolean acquireFirst, String saveLocation) throws Exception {
+      File dir = new File(saveLocation);
+      if (!dir.isDirectory() && !dir.mkdirs()) {
+         throw new IOException("Can not create directory " + dir);
+      }
+      ResultSink results = new ResultSink(new File(saveLocation, RESULTSFILE),
+              new File(saveLocation, OBJECTSDIR));
+      results_ = results;
+      WriteBehindListener writer = null;
+      imageListener_ = listener_;
+      if (writeQueueSize_ > 0) {
+         writer = new WriteBehindListener(listener_, writeQueueSize_);
+         imageListener_ = writer;
+      }
+      Exception failure = null;
+      try {
+         int nrImagesPerWell = 0;
+         String currentWell = "";
+         // figure out how many sites per there are, we actually get that number
+         // from the last well
+         for (MultiStagePosition msp : positions) {
+            String well = msp.getLabel().split("-")[0];
+            if (!currentWell.equals(well)) {
+               currentWell = well;
+               nrImagesPerWell = 1;
+            } else
+               nrImagesPerWell++;
+         }
+         listener_.message("Images per well: " + nrImagesPerWell);
+         stageNanosSaved_ = 0;
+         stageNanosLost_ = 0;
+         focusMap_ = autofocusInterval_ > 0 ? new FocusMap() : null;
+         sitesSinceAutofocus_ = 0;
+
+         int count;
+         if (acquireFirst) {
+            count = acquireAllThenZap(positions, nrImagesPerWell, parms,
+                    results);
+         } else {
+            count = analyzeAndZapEachSite(positions, nrImagesPerWell, parms,
+                    results);
+         }
+         if (focusMap_ != null) {
+            listener_.message("Autofocus at " + focusMap_.getNrSamples() + 
+                    " sites, focus predicted at the others");
+         }
+         if (writer != null) {
+            writer.flush();
+            listener_.message("Image writer: up to " + 
+                    writer.getMaxQueueDepth() + " of " + writer.getCapacity() + 
+                    " images waiting, screen waited " + 
+                    writer.getNrTimesFull() + " times");
+         }
+         return count;
+      } catch (Exception ex) {
+         failure = ex;
+         throw ex;
+      } finally {
+         finishRun(writer, results, saveLocation, failure);
+      }
+   }
+
+   /**
+    * Writes the images still queued, closes the results, and writes 
+    * focus.txt and metrics.txt, also when the run was stopped or failed.
+    * Each step runs even when an earlier one fails
+    * @param failure exception that ended the run, null when it ended normally
+    * @throws Exception the first failure of these steps, only thrown when 
+    *          the run itself did not fail
+    */
+   private void finishRun(WriteBehindListener writer, ResultSink results,
+           String saveLocation, Exception failure) throws Exception {
+      Exception first = null;
+      Metrics.setWell(null);
+      if (writer != null) {
+         try {
+            writer.close();
+         } catch (Exception ex) {
+            first = ex;
+         }
+      }
+      try {
+         results.close();
+      } catch (Exception ex) {
+         first = first == null ? ex : first;
+      }
+      try {
+         if (focusMap_ != null) {
+            focusMap_.write(new File(saveLocation, FOCUSFILE));
+         }
+      } catch (Exception ex) {
+         first = first == null ? ex : first;
+      }
+      try {
+         if (Metrics.isEnabled()) {
+            Metrics.getRegistry().write(new File(saveLocation, METRICSFILE));
+         }
+      } catch (Exception ex) {
+         first = first == null ? ex : first;
+      }
+      if (failure == null && first != null) {
+         throw first;
+      }
+   }
+
+   /**
+    * Visits all sites in order.  Each site is imaged, analyzed and zapped
+    * before the next site is imaged.
+    * With speculative moves, the stage already moves to the next site while
+    * the site is analyzed.  Most sites have no hits, and for those the move
+    * is hidden behind the analysis.  For sites with hits, the stage returns
+    * to zap them and image the zapped cells.  Images are saved and hits
+    * reported in the same order either way.
+    * @return number of images analyzed, or -1 when the user stopped the run
+    */
+   private int analyzeAndZapEachSite(MultiStagePosition[] positions,
+           int nrImagesPerWell, AnalysisParameters parms,
+           ResultSink results) throws Exception {
+      int nrChannels = getNrImagingChannels();
+      ExecutorService analysisThread = null;
+      if (speculativeMoves_) {
+         analysisThread = Executors.newSingleThreadExecutor();
+      }
+      try {
+         int count = analyzeAndZapEachSite(positions, nrImagesPerWell, parms,
+                 results, nrChannels, analysisThread);
+         if (speculativeMoves_ && count >= 0) {
+            listener_.message("Speculative moves saved " + 
+                    String.format("%.1f", getStageTimeSaved()) + 
+                    " ms of stage time (" + 
+                    String.format("%.1f", stageNanosLost_ / 1000000.0) + 
+                    " ms lost returning to sites with hits)");
+         }
+         return count;
+      } finally {
+         if (analysisThread != null) {
+            analysisThread.shutdownNow();
+         }
+      }
+   }
+
+   /**
+    * @param analysisThread analyzes a site while the stage moves on, null
+    *                       when moves are not speculative
+    */
+   private int analyzeAndZapEachSite(MultiStagePosition[] positions,
+           int nrImagesPerWell, AnalysisParameters parms,
+           ResultSink results, int nrChannels,
+           ExecutorService analysisThread) throws Exception {
+      // start cycling through the sites and group everything by well
+      int count = 0;
+      int siteCount = 0;
+      int wellNucleusCount = 0;
+      int wellHitCount = 0;
+      String currentWell = "";
+      // site the stage is at, when it moved there ahead of imaging
+      MultiStagePosition stagePosition = null;
+      for (int i = 0; i < positions.length; i++) {
+         MultiStagePosition msp = positions[i];
+         if (stop_.get()) {
+            return -1;
+         }
+         String well = msp.getLabel().split("-")[0];
+         if (!currentWell.equals(well)) {
+            // new well
+            listener_.message("Starting well: " + well);
+            if (!currentWell.equals("")) {
+               recordResults(results, currentWell, wellNucleusCount,
+                       wellHitCount);
+            }
+            currentWell = well;
+            siteCount = 0;
+            Metrics.setWell(well);
+            imageListener_.wellStarted(well, nrImagesPerWell, nrChannels + 1);
+            // reset cell and object counters
+            wellNucleusCount = 0;
+            wellHitCount = 0;
+         }
+         long siteStart = Metrics.start();
+         TaggedImage tImg = imageSite(msp, well, siteCount, nrChannels,
+                 msp != stagePosition);
+         setChannel(zapChannel_);
+
+         // Analyze and zap
+         AnalysisResult result;
+         if (analysisThread != null && i + 1 < positions.length) {
+            result = analyzeWhileMoving(analysisThread, tImg, parms, well,
+                    positions[i + 1]);
+            stagePosition = positions[i + 1];
+            if (!result.isRejected() && result.getHits().length > 0) {
+               long start = System.nanoTime();
+               moveTo(msp);
+               stageNanosLost_ += System.nanoTime() - start;
+               Metrics.count(Metrics.RETURNMOVES, 1);
+               stagePosition = msp;
+               // the move restores the Z stored in the position
+               predictFocus(msp, well);
+            }
+         } else {
+            result = analyze(tImg, parms);
+         }
+         results.addObjects(well, siteCount, msp.get(0).x, msp.get(0).y,
+                 result.getObjects());
+         if (!result.isRejected()) {
+            wellNucleusCount += result.getNucleusCount();
+            wellHitCount += result.getHitCount();
+            Roi[] zapRois = result.getHits();
+            zap(zapRois);
+            results.addHits(well, siteCount, zapRois);
+            listener_.hitsFound(well, siteCount, zapRois);
+
+            if (zapRois.length > 0) {
+               imageZappedCells(msp, well, siteCount, nrChannels);
+            }
+         }
+         Metrics.stop(Metrics.SITE, siteStart);
+         Metrics.count(Metrics.SITES, 1);
+         siteCount++;
+         count++;
+      }
+
+      // record the results from the last well:
+      recordResults(results, currentWell, wellNucleusCount, wellHitCount);
+
+      return count;
+   }
+
+   /**
+    * Analyzes an image on the analysis thread, while the stage moves to the
+    * next site.  Keeps track of the stage time this saves, and of the time
+    * it costs when the stage arrives after the analysis finished
+    * @return outcome of the analysis
+    */
+   private AnalysisResult analyzeWhileMoving(ExecutorService analysisThread,
+           final TaggedImage tImg, final AnalysisParameters parms,
+           final String well, MultiStagePosition next) throws Exception {
+      final long[] analysisEnd = new long[1];
+      long moveStart = System.nanoTime();
+      Future<AnalysisResult> future = analysisThread.submit(
+              new Callable<AnalysisResult>() {
+         @Override
+         public AnalysisResult call() throws Exception {
+            try {
+               Metrics.setWell(well);
+               return analyze(tImg, parms);
+            } finally {
+               analysisEnd[0] = System.nanoTime();
+            }
+         }
+      });
+      moveTo(next);
+      long moveEnd = System.nanoTime();
+      Metrics.count(Metrics.SPECULATIVEMOVES, 1);
+      AnalysisResult result = getResult(future);
+      // the part of the move that ran while the site was analyzed
+      long overlap = Math.max(0, Math.min(moveEnd, analysisEnd[0]) - moveStart);
+      if (!result.isRejected() && result.getHits().length > 0) {
+         stageNanosLost_ += (moveEnd - moveStart) - overlap;
+      } else {
+         stageNanosSaved_ += overlap;
+      }
+      return result;
+   }
+
+   /**
+    * Waits for an analysis to finish
+    * @return outcome of the analysis
+    * @throws Exception whatever the analysis threw
+    */
+   private static AnalysisResult getResult(Future<AnalysisResult> future)
+           throws Exception {
+      try {
+         return future.get();
+      } catch (ExecutionException ee) {
+         if (ee.getCause() instanceof Exception) {
+            throw (Exception) ee.getCause();
+         }
+         throw ee;
+      }
+   }
+
+   /**
+    * Images all sites first, while the images are analyzed on a pool of
+    * worker threads.  Once all sites are analyzed, only the sites with hits
+    * are visited again.  These are imaged again to correct for drift, and
+    * the hits found in the new image are zapped.
+    * Nuclei and hit counts in the results file are those of the first pass,
+    * and are identical to the ones found by analyzeAndZapEachSite.
+    * @return number of images analyzed in the first pass, or -1 when the
+    * user stopped the run
+    */
+   private int acquireAllThenZap(MultiStagePosition[] positions,
+           int nrImagesPerWell, final AnalysisParameters parms,
+           ResultSink results) throws Exception {
+      int nrChannels = getNrImagingChannels();
+      ExecutorService analysisPool = Executors.newFixedThreadPool(nrThreads_);
+      // limits the number of images in memory that still need to be analyzed
+      final Semaphore waitingImages = new Semaphore(2 * nrThreads_);
+      List<Site> sites = new ArrayList<Site>();
+      try {
+         // first pass: image everything, analyze in the background
+         String currentWell = "";
+         int siteCount = 0;
+         for (MultiStagePosition msp : positions) {
+            if (stop_.get()) {
+               return -1;
+            }
+            String well = msp.getLabel().split("-")[0];
+            if (!currentWell.equals(well)) {
+               listener_.message("Starting well: " + well);
+               currentWell = well;
+               siteCount = 0;
+               Metrics.setWell(well);
+               imageListener_.wellStarted(well, nrImagesPerWell,
+                       nrChannels + 1);
+            }
+            long siteStart = Metrics.start();
+            final TaggedImage tImg = imageSite(msp, well, siteCount, nrChannels,
+                    true);
+            Metrics.stop(Metrics.SITE, siteStart);
+            Metrics.count(Metrics.SITES, 1);
+            waitingImages.acquire();
+            final String siteWell = well;
+            Future<AnalysisResult> result = analysisPool.submit(
+                    new Callable<AnalysisResult>() {
+               @Override
+               public AnalysisResult call() throws Exception {
+                  try {
+                     Metrics.setWell(siteWell);
+                     return analyze(tImg, parms);
+                  } finally {
+                     waitingImages.release();
+                  }
+               }
+            });
+            sites.add(new Site(msp, well, siteCount, result));
+            siteCount++;
+         }
+
+         // collect the results in acquisition order and report them per well
+         List<Site> hitSites = new ArrayList<Site>();
+         currentWell = "";
+         int wellNucleusCount = 0;
+         int wellHitCount = 0;
+         for (Site site : sites) {
+            if (stop_.get()) {
+               return -1;
+            }
+            AnalysisResult result = site.getResult();
+            if (!currentWell.equals(site.well_)) {
+               if (!currentWell.equals("")) {
+                  recordResults(results, currentWell, wellNucleusCount,
+                          wellHitCount);
+               }
+               currentWell = site.well_;
+               wellNucleusCount = 0;
+               wellHitCount = 0;
+            }
+            results.addObjects(site.well_, site.siteIndex_, site.msp_.get(0).x,
+                    site.msp_.get(0).y, result.getObjects());
+            if (!result.isRejected()) {
+               wellNucleusCount += result.getNucleusCount();
+               wellHitCount += result.getHitCount();
+               results.addHits(site.well_, site.siteIndex_, result.getHits());
+               listener_.hitsFound(site.well_, site.siteIndex_, 
+                       result.getHits());
+               if (result.getHitCount() > 0) {
+                  hitSites.add(site);
+               }
+            }
+         }
+         if (!currentWell.equals("")) {
+            recordResults(results, currentWell, wellNucleusCount,
+                    wellHitCount);
+         }
+
+         // second pass: revisit the sites with hits
+         listener_.message(hitSites.size() + " of " + sites.size() +
+                 " sites have hits");
+         for (Site site : hitSites) {
+            if (stop_.get()) {
+               return -1;
+            }
+            Metrics.setWell(site.well_);
+            moveTo(site.msp_);
+            predictFocus(site.msp_, site.well_);
+            listener_.message("Revisiting site: " + site.msp_.getLabel());
+            setChannel(imagingChannel_);
+            TaggedImage tImg = snap();
+            setChannel(zapChannel_);
+            AnalysisResult result = analyze(tImg, parms);
+            if (!result.isRejected() && result.getHitCount() > 0) {
+               zap(result.getHits());
+               imageZappedCells(site.msp_, site.well_, site.siteIndex_,
+                       nrChannels);
+            }
+         }
+      } finally {
+         analysisPool.shutdownNow();
+      }
+
+      return sites.size();
+   }
+
+   /**
+    * Site imaged during the first pass of acquireAllThenZap
+    */
+   private static class Site {
+      private final MultiStagePosition msp_;
+      private final String well_;
+      private final int siteIndex_;
+      private final Future<AnalysisResult> result_;
+
+      public Site(MultiStagePosition msp, String well, int siteIndex,
+              Future<AnalysisResult> result) {
+         msp_ = msp;
+         well_ = well;
+         siteIndex_ = siteIndex;
+         result_ = result;
+      }
+
+      /**
+       * Waits for the analysis of this site to finish
+       * @return outcome of the analysis
+       * @throws Exception whatever the analysis threw
+       */
+      public AnalysisResult getResult() throws Exception {
+         return ScreenRunner.getResult(result_);
+      }
+   }
+
+   /**
+    * Moves the stage to the site, and images it in the imaging channel(s)
+    * @param move false when the stage is already at the site
+    * @return image in the first imaging channel
+    */
+   private TaggedImage imageSite(MultiStagePosition msp, String well,
+           int siteIndex, int nrChannels, boolean move) throws Exception {
+      if (move) {
+         moveTo(msp);
+      }
+      focus(msp, well);
+      listener_.message("Site: " + msp.getLabel() + ", x: " + msp.get(0).x +
+              ", y: " + msp.get(0).y);
+      setChannel(imagingChannel_);
+      TaggedImage tImg = snap();
+      save(well, 0, imagingChannel_, siteIndex, tImg);
+      if (nrChannels == 2) {
+         setChannel(secondImagingChannel_);
+         TaggedImage t2Img = snap();
+         save(well, 1, secondImagingChannel_, siteIndex, t2Img);
+      }
+      return tImg;
+   }
+
+   /**
+    * Takes an image of the zapped cells at the current site
+    */
+   private void imageZappedCells(MultiStagePosition msp, String well,
+           int siteIndex, int nrChannels) throws Exception {
+      listener_.message("Imaging zapped cells at site: " + msp.getLabel());
+      // take the red image and save it
+      setChannel(afterZapChannel_);
+      TaggedImage tImg2 = snap();
+      save(well, nrChannels, ZAPPEDCHANNEL, siteIndex, tImg2);
+   }
+
+   // The following wrap the hardware, the analysis and the listener, and time
+   // them when Metrics are enabled
+
+   private void moveTo(MultiStagePosition msp) throws Exception {
+      long start = Metrics.start();
+      microscope_.moveTo(msp);
+      Metrics.stop(Metrics.STAGEMOVE, start);
+   }
+
+   /**
+    * Runs the autofocus at every autofocusInterval_-th site and adds the
+    * result to the focus map.  At the other sites, moves the focus to the
+    * position predicted by the map
+    */
+   private void focus(MultiStagePosition msp, String well) throws Exception {
+      if (focusMap_ == null) {
+         return;
+      }
+      if (sitesSinceAutofocus_ == 0) {
+         long start = Metrics.start();
+         double z = microscope_.autofocus();
+         Metrics.stop(Metrics.AUTOFOCUS, start);
+         Metrics.count(Metrics.AUTOFOCUSSITES, 1);
+         focusMap_.addSample(well, msp.getX(), msp.getY(), z);
+      } else {
+         predictFocus(msp, well);
+      }
+      sitesSinceAutofocus_ = (sitesSinceAutofocus_ + 1) % autofocusInterval_;
+   }
+
+   private void predictFocus(MultiStagePosition msp, String well) 
+           throws Exception {
+      if (focusMap_ == null || focusMap_.getNrSamples() == 0) {
+         return;
+      }
+      long start = Metrics.start();
+      microscope_.setZ(focusMap_.predict(well, msp.getX(), msp.getY()));
+      Metrics.stop(Metrics.FOCUSMOVE, start);
+   }
+
+   private void setChannel(String channel) throws Exception {
+      long start = Metrics.start();
+      microscope_.setChannel(channel);
+      Metrics.stop(Metrics.CHANNEL, start);
+   }
+
+   private TaggedImage snap() throws Exception {
+      long start = Metrics.start();
+      TaggedImage tImg = microscope_.snap();
+      Metrics.stop(Metrics.SNAP, start);
+      Metrics.count(Metrics.IMAGES, 1);
+      return tImg;
+   }
+
+   private void save(String well, int channel, String channelName,
+           int siteIndex, TaggedImage tImg) throws Exception {
+      long start = Metrics.start();
+      imageListener_.imageAcquired(well, channel, channelName, siteIndex, tImg);
+      Metrics.stop(Metrics.SAVE, start);
+   }
+
+   private AnalysisResult analyze(TaggedImage tImg, AnalysisParameters parms)
+           throws Exception {
+      long start = Metrics.start();
+      TaggedImage normalized = normalizer_.normalize(tImg);
+      Metrics.stop(Metrics.NORMALIZE, start);
+      start = Metrics.start();
+      AnalysisResult result = analysisModule_.analyze(normalized, parms);
+      Metrics.stop(Metrics.ANALYZE, start);
+      return result;
+   }
+
+   private void zap(Roi[] rois) throws Exception {
+      if (rois == null || rois.length == 0) {
+         microscope_.zap(rois);
+         return;
+      }
+      long start = System.nanoTime();
+      microscope_.zap(rois);
+      long elapsed = System.nanoTime() - start;
+      Metrics.stop(Metrics.ZAP, start);
+      Metrics.count(Metrics.ZAPPEDROIS, rois.length);
+      listener_.message("Zapped " + rois.length + " cells in " + 
+              String.format("%.1f", elapsed / 1000000.0) + " ms");
+   }
+
+   private void recordResults(ResultSink results, String currentWell,
+           int nucleusCount, int hitCount) {
+      results.addWell(currentWell, nucleusCount, hitCount);
+      listener_.wellFinished(currentWell, nucleusCount, hitCount);
+   }
+
+}
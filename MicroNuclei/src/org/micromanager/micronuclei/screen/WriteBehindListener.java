@@ -0,0 +1,262 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei.screen;
+
+import ij.gui.Roi;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import mmcorej.TaggedImage;
+import org.micromanager.micronuclei.metrics.Metrics;
+
+/**
+ * Passes images to a ScreenListener on a writer thread of its own, so that
+ * slow storage does not hold up the screen.  Images wait in a bounded queue,
+ * and imageAcquired blocks while the queue is full.  wellStarted goes
+ * through the same queue to keep the order of the calls, all other calls are
+ * passed on directly on the thread running the screen.
+ * When the listener throws, the images still queued are dropped, and the
+ * exception is thrown on the screen thread by the next call that queues,
+ * or by flush.  Errors (such as running out of memory) are thrown wrapped
+ * in an Exception, and the writer thread keeps draining the queue, so that
+ * flush and close always return.
+ *
+ * @author nico
+ */
+class WriteBehindListener implements ScreenListener {
+   private final ScreenListener listener_;
+   private final BlockingQueue<Task> queue_;
+   private final int capacity_;
+   private final Thread writer_;
+   private volatile Exception error_ = null;
+   private boolean errorReported_ = false;
+   private int maxQueueDepth_ = 0;
+   private int nrTimesFull_ = 0;
+
+   /**
+    * Starts the writer thread
+    * @param listener receives wellStarted and imageAcquired on the writer
+    *                 thread, and all other calls on the calling thread
+    * @param capacity maximum number of images waiting to be written
+    */
+   public WriteBehindListener(ScreenListener listener, int capacity) {
+      listener_ = listener;
+      capacity_ = capacity;
+      queue_ = new ArrayBlockingQueue<Task>(capacity);
+      writer_ = new Thread(new Runnable() {
+         @Override
+         public void run() {
+            write();
+         }
+      }, "MicroNuclei image writer");
+      writer_.setDaemon(true);
+      writer_.start();
+   }
+
+   @Override
+   public void message(String msg) {
+      listener_.message(msg);
+   }
+
+   @Override
+   public void wellStarted(final String well, final int nrSites,
+           final int nrChannels) throws Exception {
+      put(new Task(well) {
+         @Override
+         void run() throws Exception {
+            listener_.wellStarted(well, nrSites, nrChannels);
+         }
+      });
+   }
+
+   @Override
+   public void imageAcquired(final String well, final int channel,
+           final String channelName, final int site, final TaggedImage image)
+           throws Exception {
+      put(new Task(well) {
+         @Override
+         void run() throws Exception {
+            listener_.imageAcquired(well, channel, channelName, site, image);
+         }
+      });
+   }
+
+   @Override
+   public void hitsFound(String well, int site, Roi[] hits) {
+      listener_.hitsFound(well, site, hits);
+   }
+
+   @Override
+   public void wellFinished(String well, int nucleusCount, int hitCount) {
+      listener_.wellFinished(well, nucleusCount, hitCount);
+   }
+
+   /**
+    * @return number of images (and well starts) waiting to be written
+    */
+   public int getQueueDepth() {
+      return queue_.size();
+   }
+
+   /**
+    * @return largest number of calls that were waiting to be written
+    */
+   public int getMaxQueueDepth() {
+      return maxQueueDepth_;
+   }
+
+   /**
+    * @return number of times the screen had to wait for the writer
+    */
+   public int getNrTimesFull() {
+      return nrTimesFull_;
+   }
+
+   public int getCapacity() {
+      return capacity_;
+   }
+
+   /**
+    * Waits until everything queued so far is written
+    * @throws Exception thrown by the listener and not reported yet
+    */
+   public void flush() throws Exception {
+      final Object done = new Object();
+      final boolean[] written = new boolean[1];
+      put(new Task(null) {
+         @Override
+         void run() {
+            synchronized (done) {
+               written[0] = true;
+               done.notifyAll();
+            }
+         }
+      });
+      synchronized (done) {
+         while (!written[0]) {
+            done.wait();
+         }
+      }
+      throwError();
+   }
+
+   /**
+    * Writes everything queued so far, and ends the writer thread.  Does not
+    * throw what the listener threw, so that it can be used in a finally 
+    * block.  Errors not yet reported are lost, use flush first to see them
+    * @throws InterruptedException when interrupted while waiting for the
+    *          writer thread
+    */
+   public void close() throws InterruptedException {
+      queue_.put(new Task(null) {
+         @Override
+         boolean isLast() {
+            return true;
+         }
+      });
+      writer_.join();
+   }
+
+   private void put(Task task) throws Exception {
+      throwError();
+      task.queued_ = Metrics.start();
+      if (!queue_.offer(task)) {
+         nrTimesFull_++;
+         Metrics.count(Metrics.WRITERFULL, 1);
+         queue_.put(task);
+      }
+      maxQueueDepth_ = Math.max(maxQueueDepth_, queue_.size());
+   }
+
+   private void throwError() throws Exception {
+      Exception error = error_;
+      if (error != null && !errorReported_) {
+         errorReported_ = true;
+         throw error;
+      }
+   }
+
+   /**
+    * Runs on the writer thread until close is called
+    */
+   private void write() {
+      while (true) {
+         Task task;
+         try {
+            task = queue_.take();
+         } catch (InterruptedException ie) {
+            return;
+         }
+         if (task.isLast()) {
+            return;
+         }
+         if (task.well_ == null) {
+            task.runQuietly();
+            continue;
+         }
+         if (error_ != null) {
+            // drop the images after an error
+            continue;
+         }
+         Metrics.setWell(task.well_);
+         long start = Metrics.start();
+         try {
+            task.run();
+         } catch (Exception ex) {
+            error_ = ex;
+         } catch (Throwable t) {
+            error_ = new Exception("Image writer failed: " + t, t);
+         }
+         Metrics.stop(Metrics.WRITE, start);
+         Metrics.stop(Metrics.WRITEQUEUED, task.queued_);
+      }
+   }
+
+   /**
+    * Call to the listener waiting in the queue
+    */
+   private static class Task {
+      private final String well_;
+      private long queued_ = 0L;
+
+      /**
+       * @param well well the call is about, null for calls that do not go
+       *             to the listener
+       */
+      Task(String well) {
+         well_ = well;
+      }
+
+      void run() throws Exception {
+      }
+
+      private void runQuietly() {
+         try {
+            run();
+         } catch (Exception ex) {
+            // only calls to the listener throw
+         }
+      }
+
+      boolean isLast() {
+         return false;
+      }
+   }
+
+}
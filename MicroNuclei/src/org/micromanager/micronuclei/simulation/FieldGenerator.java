@@ -0,0 +1,519 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei.simulation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import mmcorej.TaggedImage;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Renders 16-bit fields of nuclei and micronuclei, together with the list
+ * of nuclei that the MicroNucleiAnalysisModule should zap.
+ *
+ * Nuclei are ellipses that are brightest in the center.  A fraction of them
+ * gets enough micronuclei within the maximum distance to be a hit, the others
+ * get fewer.  Some nuclei are larger than the maximum nuclear size.  These
+ * get micronuclei as well when they fit within the maximum distance, but 
+ * should not be zapped.  Small debris, noise,
+ * uneven illumination, and well edges (a bright area outside of the well 
+ * that makes the standard deviation of the image exceed the maximum) are 
+ * added as configured.
+ *
+ * The ground truth follows the rules of the analysis: the micronuclear size
+ * range also includes nuclei, so a nucleus with an area in that range counts
+ * itself as one of its micronuclei.  Sizes are chosen well within the size 
+ * limits, since segmentation does not measure areas exactly (blurring and
+ * the Otsu threshold of the field change the area of nuclei by up to 40%),
+ * and micronuclei are kept small enough not to be taken for nuclei.
+ *
+ * Field i of a generator only depends on the seed, the settings, and i, 
+ * so fields can be generated in any order, and from multiple threads, as
+ * long as the settings are not changed at the same time.
+ *
+ * @author nico
+ */
+public class FieldGenerator {
+   private static final int NOISETABLESIZE = 4096;
+   private static final int MAXATTEMPTS = 20;
+   // gap between a nucleus and its micronuclei, in pixels
+   private static final double MINGAP = 2.0;
+   private static final double MAXGAP = 5.0;
+   // the analysis ignores nuclei touching the edge of the image after 
+   // blurring, so keep this many pixels between nuclei and the edge
+   private static final double EDGEMARGIN = 20.0;
+
+   private final long seed_;
+   private final int width_;
+   private final int height_;
+   private final double pixelSize_;
+   // standard normal samples, picked with random bits when adding noise
+   private final float[] noiseTable_;
+
+   private double density_ = 250.0;
+   private double hitFraction_ = 0.1;
+   private double oversizeFraction_ = 0.05;
+   private double debrisDensity_ = 50.0;
+   private double minSizeMN_ = 20.0;
+   private double maxSizeMN_ = 800.0;
+   private double minSizeN_ = 80.0;
+   private double maxSizeN_ = 800.0;
+   private double maxDistance_ = 25.0;
+   private int minNrMN_ = 3;
+   private double maxStdDev_ = 7000.0;
+   private int background_ = 200;
+   private int minBrightness_ = 2000;
+   private int maxBrightness_ = 4000;
+   private double noise_ = 20.0;
+   private double illumination_ = 0.3;
+   private double wellEdgeFraction_ = 0.05;
+   private int wellEdgeLevel_ = 20000;
+
+   /**
+    * Creates a generator with settings that match the defaults of the 
+    * MicroNucleiAnalysisModule
+    * @param seed seed of the sequence of fields
+    * @param width width of the fields in pixels
+    * @param height height of the fields in pixels
+    * @param pixelSize pixel size in microns
+    */
+   public FieldGenerator(long seed, int width, int height, double pixelSize) {
+      seed_ = seed;
+      width_ = width;
+      height_ = height;
+      pixelSize_ = pixelSize;
+      noiseTable_ = new float[NOISETABLESIZE];
+      Random random = new Random(mix(seed));
+      for (int i = 0; i < NOISETABLESIZE; i++) {
+         noiseTable_[i] = (float) random.nextGaussian();
+      }
+   }
+
+   /**
+    * @param nucleiPerSquareMm number of nuclei per mm^2.  Fewer nuclei are 
+    *          rendered when they do not fit
+    */
+   public void setDensity(double nucleiPerSquareMm) {
+      density_ = nucleiPerSquareMm;
+   }
+
+   /**
+    * @param hitFraction fraction of the nuclei that should be zapped
+    * @param oversizeFraction fraction of the nuclei that are larger than the
+    *          maximum nuclear size.  These have micronuclei, but should not 
+    *          be zapped
+    */
+   public void setHitFraction(double hitFraction, double oversizeFraction) {
+      hitFraction_ = hitFraction;
+      oversizeFraction_ = oversizeFraction;
+   }
+
+   /**
+    * @param debrisPerSquareMm number of particles smaller than the minimum
+    *          micronuclear size per mm^2
+    */
+   public void setDebrisDensity(double debrisPerSquareMm) {
+      debrisDensity_ = debrisPerSquareMm;
+   }
+
+   /**
+    * Settings of the analysis that determine the ground truth
+    * @param minSizeMN minimum micronuclear size in micron^2
+    * @param maxSizeMN maximum micronuclear size in micron^2
+    * @param minSizeN minimum nuclear size in micron^2
+    * @param maxSizeN maximum nuclear size in micron^2
+    * @param maxDistance maximum distance between a micronucleus and its 
+    *          nucleus in microns
+    * @param minNrMN minimum number of micronuclei of a hit
+    * @param maxStdDev images with a larger standard deviation are rejected
+    */
+   public void setAnalysisSettings(double minSizeMN, double maxSizeMN, 
+           double minSizeN, double maxSizeN, double maxDistance, int minNrMN,
+           double maxStdDev) {
+      minSizeMN_ = minSizeMN;
+      maxSizeMN_ = maxSizeMN;
+      minSizeN_ = minSizeN;
+      maxSizeN_ = maxSizeN;
+      maxDistance_ = maxDistance;
+      minNrMN_ = minNrMN;
+      maxStdDev_ = maxStdDev;
+   }
+
+   /**
+    * @param background grey level of the background
+    * @param minBrightness lowest grey level of objects above the background
+    * @param maxBrightness highest grey level of objects above the background
+    */
+   public void setIntensities(int background, int minBrightness,
+           int maxBrightness) {
+      background_ = background;
+      minBrightness_ = minBrightness;
+      maxBrightness_ = maxBrightness;
+   }
+
+   /**
+    * @param noise standard deviation of the noise added to every pixel
+    */
+   public void setNoise(double noise) {
+      noise_ = noise;
+   }
+
+   /**
+    * @param illumination fraction by which the illumination drops from the
+    *          center to the corners of the field
+    */
+   public void setIllumination(double illumination) {
+      illumination_ = illumination;
+   }
+
+   /**
+    * @param fraction fraction of the fields showing the edge of the well
+    * @param level grey level of the area outside of the well
+    */
+   public void setWellEdges(double fraction, int level) {
+      wellEdgeFraction_ = fraction;
+      wellEdgeLevel_ = level;
+   }
+
+   public int getWidth() {
+      return width_;
+   }
+
+   public int getHeight() {
+      return height_;
+   }
+
+   public double getPixelSize() {
+      return pixelSize_;
+   }
+
+   /**
+    * Renders a field into a newly allocated image
+    * @param index index of the field
+    * @return the field and its ground truth
+    * @throws JSONException
+    */
+   public SyntheticField generate(long index) throws JSONException {
+      return generate(index, new short[width_ * height_]);
+   }
+
+   /**
+    * Renders a field into the given pixel array, which becomes the pixel
+    * array of the image of the field
+    * @param index index of the field
+    * @param pixels array of width * height pixels
+    * @return the field and its ground truth
+    * @throws JSONException
+    */
+   public SyntheticField generate(long index, short[] pixels) 
+           throws JSONException {
+      if (pixels.length != width_ * height_) {
+         throw new IllegalArgumentException("Expected " + width_ * height_ +
+                 " pixels, got " + pixels.length);
+      }
+      Random random = new Random(mix(seed_ ^ mix(index + 1)));
+      Arrays.fill(pixels, (short) 0);
+
+      // the well is a large circle, positioned such that its edge crosses
+      // the field
+      boolean wellEdge = random.nextDouble() < wellEdgeFraction_;
+      double wellX = 0.0;
+      double wellY = 0.0;
+      double wellRadius = 0.0;
+      if (wellEdge) {
+         double angle = 2.0 * Math.PI * random.nextDouble();
+         double size = Math.min(width_, height_);
+         double offset = (random.nextDouble() - 0.5) * 0.5 * size;
+         wellRadius = 3.0 * Math.sqrt(width_ * width_ + height_ * height_);
+         wellX = 0.5 * width_ - Math.cos(angle) * (wellRadius - offset);
+         wellY = 0.5 * height_ - Math.sin(angle) * (wellRadius - offset);
+      }
+
+      List<SyntheticNucleus> nuclei = placeNuclei(random, pixels, wellEdge, 
+              wellX, wellY, wellRadius);
+      addDebris(random, pixels, nuclei);
+
+      double stdDev = finish(random, pixels, wellEdge, wellX, wellY, 
+              wellRadius);
+      TaggedImage image = new TaggedImage(pixels, makeTags());
+      return new SyntheticField(index, image, nuclei, wellEdge, stdDev,
+              stdDev > maxStdDev_);
+   }
+
+   /**
+    * Places nuclei with their micronuclei such that every micronucleus is
+    * closer to its own nucleus than to any other, and renders them
+    */
+   private List<SyntheticNucleus> placeNuclei(Random random, short[] pixels,
+           boolean wellEdge, double wellX, double wellY, double wellRadius) {
+      double areaPx = 1.0 / (pixelSize_ * pixelSize_);
+      double maxRing = 0.9 * maxDistance_ / pixelSize_;
+      int target = (int) Math.round(density_ * width_ * height_ * 
+              pixelSize_ * pixelSize_ / 1.0e6);
+      // placed nuclei: center, reach (outer edge of the micronuclei), and
+      // ring (distance of the micronuclei)
+      double[] xs = new double[target];
+      double[] ys = new double[target];
+      double[] reach = new double[target];
+      double[] ring = new double[target];
+      int nrPlaced = 0;
+      List<SyntheticNucleus> nuclei = new ArrayList<SyntheticNucleus>();
+
+      for (int n = 0; n < target; n++) {
+         double type = random.nextDouble();
+         boolean hit = type < hitFraction_;
+         boolean oversize = !hit && type < hitFraction_ + oversizeFraction_;
+         double area = oversize ?
+                 uniform(random, 1.5 * maxSizeN_, 2.0 * maxSizeN_) :
+                 uniform(random, 2.0 * minSizeN_, 0.5 * maxSizeN_);
+         double aspect = uniform(random, 1.0, 1.3);
+         double b = Math.sqrt(area * areaPx / (Math.PI * aspect));
+         double a = aspect * b;
+         double angle = Math.PI * random.nextDouble();
+         int self = (area >= minSizeMN_ && area <= maxSizeMN_) ? 1 : 0;
+         int nrMN;
+         if (hit || oversize) {
+            nrMN = Math.max(minNrMN_ - self, 1) + random.nextInt(3);
+         } else {
+            int maxNrMN = Math.max(minNrMN_ - 1 - self, 0);
+            nrMN = random.nextBoolean() ? 0 : random.nextInt(maxNrMN + 1);
+         }
+         double mnArea = uniform(random, 1.25 * minSizeMN_, 
+                 Math.min(2.0 * minSizeMN_, 0.5 * minSizeN_));
+         double mnRadius = Math.sqrt(mnArea * areaPx / Math.PI);
+         double r = a + mnRadius + uniform(random, MINGAP, MAXGAP);
+         if (r > maxRing) {
+            // large nuclei may not leave room for micronuclei within the
+            // maximum distance
+            r = a + mnRadius + MINGAP;
+            if (r > maxRing) {
+               nrMN = 0;
+            }
+            r = maxRing;
+         }
+         boolean zap = !oversize && area < maxSizeN_ && 
+                 nrMN + self >= minNrMN_;
+         double outer = a + MINGAP;
+         if (nrMN > 0) {
+            outer = r + mnRadius + MINGAP;
+         } else {
+            r = a;
+         }
+
+         double margin = Math.max(outer, a + EDGEMARGIN);
+         for (int attempt = 0; attempt < MAXATTEMPTS; attempt++) {
+            double x = uniform(random, margin, width_ - margin);
+            double y = uniform(random, margin, height_ - margin);
+            if (wellEdge && distance(x, y, wellX, wellY) > wellRadius - outer) {
+               continue;
+            }
+            boolean free = true;
+            for (int i = 0; i < nrPlaced && free; i++) {
+               double minD = Math.max(outer + reach[i], 
+                       2.0 * Math.max(r, ring[i]) + 1.0);
+               double dx = x - xs[i];
+               double dy = y - ys[i];
+               free = dx * dx + dy * dy >= minD * minD;
+            }
+            if (!free) {
+               continue;
+            }
+            int brightness = minBrightness_ + 
+                    random.nextInt(maxBrightness_ - minBrightness_ + 1);
+            ellipse(pixels, x, y, a, b, angle, brightness);
+            double start = 2.0 * Math.PI * random.nextDouble();
+            for (int m = 0; m < nrMN; m++) {
+               double mnAngle = start + 2.0 * Math.PI * m / nrMN;
+               ellipse(pixels, x + r * Math.cos(mnAngle), 
+                       y + r * Math.sin(mnAngle), mnRadius, mnRadius, 0.0, 
+                       brightness);
+            }
+            xs[nrPlaced] = x;
+            ys[nrPlaced] = y;
+            reach[nrPlaced] = outer;
+            ring[nrPlaced] = r;
+            nrPlaced++;
+            nuclei.add(new SyntheticNucleus(x, y, a, area, nrMN, zap));
+            break;
+         }
+      }
+      return nuclei;
+   }
+
+   /**
+    * Adds particles that are too small to be micronuclei, away from the
+    * nuclei
+    */
+   private void addDebris(Random random, short[] pixels,
+           List<SyntheticNucleus> nuclei) {
+      int nrDebris = (int) Math.round(debrisDensity_ * width_ * height_ * 
+              pixelSize_ * pixelSize_ / 1.0e6);
+      double maxRadius = Math.sqrt(0.4 * minSizeMN_ / Math.PI) / pixelSize_;
+      double margin = maxRadius + 0.8 * maxDistance_ / pixelSize_ + MAXGAP;
+      for (int n = 0; n < nrDebris; n++) {
+         double x = uniform(random, maxRadius, width_ - maxRadius);
+         double y = uniform(random, maxRadius, height_ - maxRadius);
+         double radius = uniform(random, 0.5, maxRadius);
+         boolean free = true;
+         for (int i = 0; i < nuclei.size() && free; i++) {
+            SyntheticNucleus nucleus = nuclei.get(i);
+            free = distance(x, y, nucleus.getX(), nucleus.getY()) > 
+                    nucleus.getRadius() + margin;
+         }
+         if (free) {
+            ellipse(pixels, x, y, radius, radius, 0.0, minBrightness_ + 
+                    random.nextInt(maxBrightness_ - minBrightness_ + 1));
+         }
+      }
+   }
+
+   /**
+    * Adds background, illumination, the area outside of the well, and noise
+    * to the rendered objects
+    * @return standard deviation of the final image
+    */
+   private double finish(Random random, short[] pixels, boolean wellEdge,
+           double wellX, double wellY, double wellRadius) {
+      double centerX = width_ * (0.4 + 0.2 * random.nextDouble());
+      double centerY = height_ * (0.4 + 0.2 * random.nextDouble());
+      double falloff = illumination_ / 
+              (0.25 * (width_ * width_ + height_ * height_));
+      // illumination drop for each column, the rows add their own
+      float[] columnDrop = new float[width_];
+      for (int x = 0; x < width_; x++) {
+         columnDrop[x] = (float) (falloff * (x - centerX) * (x - centerX));
+      }
+      float noise = (float) noise_;
+      float[] table = noiseTable_;
+      float background = background_;
+      float edgeLevel = wellEdgeLevel_;
+      long state = random.nextLong() | 1L;
+      double wellR2 = wellRadius * wellRadius;
+      long sum = 0;
+      long sum2 = 0;
+      for (int y = 0; y < height_; y++) {
+         float rowGain = (float) (1.0 - falloff * (y - centerY) * (y - centerY));
+         int row = y * width_;
+         // columns outside of the well, if any, are left of x0 or from x1 on
+         int x0 = 0;
+         int x1 = width_;
+         if (wellEdge) {
+            double dy2 = (y - wellY) * (y - wellY);
+            if (dy2 >= wellR2) {
+               x1 = 0;
+            } else {
+               double half = Math.sqrt(wellR2 - dy2);
+               x0 = (int) Math.max(Math.min(Math.ceil(wellX - half), width_), 0);
+               x1 = (int) Math.max(Math.min(Math.floor(wellX + half) + 1, width_), x0);
+            }
+         }
+         long bits = 0;
+         for (int x = 0; x < width_; x++) {
+            if ((x & 3) == 0) {
+               // xorshift: much cheaper than Random for millions of pixels
+               state ^= state << 13;
+               state ^= state >>> 7;
+               state ^= state << 17;
+               bits = state;
+            }
+            float level = (x >= x0 && x < x1) ?
+                    background + (pixels[row + x] & 0xffff) : edgeLevel;
+            int value = (int) (level * (rowGain - columnDrop[x]) + 
+                    noise * table[(int) bits & (NOISETABLESIZE - 1)] + 0.5f);
+            bits >>>= 16;
+            if (value < 0) {
+               value = 0;
+            } else if (value > 65535) {
+               value = 65535;
+            }
+            pixels[row + x] = (short) value;
+            sum += value;
+            sum2 += (long) value * value;
+         }
+      }
+      double n = (double) width_ * height_;
+      double mean = sum / n;
+      return Math.sqrt(Math.max((sum2 - n * mean * mean) / (n - 1.0), 0.0));
+   }
+
+   /**
+    * Draws an ellipse that is brightest in the center and 20% dimmer at
+    * its edge.  Overlapping objects keep the brightest value
+    */
+   private void ellipse(short[] pixels, double cx, double cy, double a,
+           double b, double angle, int brightness) {
+      double cos = Math.cos(angle);
+      double sin = Math.sin(angle);
+      int x0 = Math.max((int) Math.floor(cx - a), 0);
+      int x1 = Math.min((int) Math.ceil(cx + a), width_ - 1);
+      int y0 = Math.max((int) Math.floor(cy - a), 0);
+      int y1 = Math.min((int) Math.ceil(cy + a), height_ - 1);
+      double a2 = 1.0 / (a * a);
+      double b2 = 1.0 / (b * b);
+      for (int y = y0; y <= y1; y++) {
+         double dy = y - cy;
+         int row = y * width_;
+         for (int x = x0; x <= x1; x++) {
+            double dx = x - cx;
+            double u = dx * cos + dy * sin;
+            double v = dy * cos - dx * sin;
+            double q = u * u * a2 + v * v * b2;
+            if (q <= 1.0) {
+               int value = (int) (brightness * (1.0 - 0.2 * q));
+               if (value > (pixels[row + x] & 0xffff)) {
+                  pixels[row + x] = (short) value;
+               }
+            }
+         }
+      }
+   }
+
+   private JSONObject makeTags() throws JSONException {
+      JSONObject tags = new JSONObject();
+      tags.put("Width", width_);
+      tags.put("Height", height_);
+      tags.put("PixelType", "GRAY16");
+      tags.put("PixelSizeUm", pixelSize_);
+      return tags;
+   }
+
+   private static double uniform(Random random, double min, double max) {
+      return min + (max - min) * random.nextDouble();
+   }
+
+   private static double distance(double x0, double y0, double x1, double y1) {
+      return Math.sqrt((x0 - x1) * (x0 - x1) + (y0 - y1) * (y0 - y1));
+   }
+
+   /**
+    * Scrambles the bits of a seed (SplitMix64), so that neighbouring 
+    * indices give unrelated sequences
+    */
+   private static long mix(long z) {
+      z += 0x9E3779B97F4A7C15L;
+      z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+      z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+      return z ^ (z >>> 31);
+   }
+
+}
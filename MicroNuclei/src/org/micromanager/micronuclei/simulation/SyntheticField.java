@@ -0,0 +1,120 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei.simulation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import mmcorej.TaggedImage;
+
+/**
+ * A field rendered by the FieldGenerator, together with its ground truth
+ *
+ * @author nico
+ */
+public final class SyntheticField {
+   private final long index_;
+   private final TaggedImage image_;
+   private final List<SyntheticNucleus> nuclei_;
+   private final List<SyntheticNucleus> zapList_;
+   private final boolean wellEdge_;
+   private final double stdDev_;
+   private final boolean rejected_;
+
+   /**
+    * @param index index of the field in the sequence of the generator
+    * @param image the rendered image
+    * @param nuclei all nuclei in the image
+    * @param wellEdge whether the image shows the edge of the well
+    * @param stdDev standard deviation of the pixel values
+    * @param rejected whether the analysis should reject the whole image.
+    *                 When true, no nucleus should be zapped
+    */
+   public SyntheticField(long index, TaggedImage image,
+           List<SyntheticNucleus> nuclei, boolean wellEdge, double stdDev,
+           boolean rejected) {
+      index_ = index;
+      image_ = image;
+      nuclei_ = Collections.unmodifiableList(nuclei);
+      List<SyntheticNucleus> zapList = new ArrayList<SyntheticNucleus>();
+      if (!rejected) {
+         for (SyntheticNucleus nucleus : nuclei) {
+            if (nucleus.getZap()) {
+               zapList.add(nucleus);
+            }
+         }
+      }
+      zapList_ = Collections.unmodifiableList(zapList);
+      wellEdge_ = wellEdge;
+      stdDev_ = stdDev;
+      rejected_ = rejected;
+   }
+
+   public long getIndex() {
+      return index_;
+   }
+
+   public TaggedImage getImage() {
+      return image_;
+   }
+
+   /**
+    * @return all nuclei, including the ones that should not be zapped
+    */
+   public List<SyntheticNucleus> getNuclei() {
+      return nuclei_;
+   }
+
+   /**
+    * @return nuclei the analysis should zap.  Empty when the image 
+    *          should be rejected
+    */
+   public List<SyntheticNucleus> getZapList() {
+      return zapList_;
+   }
+
+   public boolean hasWellEdge() {
+      return wellEdge_;
+   }
+
+   public double getStdDev() {
+      return stdDev_;
+   }
+
+   public boolean isRejected() {
+      return rejected_;
+   }
+
+   /**
+    * Finds the nucleus at the given position
+    * @param x x position in pixels
+    * @param y y position in pixels
+    * @return nucleus containing the position, or null when there is none
+    */
+   public SyntheticNucleus nucleusAt(double x, double y) {
+      for (SyntheticNucleus nucleus : nuclei_) {
+         if (nucleus.contains(x, y)) {
+            return nucleus;
+         }
+      }
+      return null;
+   }
+
+}
@@ -0,0 +1,87 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei.simulation;
+
+/**
+ * Ground truth for one nucleus rendered by the FieldGenerator.  Positions are
+ * in pixels, relative to the top left corner of the image
+ *
+ * @author nico
+ */
+public final class SyntheticNucleus {
+   private final double x_;
+   private final double y_;
+   private final double radius_;
+   private final double area_;
+   private final int nrMicroNuclei_;
+   private final boolean zap_;
+
+   /**
+    * @param x x position of the center in pixels
+    * @param y y position of the center in pixels
+    * @param radius largest radius of the nucleus in pixels
+    * @param area area in micron^2
+    * @param nrMicroNuclei number of micronuclei rendered around this nucleus
+    * @param zap whether the analysis should zap this nucleus
+    */
+   public SyntheticNucleus(double x, double y, double radius, double area,
+           int nrMicroNuclei, boolean zap) {
+      x_ = x;
+      y_ = y;
+      radius_ = radius;
+      area_ = area;
+      nrMicroNuclei_ = nrMicroNuclei;
+      zap_ = zap;
+   }
+
+   public double getX() {
+      return x_;
+   }
+
+   public double getY() {
+      return y_;
+   }
+
+   public double getRadius() {
+      return radius_;
+   }
+
+   public double getArea() {
+      return area_;
+   }
+
+   public int getNrMicroNuclei() {
+      return nrMicroNuclei_;
+   }
+
+   public boolean getZap() {
+      return zap_;
+   }
+
+   /**
+    * @param x x position in pixels
+    * @param y y position in pixels
+    * @return true when the given position lies within this nucleus
+    */
+   public boolean contains(double x, double y) {
+      return (x - x_) * (x - x_) + (y - y_) * (y - y_) <= radius_ * radius_;
+   }
+
+}